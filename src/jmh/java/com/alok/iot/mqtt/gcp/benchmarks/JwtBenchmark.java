@@ -0,0 +1,71 @@
+package com.alok.iot.mqtt.gcp.benchmarks;
+
+import com.alok.iot.mqtt.gcp.utils.JwtUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of minting a device JWT with an RSA-2048 and a P-256 key. Keys come from the on-disk
+ * PKCS#8 files the application reads, so this covers key cache lookup, claims building and
+ * signing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JwtBenchmark {
+    private static final String PROJECT_ID = "benchmark-project";
+
+    private Path directory;
+    private String rsaKeyFile;
+    private String ecKeyFile;
+
+    @Setup(Level.Trial)
+    public void writeKeys() throws Exception {
+        directory = Files.createTempDirectory("jwt-benchmark");
+        rsaKeyFile = writeKey("RSA", 2048, "rsa_private_pkcs8");
+        ecKeyFile = writeKey("EC", 256, "ec_private_pkcs8");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteKeys() throws Exception {
+        Files.deleteIfExists(directory.resolve("rsa_private_pkcs8"));
+        Files.deleteIfExists(directory.resolve("ec_private_pkcs8"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public String createJwtRsa() throws Exception {
+        return JwtUtils.createJwtRsa(PROJECT_ID, rsaKeyFile);
+    }
+
+    @Benchmark
+    public String createJwtEs() throws Exception {
+        return JwtUtils.createJwtEs(PROJECT_ID, ecKeyFile);
+    }
+
+    private String writeKey(String algorithm, int keySize, String fileName) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        generator.initialize(keySize);
+        Path file = directory.resolve(fileName);
+        Files.write(file, generator.generateKeyPair().getPrivate().getEncoded());
+        return file.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package com.alok.iot.mqtt.gcp.benchmarks;
+
+import com.alok.iot.mqtt.gcp.publish.PayloadCodec;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/** Turning a telemetry string into an {@link MqttMessage}, and compressing its payload. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    private String data;
+    private byte[] payload;
+    private PayloadCodec gzip;
+
+    @Setup
+    public void buildPayload() {
+        StringBuilder reading = new StringBuilder();
+        while (reading.length() < payloadSize) {
+            reading.append("{\"temperature\":21.5,\"humidity\":40}");
+        }
+        data = reading.substring(0, payloadSize);
+        payload = data.getBytes(StandardCharsets.UTF_8);
+        gzip = PayloadCodec.forName("gzip");
+    }
+
+    /** The synchronous sendDataFromDevice path, which looks the charset up by name. */
+    @Benchmark
+    public MqttMessage messageFromCharsetName() throws UnsupportedEncodingException {
+        MqttMessage message = new MqttMessage(data.getBytes(StandardCharsets.UTF_8.name()));
+        message.setQos(1);
+        return message;
+    }
+
+    @Benchmark
+    public MqttMessage messageFromCharset() {
+        MqttMessage message = new MqttMessage(data.getBytes(StandardCharsets.UTF_8));
+        message.setQos(1);
+        return message;
+    }
+
+    @Benchmark
+    public byte[] gzipPayload() {
+        return gzip.encode(payload);
+    }
+}
@@ -0,0 +1,69 @@
+package com.alok.iot.mqtt.gcp.benchmarks;
+
+import com.alok.iot.mqtt.gcp.utils.HashedWheelTimer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduling and cancelling a device's next deadline while {@code pending} other devices' deadlines
+ * are waiting, on a scheduled executor's heap, as the shards did, against the
+ * {@link HashedWheelTimer} they use now.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimerBenchmark {
+    private static final Runnable NOTHING = () -> { };
+
+    @Param({"1000", "100000"})
+    private int pending;
+
+    private ScheduledThreadPoolExecutor executor;
+    private HashedWheelTimer wheel;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        wheel = new HashedWheelTimer("benchmark-wheel");
+        for (int i = 0; i < pending; i++) {
+            executor.schedule(NOTHING, 1 + i % 3600, TimeUnit.SECONDS);
+            wheel.newTimeout(NOTHING, 1 + i % 3600, TimeUnit.SECONDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        wheel.close();
+    }
+
+    @Benchmark
+    public boolean executor() {
+        ScheduledFuture<?> future = executor.schedule(NOTHING, 30, TimeUnit.MINUTES);
+        return future.cancel(false);
+    }
+
+    @Benchmark
+    public boolean wheel() {
+        return wheel.newTimeout(NOTHING, 30, TimeUnit.MINUTES).cancel();
+    }
+}
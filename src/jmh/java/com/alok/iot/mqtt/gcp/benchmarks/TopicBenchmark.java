@@ -0,0 +1,44 @@
+package com.alok.iot.mqtt.gcp.benchmarks;
+
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a device's telemetry topic with String.format, as sendDataFromDevice used to, against
+ * plain concatenation and a lookup in the {@link DeviceTopics} table it uses now.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TopicBenchmark {
+    private String deviceId = "device-0001";
+    private String messageType = "events";
+
+    @Benchmark
+    public String format() {
+        return String.format("/devices/%s/%s", deviceId, messageType);
+    }
+
+    @Benchmark
+    public String concat() {
+        return "/devices/" + deviceId + "/" + messageType;
+    }
+
+    @Benchmark
+    public String table() {
+        return DeviceTopics.of(deviceId).telemetry(messageType);
+    }
+}
@@ -6,15 +6,14 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
+import java.security.GeneralSecurityException;
 
 import static com.alok.iot.mqtt.gcp.MqttExample.*;
 
 @SpringBootApplication
 public class IotConnectApplication {
 
-	public static void main(String[] args) throws NoSuchAlgorithmException, IOException, InvalidKeySpecException, MqttException, InterruptedException {
+	public static void main(String[] args) throws GeneralSecurityException, IOException, MqttException, InterruptedException {
 		SpringApplication.run(IotConnectApplication.class, args);
 
         MqttExampleOptions options = MqttExampleOptions.fromFlags(args);
@@ -50,6 +49,21 @@ public class IotConnectApplication {
                     options.deviceId,
                     options.messageType,
                     options.telemetryData);
+        } else if ("send-data-from-bound-devices".equals(options.command)) {
+            System.out.println("Sending data on behalf of bound devices:");
+            sendDataFromBoundDevices(options);
+        } else if ("load-test".equals(options.command)) {
+            System.out.println(
+                    String.format("Load testing with %d devices:", options.loadgenDevices));
+            loadTest(options);
+        } else if ("attach-devices".equals(options.command)) {
+            System.out.println(
+                    String.format("Attaching %d devices to %s:", options.loadgenDevices, options.gatewayId));
+            attachDevices(options);
+        } else if ("local-bridge".equals(options.command)) {
+            System.out.println(
+                    String.format("Starting a local bridge on port %d:", options.mqttBridgePort));
+            runLocalBridge(options);
         } else {
             System.out.println("Starting mqtt demo:");
             mqttDeviceDemo(options);
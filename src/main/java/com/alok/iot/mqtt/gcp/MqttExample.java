@@ -1,16 +1,58 @@
 package com.alok.iot.mqtt.gcp;
 
+import com.alok.iot.mqtt.gcp.auth.JwtTokenProvider;
+import com.alok.iot.mqtt.gcp.broker.BridgeQuotas;
+import com.alok.iot.mqtt.gcp.broker.DeviceRegistry;
+import com.alok.iot.mqtt.gcp.broker.LocalBridge;
+import com.alok.iot.mqtt.gcp.config.ConfigStore;
+import com.alok.iot.mqtt.gcp.connect.ConnectionSupervisor;
+import com.alok.iot.mqtt.gcp.connect.ReconnectPolicy;
+import com.alok.iot.mqtt.gcp.gateway.AttachmentManager;
+import com.alok.iot.mqtt.gcp.gateway.BulkAttacher;
+import com.alok.iot.mqtt.gcp.gateway.BulkReport;
+import com.alok.iot.mqtt.gcp.gateway.DeviceCircuitBreakers;
+import com.alok.iot.mqtt.gcp.gateway.GatewayError;
+import com.alok.iot.mqtt.gcp.inbound.InboundDispatcher;
+import com.alok.iot.mqtt.gcp.inbound.PayloadHandler;
+import com.alok.iot.mqtt.gcp.inbound.Payloads;
+import com.alok.iot.mqtt.gcp.inbound.TopicRouter;
+import com.alok.iot.mqtt.gcp.loadgen.LoadGenerator;
+import com.alok.iot.mqtt.gcp.loadgen.LoadReport;
+import com.alok.iot.mqtt.gcp.loadgen.RampProfile;
+import com.alok.iot.mqtt.gcp.logging.SampledLogger;
+import com.alok.iot.mqtt.gcp.persist.MappedOutboxPersistence;
+import com.alok.iot.mqtt.gcp.publish.AsyncPublisher;
+import com.alok.iot.mqtt.gcp.publish.CompressingPublisher;
+import com.alok.iot.mqtt.gcp.publish.MessagePublisher;
+import com.alok.iot.mqtt.gcp.publish.PayloadCodec;
+import com.alok.iot.mqtt.gcp.publish.RateLimitedPublisher;
+import com.alok.iot.mqtt.gcp.publish.StateCoalescer;
+import com.alok.iot.mqtt.gcp.publish.StoreAndForwardPublisher;
+import com.alok.iot.mqtt.gcp.publish.TelemetryBatcher;
+import com.alok.iot.mqtt.gcp.session.DeviceSession;
+import com.alok.iot.mqtt.gcp.session.DeviceSessionManager;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
 import com.alok.iot.mqtt.gcp.utils.JwtUtils;
+import com.alok.iot.mqtt.gcp.utils.MqttUtils;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
-import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 // [END iot_mqtt_includes]
 
@@ -41,8 +83,20 @@ import java.util.Properties;
 public class MqttExample {
     // [START iot_mqtt_jwt]
     // [START iot_mqtt_configcallback]
-    static MqttCallback mCallback;
-    static long MINUTES_PER_HOUR = 60;
+    private static final Logger LOG = LoggerFactory.getLogger(MqttExample.class);
+    // Per-message events are sampled and rate limited so logging never throttles publishing.
+    private static final SampledLogger PUBLISH_LOG =
+            SampledLogger.of(MqttExample.class.getName() + ".publish", 10, 1);
+    private static final SampledLogger INBOUND_LOG =
+            SampledLogger.of(MqttExample.class.getName() + ".inbound", 10, 1);
+
+    // One router holds the config and command handlers of every device, so a gateway can serve
+    // all of its bound devices over one connection.
+    static final TopicRouter ROUTER = new TopicRouter();
+    static final MqttCallback mCallback = newRouterCallback(ROUTER);
+    private static final ConfigStore GATEWAY_CONFIGS = ConfigStore.inMemory();
+    /** The payload of attach and detach messages, encoded once. Paho does not modify payloads. */
+    private static final byte[] EMPTY_JSON = "{}".getBytes(StandardCharsets.UTF_8);
 
     /** Connects the gateway to the MQTT bridge. */
     protected static MqttClient startMqtt(
@@ -61,85 +115,31 @@ public class MqttExample {
         // Build the connection string for Google's Cloud IoT Core MQTT server. Only SSL
         // connections are accepted. For server authentication, the JVM's root certificates
         // are used.
-        final String mqttServerAddress =
-                String.format("ssl://%s:%s", mqttBridgeHostname, mqttBridgePort);
+        final String mqttServerAddress = MqttUtils.serverAddress(mqttBridgeHostname, mqttBridgePort);
 
-        // Create our MQTT client. The mqttClientId is a unique string that identifies this device. For
-        // Google Cloud IoT Core, it must be in the format below.
-        final String mqttClientId =
-                String.format(
-                        "projects/%s/locations/%s/registries/%s/devices/%s",
-                        projectId, cloudRegion, registryId, gatewayId);
-
-        MqttConnectOptions connectOptions = new MqttConnectOptions();
-        // Note that the Google Cloud IoT Core only supports MQTT 3.1.1, and Paho requires that we
-        // explictly set this. If you don't set MQTT version, the server will immediately close its
-        // connection to your device.
-        connectOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
-
-        Properties sslProps = new Properties();
-        sslProps.setProperty("com.ibm.ssl.protocol", "TLSv1.2");
-        connectOptions.setSSLProperties(sslProps);
-
-        // With Google Cloud IoT Core, the username field is ignored, however it must be set for the
-        // Paho client library to send the password field. The password field is used to transmit a JWT
-        // to authorize the device.
-        connectOptions.setUserName("unused");
-
-        if ("RS256".equals(algorithm)) {
-            connectOptions.setPassword(JwtUtils.createJwtRsa(projectId, privateKeyFile).toCharArray());
-        } else if ("ES256".equals(algorithm)) {
-            connectOptions.setPassword(JwtUtils.createJwtEs(projectId, privateKeyFile).toCharArray());
-        } else {
-            throw new IllegalArgumentException(
-                    "Invalid algorithm " + algorithm + ". Should be one of 'RS256' or 'ES256'.");
-        }
+        // Create our MQTT client. The mqttClientId is a unique string that identifies this device.
+        final String mqttClientId = MqttUtils.clientId(projectId, cloudRegion, registryId, gatewayId);
+
+        MqttConnectOptions connectOptions =
+                MqttUtils.connectOptions(
+                        JwtUtils.createJwt(projectId, privateKeyFile, algorithm, JwtUtils.DEFAULT_TOKEN_EXP_MINS)
+                                .toCharArray());
 
-        System.out.println(String.format("%s", mqttClientId));
+        LOG.info("{}", mqttClientId);
 
         // Create a client, and connect to the Google MQTT bridge.
         MqttClient client = new MqttClient(mqttServerAddress, mqttClientId, new MemoryPersistence());
 
-        // Both connect and publish operations may fail. If they do, allow retries but with an
-        // exponential backoff time period.
-        long initialConnectIntervalMillis = 500L;
-        long maxConnectIntervalMillis = 6000L;
-        long maxConnectRetryTimeElapsedMillis = 900000L;
-        float intervalMultiplier = 1.5f;
-
-        long retryIntervalMs = initialConnectIntervalMillis;
-        long totalRetryTimeMs = 0;
-
-        while ((totalRetryTimeMs < maxConnectRetryTimeElapsedMillis) && !client.isConnected()) {
-            try {
-                System.out.println("Connecting MQTT Client with options: " + connectOptions);
-                client.connect(connectOptions);
-            } catch (MqttException e) {
-                int reason = e.getReasonCode();
-
-                // If the connection is lost or if the server cannot be connected, allow retries, but with
-                // exponential backoff.
-                System.out.println("An error occurred: " + e.getMessage());
-                if (reason == MqttException.REASON_CODE_CONNECTION_LOST
-                        || reason == MqttException.REASON_CODE_SERVER_CONNECT_ERROR) {
-                    System.out.println("Retrying in " + retryIntervalMs / 1000.0 + " seconds.");
-                    Thread.sleep(retryIntervalMs);
-                    totalRetryTimeMs += retryIntervalMs;
-                    retryIntervalMs *= intervalMultiplier;
-                    if (retryIntervalMs > maxConnectIntervalMillis) {
-                        retryIntervalMs = maxConnectIntervalMillis;
-                    }
-                } else {
-                    throw e;
-                }
-            }
-        }
+        // Connecting may fail. If it does, retry with a jittered exponential backoff.
+        LOG.info("Connecting MQTT client as {}", connectOptions.getUserName());
+        ConnectionSupervisor.connectBlocking(client, connectOptions, ReconnectPolicy.DEFAULT);
 
         attachCallback(client, gatewayId);
 
         // The topic gateways receive error updates on. QoS must be 0.
-        String errorTopic = String.format("/devices/%s/errors", gatewayId);
-        System.out.println(String.format("Listening on %s", errorTopic));
+        String errorTopic = DeviceTopics.of(gatewayId).errors();
+        LOG.info("Listening on {}", errorTopic);
+        ROUTER.register(errorTopic, (topic, message) -> handleGatewayError(message.getPayload()));
 
         client.subscribe(errorTopic, 0);
 
@@ -152,17 +152,34 @@ public class MqttExample {
             throws MqttException, UnsupportedEncodingException {
         // [START send_data_from_bound_device]
         if (!"events".equals(messageType) && !"state".equals(messageType)) {
-            System.err.println("Invalid message type, must ether be 'state' or events'");
+            LOG.error("Invalid message type, must ether be 'state' or events'");
             return;
         }
-        final String dataTopic = String.format("/devices/%s/%s", deviceId, messageType);
-        MqttMessage message = new MqttMessage(data.getBytes(StandardCharsets.UTF_8.name()));
+        final String dataTopic = DeviceTopics.of(deviceId).telemetry(messageType);
+        MqttMessage message = new MqttMessage(data.getBytes(StandardCharsets.UTF_8));
         message.setQos(1);
         client.publish(dataTopic, message);
-        System.out.println("Data sent");
+        LOG.info("Data sent");
         // [END send_data_from_bound_device]
     }
 
+    /**
+     * Sends data without waiting for the acknowledgement; the returned future completes once the
+     * bridge has acknowledged the message. Pass a {@link StateCoalescer} to send only the newest of
+     * a device's frequent state updates.
+     */
+    protected static CompletableFuture<Void> sendDataFromDevice(
+            MessagePublisher publisher, String deviceId, String messageType, String data) {
+        if (!"events".equals(messageType) && !"state".equals(messageType)) {
+            CompletableFuture<Void> invalid = new CompletableFuture<>();
+            invalid.completeExceptionally(
+                    new IllegalArgumentException("Invalid message type, must ether be 'state' or events'"));
+            return invalid;
+        }
+        final String dataTopic = DeviceTopics.of(deviceId).telemetry(messageType);
+        return publisher.publish(dataTopic, data.getBytes(StandardCharsets.UTF_8), 1);
+    }
+
     /** Sends data on behalf of a bound device using the Gateway. */
     public static void sendDataFromBoundDevice(
             String mqttBridgeHostname,
@@ -228,10 +245,9 @@ public class MqttExample {
     protected static void attachDeviceToGateway(MqttClient client, String deviceId)
             throws MqttException, UnsupportedEncodingException {
         // [START iot_attach_device]
-        final String attachTopic = String.format("/devices/%s/attach", deviceId);
-        System.out.println(String.format("Attaching: %s", attachTopic));
-        String attachPayload = "{}";
-        MqttMessage message = new MqttMessage(attachPayload.getBytes(StandardCharsets.UTF_8.name()));
+        final String attachTopic = DeviceTopics.of(deviceId).attach();
+        LOG.info("Attaching: {}", attachTopic);
+        MqttMessage message = new MqttMessage(EMPTY_JSON);
         message.setQos(1);
         client.publish(attachTopic, message);
         // [END iot_attach_device]
@@ -241,10 +257,9 @@ public class MqttExample {
     protected static void detachDeviceFromGateway(MqttClient client, String deviceId)
             throws MqttException, UnsupportedEncodingException {
         // [START iot_detach_device]
-        final String detachTopic = String.format("/devices/%s/detach", deviceId);
-        System.out.println(String.format("Detaching: %s", detachTopic));
-        String attachPayload = "{}";
-        MqttMessage message = new MqttMessage(attachPayload.getBytes(StandardCharsets.UTF_8.name()));
+        final String detachTopic = DeviceTopics.of(deviceId).detach();
+        LOG.info("Detaching: {}", detachTopic);
+        MqttMessage message = new MqttMessage(EMPTY_JSON);
         message.setQos(1);
         client.publish(detachTopic, message);
         // [END iot_detach_device]
@@ -257,129 +272,150 @@ public class MqttExample {
         // connections are accepted. For server authentication, the JVM's root certificates
         // are used.
         final String mqttServerAddress =
-                String.format("ssl://%s:%s", options.mqttBridgeHostname, options.mqttBridgePort);
+                MqttUtils.serverAddress(options.mqttBridgeHostname, options.mqttBridgePort, options.mqttBridgeTls);
 
-        // Create our MQTT client. The mqttClientId is a unique string that identifies this device. For
-        // Google Cloud IoT Core, it must be in the format below.
+        // Create our MQTT client. The mqttClientId is a unique string that identifies this device.
         final String mqttClientId =
-                String.format(
-                        "projects/%s/locations/%s/registries/%s/devices/%s",
-                        options.projectId, options.cloudRegion, options.registryId, options.deviceId);
-        System.out.println("Client ID: " + mqttClientId);
-
-        MqttConnectOptions connectOptions = new MqttConnectOptions();
-        // Note that the Google Cloud IoT Core only supports MQTT 3.1.1, and Paho requires that we
-        // explictly set this. If you don't set MQTT version, the server will immediately close its
-        // connection to your device.
-        connectOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
-
-        Properties sslProps = new Properties();
-        sslProps.setProperty("com.ibm.ssl.protocol", "TLSv1.2");
-        connectOptions.setSSLProperties(sslProps);
-
-        // With Google Cloud IoT Core, the username field is ignored, however it must be set for the
-        // Paho client library to send the password field. The password field is used to transmit a JWT
-        // to authorize the device.
-        connectOptions.setUserName("unused");
-
-        DateTime iat = new DateTime();
-        if ("RS256".equals(options.algorithm)) {
-            connectOptions.setPassword(
-                    JwtUtils.createJwtRsa(options.projectId, options.privateKeyFile).toCharArray());
-        } else if ("ES256".equals(options.algorithm)) {
-            connectOptions.setPassword(
-                    JwtUtils.createJwtEs(options.projectId, options.privateKeyFile).toCharArray());
-        } else {
-            throw new IllegalArgumentException(
-                    "Invalid algorithm " + options.algorithm + ". Should be one of 'RS256' or 'ES256'.");
+                MqttUtils.clientId(options.projectId, options.cloudRegion, options.registryId, options.deviceId);
+        LOG.info("Client ID: {}", mqttClientId);
+
+        // Tokens are minted in the background ahead of expiry, so connecting only ever picks up a
+        // token that is already signed.
+        JwtTokenProvider tokenProvider =
+                new JwtTokenProvider(
+                        options.projectId,
+                        options.privateKeyFile,
+                        options.algorithm,
+                        options.tokenExpMins,
+                        options.tokenRefreshMarginSecs);
+        tokenProvider.start();
+        MqttConnectOptions connectOptions = MqttUtils.connectOptions(tokenProvider.currentToken().toPassword());
+        // Let Paho keep as many unacknowledged messages outstanding as the publisher will send.
+        connectOptions.setMaxInflight(options.maxInFlight);
+
+        // Keep unacknowledged QoS 1 messages on disk if asked to, so a restart resends them. Paho
+        // discards its persisted messages on a clean-session connect.
+        MqttClientPersistence persistence = new MemoryPersistence();
+        if (options.persistenceDir != null) {
+            persistence = new MappedOutboxPersistence(options.persistenceDir);
+            connectOptions.setCleanSession(false);
         }
-
         // [START iot_mqtt_publish]
         // Create a client, and connect to the Google MQTT bridge.
-        MqttClient client = new MqttClient(mqttServerAddress, mqttClientId, new MemoryPersistence());
-
-        // Both connect and publish operations may fail. If they do, allow retries but with an
-        // exponential backoff time period.
-        long initialConnectIntervalMillis = 500L;
-        long maxConnectIntervalMillis = 6000L;
-        long maxConnectRetryTimeElapsedMillis = 900000L;
-        float intervalMultiplier = 1.5f;
-
-        long retryIntervalMs = initialConnectIntervalMillis;
-        long totalRetryTimeMs = 0;
-
-        while ((totalRetryTimeMs < maxConnectRetryTimeElapsedMillis) && !client.isConnected()) {
-            try {
-                System.out.println("Alok connecting MQTT client with options: " + connectOptions);
-                System.out.println("Alok connecting MQTT client with Username: " + connectOptions.getUserName());
-                client.connect(connectOptions);
-            } catch (MqttException e) {
-                int reason = e.getReasonCode();
-
-                // If the connection is lost or if the server cannot be connected, allow retries, but with
-                // exponential backoff.
-                System.out.println("An error occurred: " + e.getMessage());
-                if (reason == MqttException.REASON_CODE_CONNECTION_LOST
-                        || reason == MqttException.REASON_CODE_SERVER_CONNECT_ERROR) {
-                    System.out.println("Retrying in " + retryIntervalMs / 1000.0 + " seconds.");
-                    Thread.sleep(retryIntervalMs);
-                    totalRetryTimeMs += retryIntervalMs;
-                    retryIntervalMs *= intervalMultiplier;
-                    if (retryIntervalMs > maxConnectIntervalMillis) {
-                        retryIntervalMs = maxConnectIntervalMillis;
-                    }
-                } else {
-                    throw e;
-                }
-            }
+        MqttAsyncClient client = new MqttAsyncClient(mqttServerAddress, mqttClientId, persistence);
+
+        // Connect, and reconnect whenever the connection drops, with a jittered exponential backoff.
+        // Every attempt uses the current token and re-subscribes once connected.
+        ConnectionSupervisor.setGlobalConnectRate(
+                options.connectRatePerSec, Math.max(1, (int) options.connectRatePerSec));
+        ConnectionSupervisor supervisor =
+                new ConnectionSupervisor(
+                        client,
+                        () -> {
+                            connectOptions.setPassword(tokenProvider.currentToken().toPassword());
+                            return connectOptions;
+                        },
+                        new ReconnectPolicy(
+                                options.reconnectInitialMillis,
+                                options.reconnectMaxMillis,
+                                ReconnectPolicy.DEFAULT_MULTIPLIER,
+                                ReconnectPolicy.DEFAULT_MAX_ELAPSED_MILLIS));
+        // Config and command handling runs on a worker, so a slow handler cannot stall Paho's callback thread.
+        InboundDispatcher inbound = new InboundDispatcher(1, options.inboundQueueCapacity);
+        // The bridge resends the config on every subscribe; only changes reach the handler.
+        ConfigStore configs = options.configStoreFile == null
+                ? ConfigStore.inMemory()
+                : ConfigStore.open(Paths.get(options.configStoreFile));
+        attachCallback(supervisor, options.deviceId, inbound, configs);
+        LOG.info("Connecting MQTT client as {}", connectOptions.getUserName());
+        supervisor.connectAndWait();
+
+        // Up to maxInFlight messages may await their PUBACK at once; publish() blocks when the window
+        // is full. A window of 1 waits for every acknowledgement, like a blocking client.
+        AsyncPublisher publisher = new AsyncPublisher(client, options.maxInFlight);
+
+        // Optionally queue messages while disconnected, keep the device within its quotas ahead of
+        // that, compress payloads ahead of that, and pack several telemetry events into each MQTT
+        // message ahead of that.
+        MessagePublisher publishPath = publisher;
+        StoreAndForwardPublisher offlineQueue = null;
+        if (options.offlineQueueCapacity > 0) {
+            offlineQueue =
+                    new StoreAndForwardPublisher(
+                            publisher,
+                            client::isConnected,
+                            options.offlineQueueCapacity,
+                            options.offlineSpillDir,
+                            options.offlineSpillMaxBytes,
+                            options.offlineDrainRate,
+                            StoreAndForwardPublisher.DropPolicy.forName(options.offlineDropPolicy));
+            publishPath = offlineQueue;
+        }
+        RateLimitedPublisher limiter = null;
+        if (options.deviceTelemetryPerSec > 0 || options.deviceStatePerSec > 0) {
+            limiter =
+                    new RateLimitedPublisher(
+                            publishPath,
+                            options.deviceTelemetryPerSec,
+                            options.deviceStatePerSec,
+                            RateLimitedPublisher.Overflow.forName(options.rateLimitOverflow),
+                            options.rateLimitMaxQueued);
+            publishPath = limiter;
+        }
+        CompressingPublisher compressor = null;
+        PayloadCodec codec = PayloadCodec.forName(options.compression);
+        if (codec != null) {
+            compressor = new CompressingPublisher(publishPath, codec, options.compressionMinBytes);
+            publishPath = compressor;
+        }
+        // A state update replaces the last one rather than adding to it, so only events are batched.
+        TelemetryBatcher batcher = null;
+        if (options.batchMaxCount > 1 && !"state".equals(options.messageType)) {
+            batcher =
+                    new TelemetryBatcher(
+                            publishPath, options.batchMaxBytes, options.batchMaxCount, options.batchLingerMillis);
+            publishPath = batcher;
+        }
+        // Only the newest state matters, so hold at most one per interval and replace it in place.
+        StateCoalescer coalescer = null;
+        if ("state".equals(options.messageType) && options.deviceStatePerSec > 0) {
+            coalescer = new StateCoalescer(publishPath, options.deviceStatePerSec);
+            publishPath = coalescer;
         }
 
-        attachCallback(client, options.deviceId);
-
-        // Publish to the events or state topic based on the flag.
-        String subTopic = "event".equals(options.messageType) ? "events" : options.messageType;
+        // The MQTT topic that this device will publish telemetry data to, events or state based on
+        // the flag. The MQTT topic name is required to be in the format /devices/{device-id}/{type}.
+        // Note that this is not the same as the device registry's Cloud Pub/Sub topic.
+        String mqttTopic = DeviceTopics.of(options.deviceId).telemetry(options.messageType);
 
-        // The MQTT topic that this device will publish telemetry data to. The MQTT topic name is
-        // required to be in the format below. Note that this is not the same as the device registry's
-        // Cloud Pub/Sub topic.
-        String mqttTopic = String.format("/devices/%s/%s", options.deviceId, subTopic);
+        // Refresh the connection credentials before the JWT expires. The reconnect runs on the
+        // token provider's thread, so the loop below keeps publishing.
+        // [START iot_mqtt_jwt_refresh]
+        TelemetryBatcher refreshBatcher = batcher;
+        tokenProvider.addListener(refreshed -> reconnectWithToken(refreshed, client, supervisor, refreshBatcher));
+        // [END iot_mqtt_jwt_refresh]
 
         // Publish numMessages messages to the MQTT bridge, at a rate of 1 per second.
         for (int i = 1; i <= options.numMessages; ++i) {
             String payload = String.format("%s/%s-payload-%d", options.registryId, options.deviceId, i);
-            System.out.format(
-                    "Publishing %s message %d/%d: '%s'%n",
-                    options.messageType, i, options.numMessages, payload);
-
-            // Refresh the connection credentials before the JWT expires.
-            // [START iot_mqtt_jwt_refresh]
-            long secsSinceRefresh = ((new DateTime()).getMillis() - iat.getMillis()) / 1000;
-            if (secsSinceRefresh > (options.tokenExpMins * MINUTES_PER_HOUR)) {
-                System.out.format("\tRefreshing token after: %d seconds%n", secsSinceRefresh);
-                iat = new DateTime();
-                if ("RS256".equals(options.algorithm)) {
-                    connectOptions.setPassword(
-                            JwtUtils.createJwtRsa(options.projectId, options.privateKeyFile).toCharArray());
-                } else if ("ES256".equals(options.algorithm)) {
-                    connectOptions.setPassword(
-                            JwtUtils.createJwtEs(options.projectId, options.privateKeyFile).toCharArray());
-                } else {
-                    throw new IllegalArgumentException(
-                            "Invalid algorithm " + options.algorithm + ". Should be one of 'RS256' or 'ES256'.");
-                }
-                client.disconnect();
-                client.connect();
-                attachCallback(client, options.deviceId);
-            }
-            // [END iot_mqtt_jwt_refresh]
+            PUBLISH_LOG.info(
+                    "Publishing {} message {}/{}: '{}'", options.messageType, i, options.numMessages, payload);
 
             // Publish "payload" to the MQTT topic. qos=1 means at least once delivery. Cloud IoT Core
             // also supports qos=0 for at most once delivery.
-            MqttMessage message = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8.name()));
-            message.setQos(1);
-            client.publish(mqttTopic, message);
+            final int messageNumber = i;
+            publishPath
+                    .publish(mqttTopic, payload.getBytes(StandardCharsets.UTF_8), 1)
+                    .whenComplete((ignored, e) -> {
+                        if (e != null) {
+                            PUBLISH_LOG.warn("Message {} was not delivered: {}", messageNumber, e.toString());
+                        }
+                    });
 
-            if ("event".equals(options.messageType)) {
+            if (options.publishIntervalMillis >= 0) {
+                // Bursts beyond the device's quotas are held or shed by the limiter.
+                Thread.sleep(options.publishIntervalMillis);
+            } else if ("event".equals(options.messageType)) {
                 // Send telemetry events every second
                 Thread.sleep(5000);
             } else {
@@ -389,42 +425,326 @@ public class MqttExample {
         }
 
         // Wait for commands to arrive for about two minutes.
+        LOG.info("Waiting {} seconds for commands", options.waitTime);
         for (int i = 1; i <= options.waitTime; ++i) {
-            System.out.print('.');
             Thread.sleep(1000);
         }
-        System.out.println("");
 
-        // Disconnect the client if still connected, and finish the run.
+        if (coalescer != null) {
+            coalescer.close();
+            LOG.info("State coalescing: {}", coalescer);
+        }
+        if (batcher != null) {
+            batcher.close();
+            LOG.info("Batch sizes: {}", batcher.getHistogram());
+        }
+        if (compressor != null) {
+            LOG.info("Compression: {}", compressor);
+        }
+        if (limiter != null) {
+            if (!limiter.awaitEmpty(AsyncPublisher.DEFAULT_ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Discarding {} messages still over quota", limiter.size());
+            }
+            limiter.close();
+            LOG.info("Rate limits: {}", limiter);
+        }
+        if (offlineQueue != null) {
+            if (!offlineQueue.awaitEmpty(AsyncPublisher.DEFAULT_ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Discarding {} messages still queued", offlineQueue.size());
+            }
+            offlineQueue.close();
+            LOG.info("{}", offlineQueue);
+        }
+
+        // Stop refreshing and reconnecting, disconnect the client if still connected, and finish the run.
+        tokenProvider.close();
+        supervisor.close();
+        inbound.close();
+        configs.close();
+        LOG.info("Connection: {}", supervisor.getStats());
+        LOG.info("Inbound: {}", inbound);
+        LOG.info("Routing: {}", ROUTER);
+        LOG.info("Configs: {}", configs);
         if (client.isConnected()) {
-            client.disconnect();
+            publisher.awaitDrained(AsyncPublisher.DEFAULT_ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            client.disconnect().waitForCompletion();
         }
 
-        System.out.println("Finished loop successfully. Goodbye!");
+        LOG.info("Finished loop successfully. Goodbye!");
         client.close();
         // [END iot_mqtt_publish]
     }
 
-    /** Attaches the callback used when configuration changes occur. */
-    protected static void attachCallback(MqttClient client, String deviceId)
-            throws MqttException, UnsupportedEncodingException {
-        mCallback =
+    /**
+     * Cloud IoT Core only checks the JWT on connect, so a refreshed token means a new connection.
+     * Paho lets in-flight messages finish before disconnecting; anything published meanwhile
+     * fails, or waits in the offline queue if there is one.
+     */
+    private static void reconnectWithToken(
+            JwtTokenProvider.Token token,
+            MqttAsyncClient client,
+            ConnectionSupervisor supervisor,
+            TelemetryBatcher batcher) {
+        LOG.info("Reconnecting with refreshed {}", token);
+        if (batcher != null) {
+            batcher.flushAll();
+        }
+        try {
+            client.disconnect(AsyncPublisher.DEFAULT_ACQUIRE_TIMEOUT_MILLIS, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    supervisor.connect();
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    LOG.warn("Disconnecting to refresh the token failed: {}", exception.toString());
+                }
+            });
+        } catch (MqttException e) {
+            LOG.warn("Disconnecting to refresh the token failed: {}", e.toString());
+        }
+    }
+
+    /**
+     * Simulates {@code loadgen_devices} devices publishing at {@code loadgen_rate} messages per
+     * second each, and reports publish to PUBACK latency percentiles, throughput and errors.
+     */
+    public static void loadTest(MqttExampleOptions options)
+            throws NoSuchAlgorithmException, IOException, InvalidKeySpecException, MqttException,
+            InterruptedException {
+        try (DeviceSessionManager manager = new DeviceSessionManager(options, options.ioThreads)) {
+            for (String deviceId : loadgenDeviceIds(options)) {
+                manager.open(deviceId);
+            }
+            LOG.info("Opened {}", manager.resourceUsage());
+
+            LoadGenerator generator =
+                    new LoadGenerator(
+                            manager.sessions(),
+                            manager.getTimer(),
+                            options.messageType,
+                            options.loadgenRatePerSec,
+                            options.loadgenPayloadBytes,
+                            1,
+                            RampProfile.forName(options.loadgenRamp),
+                            TimeUnit.SECONDS.toMillis(options.loadgenRampSecs),
+                            TimeUnit.SECONDS.toMillis(options.loadgenStateSecs));
+            LoadReport report =
+                    generator.run(
+                            TimeUnit.SECONDS.toMillis(options.loadgenDurationSecs),
+                            TimeUnit.SECONDS.toMillis(options.loadgenReportSecs));
+            LOG.info("Load test finished: {}", report);
+            LOG.info("{}", manager.resourceUsage());
+        }
+    }
+
+    /**
+     * Connects the gateway and attaches its bound devices, the load test's device ids, in bulk.
+     * They stay attached for {@code wait_time} seconds and are then detached the same way.
+     */
+    public static void attachDevices(MqttExampleOptions options)
+            throws NoSuchAlgorithmException, IOException, InvalidKeySpecException, MqttException,
+            InterruptedException {
+        if (options.gatewayId == null) {
+            throw new IllegalArgumentException("Attaching devices needs -gateway_id");
+        }
+        List<String> deviceIds = loadgenDeviceIds(options);
+        try (DeviceSessionManager manager = new DeviceSessionManager(options, 1)) {
+            DeviceSession gateway = manager.open(options.gatewayId);
+            BulkAttacher attacher =
+                    new BulkAttacher(gateway::publish, options.attachMaxInFlight, BulkAttacher.DEFAULT_ERROR_GRACE_MILLIS);
+            gateway.connect().join();
+            // The bridge reports refused attaches here. QoS must be 0.
+            gateway.subscribe(DeviceTopics.of(options.gatewayId).errors(), 0, attacher.errorListener()).join();
+
+            BulkReport attached = attacher.attachAll(deviceIds, BulkAttacher.DEFAULT_TIMEOUT_MILLIS);
+            LOG.info("Attached: {}", attached);
+            TimeUnit.SECONDS.sleep(options.waitTime);
+            BulkReport detached = attacher.detachAll(deviceIds, BulkAttacher.DEFAULT_TIMEOUT_MILLIS);
+            LOG.info("Detached: {}", detached);
+        }
+    }
+
+    /**
+     * Connects the gateway and sends {@code num_messages} readings on behalf of its bound devices,
+     * the load test's device ids, in turn. Each device is attached on its first reading and
+     * detached once idle, evicted to stay within {@code gateway_attach_capacity}, or at the end.
+     * Readings and attaches share one {@link AsyncPublisher} window as wide as the client's
+     * in-flight limit, so queuing them all at once blocks instead of overflowing it.
+     */
+    public static void sendDataFromBoundDevices(MqttExampleOptions options)
+            throws NoSuchAlgorithmException, IOException, InvalidKeySpecException, MqttException,
+            InterruptedException {
+        if (options.gatewayId == null) {
+            throw new IllegalArgumentException("Sending data from bound devices needs -gateway_id");
+        }
+        List<String> deviceIds = loadgenDeviceIds(options);
+        try (DeviceSessionManager manager = new DeviceSessionManager(options, 1)) {
+            DeviceSession gateway = manager.open(options.gatewayId);
+            AttachmentManager attachments =
+                    new AttachmentManager(
+                            new AsyncPublisher(gateway.getClient(), manager.getMaxInflight()),
+                            options.gatewayId,
+                            options.gatewayAttachCapacity,
+                            TimeUnit.SECONDS.toMillis(options.gatewayIdleSecs),
+                            gateway.getShard());
+            // Pauses devices the bridge reports errors for; the others keep publishing.
+            DeviceCircuitBreakers breakers = new DeviceCircuitBreakers(attachments);
+            gateway.connect().join();
+            // The bridge reports refused attaches and throttled devices here. QoS must be 0.
+            gateway.subscribe(DeviceTopics.of(options.gatewayId).errors(), 0, (topic, message) -> {
+                GatewayError error = GatewayError.parse(message.getPayload());
+                attachments.onError(error);
+                breakers.onError(error);
+            }).join();
+
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            for (int i = 0; i < options.numMessages; i++) {
+                String deviceId = deviceIds.get(i % deviceIds.size());
+                byte[] payload = (deviceId + "-payload-" + i).getBytes(StandardCharsets.UTF_8);
+                sent.add(breakers.publish(DeviceTopics.of(deviceId).telemetry(options.messageType), payload, 1));
+            }
+            // Wait for every reading, delivered or not.
+            CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+            long failed = sent.stream().filter(CompletableFuture::isCompletedExceptionally).count();
+            LOG.info("Sent {} readings, {} failed: {}; breakers: {}", sent.size(), failed, attachments, breakers);
+            attachments.close();
+        }
+    }
+
+    /**
+     * Runs a {@link LocalBridge} on {@code mqtt_bridge_port} for {@code wait_time} seconds. The
+     * device, or every load test device, is registered with {@code public_key_file}; with a
+     * {@code gateway_id}, the gateway is registered with the same key and bound to them.
+     */
+    public static void runLocalBridge(MqttExampleOptions options)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        if (options.publicKeyFile == null) {
+            throw new IllegalArgumentException("A local bridge needs -public_key_file to authenticate devices");
+        }
+        PublicKey publicKey = DeviceRegistry.loadPublicKey(options.publicKeyFile, options.algorithm);
+        DeviceRegistry registry = new DeviceRegistry(options.projectId, options.cloudRegion, options.registryId);
+        if (options.gatewayId != null) {
+            registry.registerGateway(options.gatewayId, publicKey);
+        }
+        for (String deviceId : loadgenDeviceIds(options)) {
+            registry.registerDevice(deviceId, publicKey);
+            if (options.gatewayId != null) {
+                registry.bind(options.gatewayId, deviceId);
+            }
+        }
+
+        try (LocalBridge bridge =
+                new LocalBridge(
+                        registry,
+                        BridgeQuotas.forName(options.localBridgeQuotas),
+                        options.localBridgeLatencyMillis,
+                        options.localBridgeJitterMillis)) {
+            bridge.setMessageListener(
+                    (deviceId, topic, payload) -> INBOUND_LOG.info("{} published {} bytes to {}",
+                            deviceId, payload.length, topic));
+            bridge.start(options.mqttBridgePort);
+            LOG.info("Serving for {} seconds", options.waitTime);
+            TimeUnit.SECONDS.sleep(options.waitTime);
+        }
+    }
+
+    /** The device ids a load test, a gateway's bound devices, or the local bridge serving them, uses. */
+    private static List<String> loadgenDeviceIds(MqttExampleOptions options) {
+        if (options.loadgenDevices == 1) {
+            return Collections.singletonList(options.deviceId);
+        }
+        List<String> deviceIds = new ArrayList<>();
+        for (int i = 0; i < options.loadgenDevices; i++) {
+            deviceIds.add(options.deviceId + "-" + i);
+        }
+        return deviceIds;
+    }
+
+    /**
+     * Attaches the callback used when configuration changes occur. Every client shares the one
+     * callback, so attaching another device keeps the handlers of those attached before it.
+     */
+    protected static void attachCallback(MqttClient client, String deviceId) throws MqttException {
+        String commandTopic = DeviceTopics.of(deviceId).commands();
+        LOG.info("Listening on {}", commandTopic);
+
+        String configTopic = DeviceTopics.of(deviceId).config();
+        LOG.info("Listening on {}", configTopic);
+
+        registerHandlers(deviceId, GATEWAY_CONFIGS);
+        client.setCallback(mCallback);
+        client.subscribe(configTopic, 1);
+        client.subscribe(commandTopic, 1);
+    }
+
+    /**
+     * Attaches the callback used when configuration changes occur, and subscribes on every connect
+     * the supervisor makes; the connect completes once both subscriptions are acknowledged.
+     */
+    protected static void attachCallback(
+            ConnectionSupervisor supervisor, String deviceId, InboundDispatcher inbound, ConfigStore configs) {
+        String commandTopic = DeviceTopics.of(deviceId).commands();
+        LOG.info("Listening on {}", commandTopic);
+
+        String configTopic = DeviceTopics.of(deviceId).config();
+        LOG.info("Listening on {}", configTopic);
+
+        registerHandlers(deviceId, configs);
+        supervisor.setCallback(inbound.wrap(mCallback));
+        supervisor.addRecoveryAction(client -> {
+            CompletableFuture<Void> config = new CompletableFuture<>();
+            CompletableFuture<Void> commands = new CompletableFuture<>();
+            client.subscribe(configTopic, 1, null, ConnectionSupervisor.completing(config));
+            client.subscribe(commandTopic, 1, null, ConnectionSupervisor.completing(commands));
+            return CompletableFuture.allOf(config, commands);
+        });
+    }
+
+    /** Routes the device's configs, through {@code configs} so only changed ones are handled, and commands. */
+    private static void registerHandlers(String deviceId, ConfigStore configs) {
+        DeviceTopics topics = DeviceTopics.of(deviceId);
+        ROUTER.register(topics.config(), configs.listener(MqttExample::handleConfig));
+        ROUTER.register(topics.commands(), PayloadHandler.listener(MqttExample::handleCommand));
+    }
+
+    /**
+     * Logs each new config version once. The demo device has nothing to configure; a real one
+     * would apply the config here and report the outcome on its state topic.
+     */
+    private static void handleConfig(String deviceId, long version, byte[] payload) {
+        INBOUND_LOG.info("Config {} for {}: {}", version, deviceId, Payloads.lazyText(ByteBuffer.wrap(payload)));
+    }
+
+    /** The bridge reports a bound device's failed attach, publish or subscribe on the gateway's errors topic. */
+    private static void handleGatewayError(byte[] payload) {
+        try {
+            INBOUND_LOG.warn("Gateway error: {}", GatewayError.parse(payload));
+        } catch (IllegalArgumentException e) {
+            INBOUND_LOG.warn("Unparseable gateway error: {}", Payloads.lazyText(ByteBuffer.wrap(payload)));
+        }
+    }
+
+    /**
+     * Logs each command; the demo device acts on none. Commands may be binary, so the payload is
+     * only decoded if it is logged.
+     */
+    private static void handleCommand(String topic, ByteBuffer payload) {
+        INBOUND_LOG.info("Command on {}: {}", topic, Payloads.lazyText(payload));
+    }
+
+    private static MqttCallback newRouterCallback(TopicRouter router) {
+        return
                 new MqttCallback() {
                     @Override
                     public void connectionLost(Throwable cause) {
-                        // Do nothing...
+                        LOG.warn("Connection lost: {}", String.valueOf(cause));
                     }
 
                     @Override
-                    public void messageArrived(String topic, MqttMessage message) {
-                        try {
-                            String payload = new String(message.getPayload(), StandardCharsets.UTF_8.name());
-                            System.out.println("Payload : " + payload);
-                            // TODO: Insert your parsing / handling of the configuration message here.
-                            //
-                        } catch (UnsupportedEncodingException uee) {
-                            System.err.println(uee);
-                        }
+                    public void messageArrived(String topic, MqttMessage message) throws Exception {
+                        router.route(topic, message);
                     }
 
                     @Override
@@ -432,16 +752,6 @@ public class MqttExample {
                         // Do nothing;
                     }
                 };
-
-        String commandTopic = String.format("/devices/%s/commands/#", deviceId);
-        System.out.println(String.format("Listening on %s", commandTopic));
-
-        String configTopic = String.format("/devices/%s/config", deviceId);
-        System.out.println(String.format("Listening on %s", configTopic));
-
-        client.subscribe(configTopic, 1);
-        client.subscribe(commandTopic, 1);
-        client.setCallback(mCallback);
     }
     // [END iot_mqtt_configcallback]
 }
@@ -16,6 +16,13 @@ package com.alok.iot.mqtt.gcp;
  * limitations under the License.
  */
 
+import com.alok.iot.mqtt.gcp.connect.ConnectionSupervisor;
+import com.alok.iot.mqtt.gcp.connect.ReconnectPolicy;
+import com.alok.iot.mqtt.gcp.gateway.AttachmentManager;
+import com.alok.iot.mqtt.gcp.gateway.BulkAttacher;
+import com.alok.iot.mqtt.gcp.inbound.InboundDispatcher;
+import com.alok.iot.mqtt.gcp.publish.RateLimitedPublisher;
+import com.alok.iot.mqtt.gcp.publish.TelemetryBatcher;
 import javax.annotation.Nullable;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -24,6 +31,8 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import java.util.concurrent.TimeUnit;
+
 /** Command line options for the MQTT example. */
 public class MqttExampleOptions {
     static final Options options = new Options();
@@ -37,12 +46,53 @@ public class MqttExampleOptions {
     public String cloudRegion = "asia-east1";
     public int numMessages = 100;
     public int tokenExpMins = 20;
+    public int tokenRefreshMarginSecs = 60;
     public String telemetryData = "Specify with -telemetry_data";
 
     public String mqttBridgeHostname = "mqtt.googleapis.com";
     public short mqttBridgePort = 8883;
+    public boolean mqttBridgeTls = true;
     public String messageType = "event";
     public int waitTime = 120;
+    public int maxInFlight = 1;
+    public int batchMaxCount = 1;
+    public int batchMaxBytes = TelemetryBatcher.DEFAULT_MAX_BATCH_BYTES;
+    public long batchLingerMillis = 1000L;
+    public String compression = "none";
+    public int compressionMinBytes = 256;
+    public String persistenceDir;
+    public int offlineQueueCapacity = 0;
+    public String offlineSpillDir;
+    public long offlineSpillMaxBytes = 64L * 1024 * 1024;
+    public int offlineDrainRate = 50;
+    public String offlineDropPolicy = "oldest";
+    public double deviceTelemetryPerSec = RateLimitedPublisher.DEFAULT_TELEMETRY_PER_SEC;
+    public double deviceStatePerSec = RateLimitedPublisher.DEFAULT_STATE_PER_SEC;
+    public String rateLimitOverflow = "queue";
+    public int rateLimitMaxQueued = RateLimitedPublisher.DEFAULT_MAX_QUEUED;
+    public long publishIntervalMillis = -1;
+    public long reconnectInitialMillis = ReconnectPolicy.DEFAULT_INITIAL_DELAY_MILLIS;
+    public long reconnectMaxMillis = ReconnectPolicy.DEFAULT_MAX_DELAY_MILLIS;
+    public double connectRatePerSec = ConnectionSupervisor.DEFAULT_CONNECTS_PER_SEC;
+    public int ioThreads = Runtime.getRuntime().availableProcessors();
+    public int inboundWorkers = Runtime.getRuntime().availableProcessors();
+    public int inboundQueueCapacity = InboundDispatcher.DEFAULT_QUEUE_CAPACITY;
+    public String configStoreFile;
+    public int attachMaxInFlight = BulkAttacher.DEFAULT_MAX_IN_FLIGHT;
+    public int gatewayAttachCapacity = AttachmentManager.DEFAULT_CAPACITY;
+    public long gatewayIdleSecs = TimeUnit.MILLISECONDS.toSeconds(AttachmentManager.DEFAULT_IDLE_MILLIS);
+    public int loadgenDevices = 1;
+    public double loadgenRatePerSec = 1.0;
+    public int[] loadgenPayloadBytes = {256};
+    public int loadgenDurationSecs = 60;
+    public String loadgenRamp = "constant";
+    public int loadgenRampSecs = 0;
+    public int loadgenReportSecs = 10;
+    public int loadgenStateSecs = 0;
+    public String publicKeyFile;
+    public String localBridgeQuotas = "cloud";
+    public long localBridgeLatencyMillis = 0;
+    public long localBridgeJitterMillis = 0;
 
     /** Construct an MqttExampleOptions class from command line flags. */
     public static @Nullable MqttExampleOptions fromFlags(String... args) {
@@ -104,7 +154,11 @@ public class MqttExampleOptions {
                         .desc(
                                 "Command to run:"
                                         + "\n\tlisten-for-config-messages"
-                                        + "\n\tsend-data-from-bound-device")
+                                        + "\n\tsend-data-from-bound-device"
+                                        + "\n\tsend-data-from-bound-devices"
+                                        + "\n\tload-test"
+                                        + "\n\tattach-devices"
+                                        + "\n\tlocal-bridge")
                         .build());
         options.addOption(
                 Option.builder()
@@ -142,6 +196,13 @@ public class MqttExampleOptions {
                         .hasArg()
                         .desc("Minutes to JWT token refresh (token expiration time).")
                         .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("token_refresh_margin_secs")
+                        .hasArg()
+                        .desc("Seconds before JWT expiration to mint and switch to the next token.")
+                        .build());
         options.addOption(
                 Option.builder()
                         .type(Number.class)
@@ -149,6 +210,13 @@ public class MqttExampleOptions {
                         .hasArg()
                         .desc("MQTT bridge port.")
                         .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("mqtt_bridge_tls")
+                        .hasArg()
+                        .desc("Whether to connect to the MQTT bridge over TLS: 'true', or 'false' for a local bridge.")
+                        .build());
         options.addOption(
                 Option.builder()
                         .type(String.class)
@@ -164,6 +232,284 @@ public class MqttExampleOptions {
                         .desc("Wait time (in seconds) for commands.")
                         .build());
 
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("max_in_flight")
+                        .hasArg()
+                        .desc("Maximum number of QoS 1 messages awaiting acknowledgement at once.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("batch_max_count")
+                        .hasArg()
+                        .desc("Maximum events packed into one message; 1 disables batching. State is never batched.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("batch_max_bytes")
+                        .hasArg()
+                        .desc("Maximum size in bytes of a batched message.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("batch_linger_ms")
+                        .hasArg()
+                        .desc("Milliseconds a partial batch may wait for more readings before it is sent.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("compression")
+                        .hasArg()
+                        .desc("Payload compression: 'none', 'gzip' or 'deflate'.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("compression_min_bytes")
+                        .hasArg()
+                        .desc("Payloads smaller than this many bytes are sent uncompressed.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("persistence_dir")
+                        .hasArg()
+                        .desc("Directory for the on-disk outbox of unacknowledged messages; in memory if unset.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("offline_queue_capacity")
+                        .hasArg()
+                        .desc("Messages held in memory while disconnected; 0 disables store-and-forward.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("offline_spill_dir")
+                        .hasArg()
+                        .desc("Directory the offline queue spills to once memory is full; memory only if unset.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("offline_spill_max_bytes")
+                        .hasArg()
+                        .desc("Maximum bytes the offline queue may spill to disk.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("offline_drain_rate")
+                        .hasArg()
+                        .desc("Queued messages sent per second after reconnecting.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("offline_drop_policy")
+                        .hasArg()
+                        .desc("What to drop when the offline queue is full: 'oldest', 'newest' or 'priority'.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("device_telemetry_per_sec")
+                        .hasArg()
+                        .desc("Telemetry messages a device may publish per second, or 0 for no limit.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("device_state_per_sec")
+                        .hasArg()
+                        .desc("State updates a device may publish per second, or 0 for no limit.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("rate_limit_overflow")
+                        .hasArg()
+                        .desc("What to do with a publish over a device's quota: 'queue' it or 'shed' it.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("rate_limit_max_queued")
+                        .hasArg()
+                        .desc("Publishes held per device and message type before more are shed.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("publish_interval_ms")
+                        .hasArg()
+                        .desc("Milliseconds between the device demo's messages. Defaults to 5000 for events and "
+                                + "15000 for state.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("reconnect_initial_ms")
+                        .hasArg()
+                        .desc("Ceiling in milliseconds of the first jittered reconnect delay.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("reconnect_max_ms")
+                        .hasArg()
+                        .desc("Largest ceiling in milliseconds the jittered reconnect delay grows to.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("connect_rate")
+                        .hasArg()
+                        .desc("Connect attempts per second allowed across all clients in this process.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("io_threads")
+                        .hasArg()
+                        .desc("Threads shared by all device sessions in a load test.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("loadgen_devices")
+                        .hasArg()
+                        .desc(
+                                "Devices to simulate in a load test, each on its own connection. With more"
+                                        + " than one, device ids are <device_id>-0, <device_id>-1 and so on.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("loadgen_rate")
+                        .hasArg()
+                        .desc("Messages per second published by each simulated device.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("loadgen_payload_bytes")
+                        .hasArg()
+                        .desc("Comma-separated payload sizes in bytes, used in turn by each simulated device.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("loadgen_duration_secs")
+                        .hasArg()
+                        .desc("How long a load test publishes for, including the ramp.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("loadgen_ramp")
+                        .hasArg()
+                        .desc("How a load test reaches its rate: 'constant', 'linear' or 'step'.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("loadgen_ramp_secs")
+                        .hasArg()
+                        .desc("Seconds a 'linear' or 'step' ramp takes to reach the full rate.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("loadgen_report_secs")
+                        .hasArg()
+                        .desc("Seconds between load test progress reports.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("loadgen_state_secs")
+                        .hasArg()
+                        .desc("Seconds between each simulated device's state heartbeats; 0 for none.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("public_key_file")
+                        .hasArg()
+                        .desc("Path to the device's public key (PEM, X.509 certificate or DER), registered with a local bridge.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("local_bridge_quotas")
+                        .hasArg()
+                        .desc("Quotas a local bridge enforces: 'cloud' for Cloud IoT Core's limits, or 'unlimited'.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("local_bridge_latency_ms")
+                        .hasArg()
+                        .desc("Milliseconds a local bridge holds every acknowledgement and delivery.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("local_bridge_jitter_ms")
+                        .hasArg()
+                        .desc("Extra random delay, up to this many milliseconds, added by a local bridge.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("inbound_workers")
+                        .hasArg()
+                        .desc("Threads that handle inbound config and command messages, partitioned by device.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("inbound_queue_capacity")
+                        .hasArg()
+                        .desc("Inbound messages each worker may queue before further ones are dropped.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(String.class)
+                        .longOpt("config_store_file")
+                        .hasArg()
+                        .desc("File recording the config applied to each device, so restarts skip unchanged configs; memory only if unset.")
+                        .build());
+
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("attach_max_in_flight")
+                        .hasArg()
+                        .desc("Attach or detach messages a gateway may have awaiting acknowledgement at once.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("gateway_attach_capacity")
+                        .hasArg()
+                        .desc("Devices a gateway keeps attached at once; the least recently used is detached beyond it.")
+                        .build());
+        options.addOption(
+                Option.builder()
+                        .type(Number.class)
+                        .longOpt("gateway_idle_secs")
+                        .hasArg()
+                        .desc("Seconds without a publish after which a gateway detaches a device.")
+                        .build());
+
         CommandLineParser parser = new DefaultParser();
         CommandLine commandLine;
         try {
@@ -197,6 +543,10 @@ public class MqttExampleOptions {
                 res.tokenExpMins =
                         ((Number) commandLine.getParsedOptionValue("token_exp_minutes")).intValue();
             }
+            if (commandLine.hasOption("token_refresh_margin_secs")) {
+                res.tokenRefreshMarginSecs =
+                        ((Number) commandLine.getParsedOptionValue("token_refresh_margin_secs")).intValue();
+            }
             if (commandLine.hasOption("mqtt_bridge_hostname")) {
                 res.mqttBridgeHostname = commandLine.getOptionValue("mqtt_bridge_hostname");
             }
@@ -204,9 +554,152 @@ public class MqttExampleOptions {
                 res.mqttBridgePort =
                         ((Number) commandLine.getParsedOptionValue("mqtt_bridge_port")).shortValue();
             }
+            if (commandLine.hasOption("mqtt_bridge_tls")) {
+                String tls = commandLine.getOptionValue("mqtt_bridge_tls");
+                if (!"true".equalsIgnoreCase(tls) && !"false".equalsIgnoreCase(tls)) {
+                    throw new ParseException("Invalid mqtt_bridge_tls " + tls + ". Should be 'true' or 'false'.");
+                }
+                res.mqttBridgeTls = Boolean.parseBoolean(tls);
+            }
             if (commandLine.hasOption("message_type")) {
                 res.messageType = commandLine.getOptionValue("message_type");
             }
+            if (commandLine.hasOption("max_in_flight")) {
+                res.maxInFlight = ((Number) commandLine.getParsedOptionValue("max_in_flight")).intValue();
+            }
+            if (commandLine.hasOption("batch_max_count")) {
+                res.batchMaxCount = ((Number) commandLine.getParsedOptionValue("batch_max_count")).intValue();
+            }
+            if (commandLine.hasOption("batch_max_bytes")) {
+                res.batchMaxBytes = ((Number) commandLine.getParsedOptionValue("batch_max_bytes")).intValue();
+            }
+            if (commandLine.hasOption("batch_linger_ms")) {
+                res.batchLingerMillis =
+                        ((Number) commandLine.getParsedOptionValue("batch_linger_ms")).longValue();
+            }
+            if (commandLine.hasOption("compression")) {
+                res.compression = commandLine.getOptionValue("compression");
+            }
+            if (commandLine.hasOption("compression_min_bytes")) {
+                res.compressionMinBytes =
+                        ((Number) commandLine.getParsedOptionValue("compression_min_bytes")).intValue();
+            }
+            if (commandLine.hasOption("persistence_dir")) {
+                res.persistenceDir = commandLine.getOptionValue("persistence_dir");
+            }
+            if (commandLine.hasOption("offline_queue_capacity")) {
+                res.offlineQueueCapacity =
+                        ((Number) commandLine.getParsedOptionValue("offline_queue_capacity")).intValue();
+            }
+            if (commandLine.hasOption("offline_spill_dir")) {
+                res.offlineSpillDir = commandLine.getOptionValue("offline_spill_dir");
+            }
+            if (commandLine.hasOption("offline_spill_max_bytes")) {
+                res.offlineSpillMaxBytes =
+                        ((Number) commandLine.getParsedOptionValue("offline_spill_max_bytes")).longValue();
+            }
+            if (commandLine.hasOption("offline_drain_rate")) {
+                res.offlineDrainRate = ((Number) commandLine.getParsedOptionValue("offline_drain_rate")).intValue();
+            }
+            if (commandLine.hasOption("offline_drop_policy")) {
+                res.offlineDropPolicy = commandLine.getOptionValue("offline_drop_policy");
+            }
+            if (commandLine.hasOption("device_telemetry_per_sec")) {
+                res.deviceTelemetryPerSec =
+                        ((Number) commandLine.getParsedOptionValue("device_telemetry_per_sec")).doubleValue();
+            }
+            if (commandLine.hasOption("device_state_per_sec")) {
+                res.deviceStatePerSec =
+                        ((Number) commandLine.getParsedOptionValue("device_state_per_sec")).doubleValue();
+            }
+            if (commandLine.hasOption("rate_limit_overflow")) {
+                res.rateLimitOverflow = commandLine.getOptionValue("rate_limit_overflow");
+            }
+            if (commandLine.hasOption("rate_limit_max_queued")) {
+                res.rateLimitMaxQueued =
+                        ((Number) commandLine.getParsedOptionValue("rate_limit_max_queued")).intValue();
+            }
+            if (commandLine.hasOption("publish_interval_ms")) {
+                res.publishIntervalMillis =
+                        ((Number) commandLine.getParsedOptionValue("publish_interval_ms")).longValue();
+            }
+            if (commandLine.hasOption("reconnect_initial_ms")) {
+                res.reconnectInitialMillis =
+                        ((Number) commandLine.getParsedOptionValue("reconnect_initial_ms")).longValue();
+            }
+            if (commandLine.hasOption("reconnect_max_ms")) {
+                res.reconnectMaxMillis = ((Number) commandLine.getParsedOptionValue("reconnect_max_ms")).longValue();
+            }
+            if (commandLine.hasOption("connect_rate")) {
+                res.connectRatePerSec = ((Number) commandLine.getParsedOptionValue("connect_rate")).doubleValue();
+            }
+            if (commandLine.hasOption("io_threads")) {
+                res.ioThreads = ((Number) commandLine.getParsedOptionValue("io_threads")).intValue();
+            }
+            if (commandLine.hasOption("inbound_workers")) {
+                res.inboundWorkers = ((Number) commandLine.getParsedOptionValue("inbound_workers")).intValue();
+            }
+            if (commandLine.hasOption("inbound_queue_capacity")) {
+                res.inboundQueueCapacity =
+                        ((Number) commandLine.getParsedOptionValue("inbound_queue_capacity")).intValue();
+            }
+            if (commandLine.hasOption("config_store_file")) {
+                res.configStoreFile = commandLine.getOptionValue("config_store_file");
+            }
+            if (commandLine.hasOption("attach_max_in_flight")) {
+                res.attachMaxInFlight =
+                        ((Number) commandLine.getParsedOptionValue("attach_max_in_flight")).intValue();
+            }
+            if (commandLine.hasOption("gateway_attach_capacity")) {
+                res.gatewayAttachCapacity =
+                        ((Number) commandLine.getParsedOptionValue("gateway_attach_capacity")).intValue();
+            }
+            if (commandLine.hasOption("gateway_idle_secs")) {
+                res.gatewayIdleSecs = ((Number) commandLine.getParsedOptionValue("gateway_idle_secs")).longValue();
+            }
+            if (commandLine.hasOption("loadgen_devices")) {
+                res.loadgenDevices = ((Number) commandLine.getParsedOptionValue("loadgen_devices")).intValue();
+            }
+            if (commandLine.hasOption("loadgen_rate")) {
+                res.loadgenRatePerSec = ((Number) commandLine.getParsedOptionValue("loadgen_rate")).doubleValue();
+            }
+            if (commandLine.hasOption("loadgen_payload_bytes")) {
+                String[] sizes = commandLine.getOptionValue("loadgen_payload_bytes").split(",");
+                res.loadgenPayloadBytes = new int[sizes.length];
+                for (int i = 0; i < sizes.length; i++) {
+                    res.loadgenPayloadBytes[i] = Integer.parseInt(sizes[i].trim());
+                }
+            }
+            if (commandLine.hasOption("loadgen_duration_secs")) {
+                res.loadgenDurationSecs =
+                        ((Number) commandLine.getParsedOptionValue("loadgen_duration_secs")).intValue();
+            }
+            if (commandLine.hasOption("loadgen_ramp")) {
+                res.loadgenRamp = commandLine.getOptionValue("loadgen_ramp");
+            }
+            if (commandLine.hasOption("loadgen_ramp_secs")) {
+                res.loadgenRampSecs = ((Number) commandLine.getParsedOptionValue("loadgen_ramp_secs")).intValue();
+            }
+            if (commandLine.hasOption("loadgen_report_secs")) {
+                res.loadgenReportSecs = ((Number) commandLine.getParsedOptionValue("loadgen_report_secs")).intValue();
+            }
+            if (commandLine.hasOption("loadgen_state_secs")) {
+                res.loadgenStateSecs = ((Number) commandLine.getParsedOptionValue("loadgen_state_secs")).intValue();
+            }
+            if (commandLine.hasOption("public_key_file")) {
+                res.publicKeyFile = commandLine.getOptionValue("public_key_file");
+            }
+            if (commandLine.hasOption("local_bridge_quotas")) {
+                res.localBridgeQuotas = commandLine.getOptionValue("local_bridge_quotas");
+            }
+            if (commandLine.hasOption("local_bridge_latency_ms")) {
+                res.localBridgeLatencyMillis =
+                        ((Number) commandLine.getParsedOptionValue("local_bridge_latency_ms")).longValue();
+            }
+            if (commandLine.hasOption("local_bridge_jitter_ms")) {
+                res.localBridgeJitterMillis =
+                        ((Number) commandLine.getParsedOptionValue("local_bridge_jitter_ms")).longValue();
+            }
             return res;
         } catch (ParseException e) {
             System.err.println(e.getMessage());
@@ -0,0 +1,255 @@
+package com.alok.iot.mqtt.gcp.auth;
+
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import com.alok.iot.mqtt.gcp.utils.HashedWheelTimer;
+import com.alok.iot.mqtt.gcp.utils.JwtUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a ready-to-use JWT for one device or gateway.
+ *
+ * The first token is minted by {@link #start()}; after that a scheduler mints the next token
+ * {@code refreshMarginSecs} before the current one expires and swaps it in atomically, so callers
+ * of {@link #currentToken()} never wait on a signature.
+ */
+public class JwtTokenProvider implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(JwtTokenProvider.class);
+
+    /** How long to wait before retrying a failed mint, at least and at most. */
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000L;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30000L;
+
+    /** Signs a new JWT. */
+    interface Minter {
+        String mint() throws NoSuchAlgorithmException, IOException, InvalidKeySpecException;
+    }
+
+    private final Minter minter;
+    private final int tokenExpMins;
+    private final long refreshMarginMillis;
+    private final long maxRetryDelayMillis;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final HashedWheelTimer timer;
+
+    private final AtomicReference<Token> current = new AtomicReference<>();
+    private final List<Consumer<Token>> listeners = new CopyOnWriteArrayList<>();
+    private volatile HashedWheelTimer.Timeout nextRefresh;
+    private volatile boolean closed;
+
+    public JwtTokenProvider(
+            String projectId, String privateKeyFile, String algorithm, int tokenExpMins, int refreshMarginSecs) {
+        this(projectId, privateKeyFile, algorithm, tokenExpMins, refreshMarginSecs,
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "jwt-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }), true, null);
+    }
+
+    /** Creates a provider that mints on a shared scheduler, which the caller remains responsible for. */
+    public JwtTokenProvider(
+            String projectId,
+            String privateKeyFile,
+            String algorithm,
+            int tokenExpMins,
+            int refreshMarginSecs,
+            ScheduledExecutorService scheduler) {
+        this(projectId, privateKeyFile, algorithm, tokenExpMins, refreshMarginSecs, scheduler, false, null);
+    }
+
+    /**
+     * Creates a provider that keeps its refresh deadline on a shared timing wheel and mints on a
+     * shared scheduler, so a fleet of devices needs no scheduler queue entry per device.
+     */
+    public JwtTokenProvider(
+            String projectId,
+            String privateKeyFile,
+            String algorithm,
+            int tokenExpMins,
+            int refreshMarginSecs,
+            ScheduledExecutorService scheduler,
+            HashedWheelTimer timer) {
+        this(projectId, privateKeyFile, algorithm, tokenExpMins, refreshMarginSecs, scheduler, false, timer);
+    }
+
+    private JwtTokenProvider(
+            String projectId,
+            String privateKeyFile,
+            String algorithm,
+            int tokenExpMins,
+            int refreshMarginSecs,
+            ScheduledExecutorService scheduler,
+            boolean ownsScheduler,
+            HashedWheelTimer timer) {
+        this(minterFor(projectId, privateKeyFile, algorithm, tokenExpMins), tokenExpMins, refreshMarginSecs,
+                MAX_RETRY_DELAY_MILLIS, scheduler, ownsScheduler, timer);
+    }
+
+    /** Creates a provider that mints with {@code minter}, retrying at most {@code maxRetryDelayMillis} apart. */
+    JwtTokenProvider(
+            Minter minter,
+            int tokenExpMins,
+            int refreshMarginSecs,
+            long maxRetryDelayMillis,
+            ScheduledExecutorService scheduler,
+            boolean ownsScheduler,
+            HashedWheelTimer timer) {
+        if (refreshMarginSecs < 0 || refreshMarginSecs >= TimeUnit.MINUTES.toSeconds(tokenExpMins)) {
+            throw new IllegalArgumentException(
+                    "Token refresh margin " + refreshMarginSecs + "s must be shorter than the "
+                            + tokenExpMins + " minute token lifetime.");
+        }
+        this.minter = minter;
+        this.tokenExpMins = tokenExpMins;
+        this.refreshMarginMillis = TimeUnit.SECONDS.toMillis(refreshMarginSecs);
+        this.maxRetryDelayMillis = maxRetryDelayMillis;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.timer = timer;
+    }
+
+    /** Mints the first token on the calling thread and schedules the refreshes after it. */
+    public void start() throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
+        Token token = mint();
+        current.set(token);
+        scheduleRefresh(token);
+    }
+
+    /** Returns the latest minted token; never blocks. Null until {@link #start()} has returned. */
+    public Token currentToken() {
+        return current.get();
+    }
+
+    /** Registers a listener called on the scheduler thread each time a new token is swapped in. */
+    public void addListener(Consumer<Token> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        HashedWheelTimer.Timeout refresh = nextRefresh;
+        if (refresh != null) {
+            refresh.cancel();
+        }
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static Minter minterFor(String projectId, String privateKeyFile, String algorithm, int tokenExpMins) {
+        JwtUtils.parseAlgorithm(algorithm);
+        return () -> JwtUtils.createJwt(projectId, privateKeyFile, algorithm, tokenExpMins);
+    }
+
+    private Token mint() throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
+        long issuedAt = System.currentTimeMillis();
+        long start = System.nanoTime();
+        String jwt = minter.mint();
+        MqttMetrics.jwtMinted(System.nanoTime() - start);
+        Token previous = current.get();
+        return new Token(
+                jwt,
+                issuedAt,
+                issuedAt + TimeUnit.MINUTES.toMillis(tokenExpMins),
+                previous == null ? 0 : previous.generation + 1);
+    }
+
+    private void scheduleRefresh(Token token) {
+        if (closed) {
+            return;
+        }
+        long delay = Math.max(0L, token.expiresAtMillis - refreshMarginMillis - System.currentTimeMillis());
+        scheduleRefresh(delay);
+    }
+
+    private void scheduleRefresh(long delayMillis) {
+        if (timer == null) {
+            scheduler.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            // Signing is too slow for the wheel's thread, so the wheel only hands the refresh over.
+            nextRefresh = timer.newTimeout(() -> scheduler.execute(this::refresh), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void refresh() {
+        if (closed) {
+            return;
+        }
+        Token token;
+        try {
+            token = mint();
+        } catch (Exception e) {
+            // Keep handing out the current token and try again well before it runs out.
+            long remaining = current.get().expiresAtMillis - System.currentTimeMillis();
+            long delay = Math.min(maxRetryDelayMillis, Math.max(MIN_RETRY_DELAY_MILLIS, remaining / 2));
+            LOG.warn("JWT refresh failed, retrying in {} ms: {}", delay, e.toString());
+            scheduleRefresh(delay);
+            return;
+        }
+        current.set(token);
+        scheduleRefresh(token);
+        for (Consumer<Token> listener : listeners) {
+            try {
+                listener.accept(token);
+            } catch (RuntimeException e) {
+                LOG.error("JWT refresh listener failed", e);
+            }
+        }
+    }
+
+    /** An immutable, signed JWT together with its lifetime. */
+    public static final class Token {
+        private final String jwt;
+        private final long issuedAtMillis;
+        private final long expiresAtMillis;
+        private final long generation;
+
+        Token(String jwt, long issuedAtMillis, long expiresAtMillis, long generation) {
+            this.jwt = jwt;
+            this.issuedAtMillis = issuedAtMillis;
+            this.expiresAtMillis = expiresAtMillis;
+            this.generation = generation;
+        }
+
+        public String getJwt() {
+            return jwt;
+        }
+
+        public char[] toPassword() {
+            return jwt.toCharArray();
+        }
+
+        public long getIssuedAtMillis() {
+            return issuedAtMillis;
+        }
+
+        public long getExpiresAtMillis() {
+            return expiresAtMillis;
+        }
+
+        /** Incremented on every refresh; compare to detect that a newer token is available. */
+        public long getGeneration() {
+            return generation;
+        }
+
+        @Override
+        public String toString() {
+            // Never print the token itself.
+            return "Token{generation=" + generation + ", expiresAtMillis=" + expiresAtMillis + "}";
+        }
+    }
+}
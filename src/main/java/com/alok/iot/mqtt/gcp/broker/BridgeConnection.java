@@ -0,0 +1,455 @@
+package com.alok.iot.mqtt.gcp.broker;
+
+import com.alok.iot.mqtt.gcp.gateway.GatewayError;
+import com.alok.iot.mqtt.gcp.utils.TokenBucket;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One client connection to a {@link LocalBridge}. Packets are read on the connection's own thread;
+ * anything sent back goes through {@link #send}, which applies the bridge's latency.
+ */
+final class BridgeConnection implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(BridgeConnection.class);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    /** Cloud IoT Core's MQTT packet limit: a 256 KB payload plus room for the topic. */
+    private static final int MAX_PACKET_BYTES = 256 * 1024 + 1024;
+
+    private final LocalBridge bridge;
+    private final Socket socket;
+    private final Object writeLock = new Object();
+
+    private volatile String deviceId;
+    private volatile boolean gateway;
+    private final Set<String> attached = ConcurrentHashMap.newKeySet();
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket[]> quotaBuckets = new ConcurrentHashMap<>();
+
+    // Guarded by writeLock.
+    private int nextPacketId = 1;
+    private final ArrayDeque<DelayedPacket> delayed = new ArrayDeque<>();
+    private boolean closed;
+
+    BridgeConnection(LocalBridge bridge, Socket socket) {
+        this.bridge = bridge;
+        this.socket = socket;
+    }
+
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    boolean isDirectlyConnected(String id) {
+        return id.equals(deviceId);
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            MqttPackets.Packet connect = MqttPackets.read(in, MAX_PACKET_BYTES);
+            if (connect == null || connect.type != MqttPackets.CONNECT || !handleConnect(connect)) {
+                return;
+            }
+            MqttPackets.Packet packet;
+            while ((packet = MqttPackets.read(in, MAX_PACKET_BYTES)) != null) {
+                if (!handle(packet)) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            LOG.info("Closing idle connection for {}", deviceId);
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                LOG.info("Connection for {} failed: {}", deviceId, e.toString());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Sends {@code topic} to this connection if it is subscribed to it, once, at the highest QoS
+     * granted to a matching filter. Returns whether it was subscribed.
+     */
+    boolean deliver(BridgeTopic topic, byte[] payload) {
+        int qos = -1;
+        for (Subscription subscription : subscriptions.values()) {
+            if (subscription.filter.matches(topic)) {
+                qos = Math.max(qos, subscription.qos);
+            }
+        }
+        if (qos < 0) {
+            return false;
+        }
+        int packetId = 0;
+        if (qos > 0) {
+            synchronized (writeLock) {
+                packetId = nextPacketId;
+                nextPacketId = nextPacketId == 0xFFFF ? 1 : nextPacketId + 1;
+            }
+        }
+        send(MqttPackets.publish(topic.toString(), payload, qos, packetId));
+        return true;
+    }
+
+    void close() {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        String id = deviceId;
+        if (id != null) {
+            bridge.unroute(id, this);
+        }
+        for (String attachedId : attached) {
+            bridge.unroute(attachedId, this);
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+    }
+
+    private boolean handleConnect(MqttPackets.Packet packet) throws IOException {
+        MqttPackets.Reader reader = new MqttPackets.Reader(packet.body);
+        String protocol = reader.readString();
+        int level = reader.readByte();
+        int flags = reader.readByte();
+        int keepAliveSecs = reader.readShort();
+        String clientId = reader.readString();
+        if ((flags & 0x04) != 0) {
+            reader.readString();
+            reader.readBinary();
+        }
+        if ((flags & 0x80) != 0) {
+            reader.readString();
+        }
+        String password = (flags & 0x40) != 0 ? new String(reader.readBinary(), StandardCharsets.UTF_8) : null;
+
+        // Cloud IoT Core only speaks MQTT 3.1.1.
+        if (!"MQTT".equals(protocol) || level != 4) {
+            return refuse(MqttPackets.CONNACK_BAD_PROTOCOL, clientId, "protocol " + protocol + " " + level);
+        }
+        String id = bridge.registry().deviceIdOf(clientId);
+        if (id == null || !bridge.registry().isRegistered(id)) {
+            return refuse(MqttPackets.CONNACK_IDENTIFIER_REJECTED, clientId, "unknown client id");
+        }
+        // The username is ignored, but Paho only sends the password along with one.
+        if ((flags & 0x80) == 0 || password == null) {
+            return refuse(MqttPackets.CONNACK_BAD_CREDENTIALS, clientId, "no JWT");
+        }
+        if (!bridge.registry().verify(id, password)) {
+            return refuse(MqttPackets.CONNACK_NOT_AUTHORIZED, clientId, "JWT rejected");
+        }
+
+        deviceId = id;
+        gateway = bridge.registry().isGateway(id);
+        socket.setSoTimeout(keepAliveSecs == 0 ? 0 : (int) TimeUnit.SECONDS.toMillis(keepAliveSecs) * 3 / 2);
+        bridge.route(id, this);
+        send(MqttPackets.connack(MqttPackets.CONNACK_ACCEPTED));
+        LOG.debug("Accepted {}{}", id, gateway ? " (gateway)" : "");
+        return true;
+    }
+
+    private boolean refuse(int returnCode, String clientId, String reason) {
+        LOG.info("Refusing {}: {}", clientId, reason);
+        // Written straight away: the connection is closed as soon as this returns.
+        write(MqttPackets.connack(returnCode));
+        return false;
+    }
+
+    /** Handles one packet after CONNECT; returns false to drop the connection. */
+    private boolean handle(MqttPackets.Packet packet) throws IOException {
+        switch (packet.type) {
+            case MqttPackets.PUBLISH:
+                return handlePublish(packet);
+            case MqttPackets.PUBACK:
+                return true;
+            case MqttPackets.SUBSCRIBE:
+                return handleSubscribe(packet);
+            case MqttPackets.UNSUBSCRIBE:
+                return handleUnsubscribe(packet);
+            case MqttPackets.PINGREQ:
+                send(MqttPackets.pingresp());
+                return true;
+            case MqttPackets.DISCONNECT:
+                return false;
+            default:
+                return violation("unexpected packet type " + packet.type);
+        }
+    }
+
+    private boolean handlePublish(MqttPackets.Packet packet) throws IOException {
+        int qos = (packet.flags >>> 1) & 0x03;
+        MqttPackets.Reader reader = new MqttPackets.Reader(packet.body);
+        String topicName = reader.readString();
+        int packetId = qos > 0 ? reader.readShort() : 0;
+        byte[] payload = reader.readRemaining();
+        if (qos > 1) {
+            return violation("QoS " + qos + " is not supported");
+        }
+
+        BridgeTopic topic = BridgeTopic.parse(topicName);
+        if (topic == null || topic.hasWildcard()) {
+            if (gateway) {
+                bridge.gatewayError(this, GatewayError.INVALID_MQTT_TOPIC, null, "Invalid topic " + topicName,
+                        packetId);
+                return ack(qos, packetId);
+            }
+            return violation("publish to invalid topic " + topicName);
+        }
+        boolean self = topic.deviceId.equals(deviceId);
+        switch (topic.kind) {
+            case ATTACH:
+                if (!self) {
+                    attach(topic.deviceId, payload, packetId);
+                }
+                return ack(qos, packetId);
+            case DETACH:
+                if (!self && attached.remove(topic.deviceId)) {
+                    bridge.unroute(topic.deviceId, this);
+                    subscriptions.values().removeIf(subscribed -> subscribed.filter.deviceId.equals(topic.deviceId));
+                }
+                return ack(qos, packetId);
+            case EVENTS:
+            case STATE:
+                if (!self && !attached.contains(topic.deviceId)) {
+                    if (gateway) {
+                        bridge.gatewayError(this, GatewayError.ATTACHMENT_ERROR, topic.deviceId,
+                                "Device is not attached to this gateway", packetId);
+                        return ack(qos, packetId);
+                    }
+                    return violation("publish to another device's topic " + topicName);
+                }
+                String breach = checkQuota(topic, payload.length);
+                if (breach != null) {
+                    if (self) {
+                        return violation(breach);
+                    }
+                    bridge.gatewayError(this, GatewayError.DEVICE_QUOTA_EXCEEDED, topic.deviceId, breach,
+                            packetId);
+                    return ack(qos, packetId);
+                }
+                bridge.published(topic.deviceId, topic, payload);
+                return ack(qos, packetId);
+            default:
+                return violation("publish to subscribe-only topic " + topicName);
+        }
+    }
+
+    private void attach(String target, byte[] payload, int packetId) {
+        if (!gateway) {
+            bridge.gatewayError(this, GatewayError.ATTACHMENT_ERROR, target, "Not a gateway", packetId);
+            return;
+        }
+        if (!bridge.registry().isRegistered(target)) {
+            bridge.gatewayError(this, GatewayError.DEVICE_NOT_FOUND, target, "Device not found", packetId);
+            return;
+        }
+        if (!bridge.registry().isBound(deviceId, target)) {
+            bridge.gatewayError(this, GatewayError.ATTACHMENT_ERROR, target,
+                    "Device is not bound to this gateway", packetId);
+            return;
+        }
+        String authorization = null;
+        if (payload.length > 0) {
+            try {
+                authorization = new JSONObject(new String(payload, StandardCharsets.UTF_8)).optString("authorization",
+                        null);
+            } catch (JSONException e) {
+                bridge.gatewayError(this, GatewayError.ATTACHMENT_ERROR, target, "Malformed attach payload",
+                        packetId);
+                return;
+            }
+        }
+        if (authorization != null && !bridge.registry().verify(target, authorization)) {
+            bridge.gatewayError(this, GatewayError.ATTACHMENT_ERROR, target, "Device JWT rejected", packetId);
+            return;
+        }
+        attached.add(target);
+        bridge.route(target, this);
+    }
+
+    /** Returns why {@code topic} breaks a quota, or null if it does not. */
+    private String checkQuota(BridgeTopic topic, int payloadBytes) {
+        BridgeQuotas quotas = bridge.quotas();
+        boolean state = topic.kind == BridgeTopic.Kind.STATE;
+        int maxBytes = state ? quotas.getMaxStateBytes() : quotas.getMaxTelemetryBytes();
+        if (payloadBytes > maxBytes) {
+            return "Payload of " + payloadBytes + " bytes exceeds the limit of " + maxBytes;
+        }
+        double rate = state ? quotas.getStatePerSec() : quotas.getTelemetryPerSec();
+        if (rate == 0) {
+            return null;
+        }
+        TokenBucket[] buckets = quotaBuckets.computeIfAbsent(topic.deviceId, id -> new TokenBucket[] {
+                new TokenBucket(quotas.getTelemetryPerSec(), (int) Math.max(1, quotas.getTelemetryPerSec())),
+                new TokenBucket(quotas.getStatePerSec(), (int) Math.max(1, quotas.getStatePerSec()))
+        });
+        if (!buckets[state ? 1 : 0].tryAcquire()) {
+            return (state ? "State" : "Telemetry") + " rate exceeds " + rate + " per second";
+        }
+        return null;
+    }
+
+    private boolean handleSubscribe(MqttPackets.Packet packet) throws IOException {
+        MqttPackets.Reader reader = new MqttPackets.Reader(packet.body);
+        int packetId = reader.readShort();
+        List<BridgeTopic> granted = new ArrayList<>();
+        List<Integer> returnCodes = new ArrayList<>();
+        while (reader.hasRemaining()) {
+            String filter = reader.readString();
+            int qos = reader.readByte() & 0x03;
+            BridgeTopic topic = BridgeTopic.parse(filter);
+            if (topic == null || !mayReceive(topic)) {
+                returnCodes.add(MqttPackets.SUBACK_FAILURE);
+                continue;
+            }
+            // QoS 2 is downgraded, as Cloud IoT Core does.
+            int grantedQos = Math.min(qos, 1);
+            subscriptions.put(filter, new Subscription(topic, grantedQos));
+            granted.add(topic);
+            returnCodes.add(grantedQos);
+        }
+        int[] codes = new int[returnCodes.size()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = returnCodes.get(i);
+        }
+        send(MqttPackets.suback(packetId, codes));
+
+        // Like the real bridge, a config subscription immediately receives the latest config.
+        for (BridgeTopic topic : granted) {
+            byte[] config = topic.kind == BridgeTopic.Kind.CONFIG ? bridge.config(topic.deviceId) : null;
+            if (config != null) {
+                deliver(topic, config);
+            }
+        }
+        return true;
+    }
+
+    private boolean mayReceive(BridgeTopic filter) {
+        if (!filter.deviceId.equals(deviceId) && !attached.contains(filter.deviceId)) {
+            return false;
+        }
+        switch (filter.kind) {
+            case CONFIG:
+            case ERRORS:
+                return filter.subfolder == null;
+            case COMMANDS:
+                return filter.subfolder == null || "#".equals(filter.subfolder) || !filter.hasWildcard();
+            default:
+                return false;
+        }
+    }
+
+    private boolean handleUnsubscribe(MqttPackets.Packet packet) throws IOException {
+        MqttPackets.Reader reader = new MqttPackets.Reader(packet.body);
+        int packetId = reader.readShort();
+        while (reader.hasRemaining()) {
+            subscriptions.remove(reader.readString());
+        }
+        send(MqttPackets.unsuback(packetId));
+        return true;
+    }
+
+    private boolean ack(int qos, int packetId) {
+        if (qos > 0) {
+            send(MqttPackets.puback(packetId));
+        }
+        return true;
+    }
+
+    private boolean violation(String reason) {
+        LOG.info("Disconnecting {}: {}", deviceId, reason);
+        return false;
+    }
+
+    /** Writes {@code packet} after the bridge's latency, never ahead of anything sent earlier. */
+    private void send(byte[] packet) {
+        long delayMillis = bridge.delayMillis();
+        long delayNanos;
+        synchronized (writeLock) {
+            long now = System.nanoTime();
+            if (delayMillis == 0 && delayed.isEmpty()) {
+                write(packet);
+                return;
+            }
+            long sendAtNanos = now + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            if (!delayed.isEmpty()) {
+                sendAtNanos = Math.max(sendAtNanos, delayed.peekLast().sendAtNanos);
+            }
+            delayed.addLast(new DelayedPacket(sendAtNanos, packet));
+            delayNanos = sendAtNanos - now;
+        }
+        bridge.scheduler().schedule(this::flushDelayed, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Writes every delayed packet that is due, oldest first. */
+    private void flushDelayed() {
+        synchronized (writeLock) {
+            long now = System.nanoTime();
+            while (!delayed.isEmpty() && delayed.peekFirst().sendAtNanos <= now) {
+                write(delayed.pollFirst().packet);
+            }
+        }
+    }
+
+    private void write(byte[] packet) {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(packet);
+                out.flush();
+            } catch (IOException e) {
+                LOG.debug("Write to {} failed: {}", deviceId, e.toString());
+            }
+        }
+    }
+
+    /** A subscribed filter and the QoS granted for it. */
+    private static final class Subscription {
+        final BridgeTopic filter;
+        final int qos;
+
+        Subscription(BridgeTopic filter, int qos) {
+            this.filter = filter;
+            this.qos = qos;
+        }
+    }
+
+    private static final class DelayedPacket {
+        final long sendAtNanos;
+        final byte[] packet;
+
+        DelayedPacket(long sendAtNanos, byte[] packet) {
+            this.sendAtNanos = sendAtNanos;
+            this.packet = packet;
+        }
+    }
+}
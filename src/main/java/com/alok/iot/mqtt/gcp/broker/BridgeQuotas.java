@@ -0,0 +1,69 @@
+package com.alok.iot.mqtt.gcp.broker;
+
+/**
+ * Per-device limits a {@link LocalBridge} enforces. A device directly connected to the bridge
+ * that breaks a limit is disconnected, as Cloud IoT Core does; a breach on behalf of a device
+ * attached to a gateway is reported on the gateway's errors topic instead.
+ */
+public final class BridgeQuotas {
+    /** Cloud IoT Core's published per-device limits. */
+    public static final BridgeQuotas CLOUD_IOT_DEFAULTS = new BridgeQuotas(100, 1, 256 * 1024, 64 * 1024);
+    /** No rate limits, only the protocol's own payload limit. */
+    public static final BridgeQuotas UNLIMITED = new BridgeQuotas(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    private final double telemetryPerSec;
+    private final double statePerSec;
+    private final int maxTelemetryBytes;
+    private final int maxStateBytes;
+
+    /**
+     * @param telemetryPerSec telemetry messages per second per device, or 0 for no limit
+     * @param statePerSec state updates per second per device, or 0 for no limit
+     */
+    public BridgeQuotas(double telemetryPerSec, double statePerSec, int maxTelemetryBytes, int maxStateBytes) {
+        if (telemetryPerSec < 0 || statePerSec < 0 || maxTelemetryBytes < 1 || maxStateBytes < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid quotas: telemetryPerSec=" + telemetryPerSec + ", statePerSec=" + statePerSec
+                            + ", maxTelemetryBytes=" + maxTelemetryBytes + ", maxStateBytes=" + maxStateBytes);
+        }
+        this.telemetryPerSec = telemetryPerSec;
+        this.statePerSec = statePerSec;
+        this.maxTelemetryBytes = maxTelemetryBytes;
+        this.maxStateBytes = maxStateBytes;
+    }
+
+    /** Returns {@link #CLOUD_IOT_DEFAULTS} for 'cloud' and {@link #UNLIMITED} for 'unlimited'. */
+    public static BridgeQuotas forName(String name) {
+        if ("cloud".equalsIgnoreCase(name)) {
+            return CLOUD_IOT_DEFAULTS;
+        } else if ("unlimited".equalsIgnoreCase(name)) {
+            return UNLIMITED;
+        }
+        throw new IllegalArgumentException(
+                "Invalid quotas " + name + ". Should be one of 'cloud' or 'unlimited'.");
+    }
+
+    public double getTelemetryPerSec() {
+        return telemetryPerSec;
+    }
+
+    public double getStatePerSec() {
+        return statePerSec;
+    }
+
+    public int getMaxTelemetryBytes() {
+        return maxTelemetryBytes;
+    }
+
+    public int getMaxStateBytes() {
+        return maxStateBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "telemetry %s/s up to %d bytes, state %s/s up to %d bytes",
+                telemetryPerSec == 0 ? "unlimited" : telemetryPerSec, maxTelemetryBytes,
+                statePerSec == 0 ? "unlimited" : statePerSec, maxStateBytes);
+    }
+}
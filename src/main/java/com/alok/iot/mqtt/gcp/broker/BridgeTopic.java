@@ -0,0 +1,87 @@
+package com.alok.iot.mqtt.gcp.broker;
+
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+
+/**
+ * A topic or topic filter in Cloud IoT Core's {@code /devices/{device-id}/{kind}[/{subfolder}]}
+ * layout. Only events and commands take a subfolder.
+ */
+final class BridgeTopic {
+    enum Kind {
+        EVENTS, STATE, CONFIG, COMMANDS, ATTACH, DETACH, ERRORS
+    }
+
+    final String deviceId;
+    final Kind kind;
+    /** The part after the kind, or null if there is none. */
+    final String subfolder;
+
+    private BridgeTopic(String deviceId, Kind kind, String subfolder) {
+        this.deviceId = deviceId;
+        this.kind = kind;
+        this.subfolder = subfolder;
+    }
+
+    /** The device's topic of {@code kind}, under {@code subfolder} if not null. */
+    static BridgeTopic of(String deviceId, Kind kind, String subfolder) {
+        return new BridgeTopic(deviceId, kind, subfolder);
+    }
+
+    /** Parses {@code topic}, returning null if it is not in the bridge's layout. */
+    static BridgeTopic parse(String topic) {
+        String deviceId = DeviceTopics.deviceIdOf(topic);
+        if (deviceId == null) {
+            return null;
+        }
+        int idEnd = DeviceTopics.PREFIX.length() + deviceId.length();
+        int kindEnd = topic.indexOf('/', idEnd + 1);
+        String kindName = kindEnd < 0 ? topic.substring(idEnd + 1) : topic.substring(idEnd + 1, kindEnd);
+        Kind kind = kindOf(kindName);
+        if (kind == null) {
+            return null;
+        }
+        String subfolder = null;
+        if (kindEnd >= 0) {
+            subfolder = topic.substring(kindEnd + 1);
+            if (subfolder.isEmpty() || (kind != Kind.EVENTS && kind != Kind.COMMANDS)) {
+                return null;
+            }
+        }
+        return new BridgeTopic(deviceId, kind, subfolder);
+    }
+
+    /** True if the device id or subfolder holds an MQTT wildcard, which is never valid in a published topic. */
+    boolean hasWildcard() {
+        return deviceId.indexOf('+') >= 0
+                || deviceId.indexOf('#') >= 0
+                || (subfolder != null && (subfolder.indexOf('+') >= 0 || subfolder.indexOf('#') >= 0));
+    }
+
+    /** True if this filter, as subscribed, receives messages published to {@code topic}. */
+    boolean matches(BridgeTopic topic) {
+        if (!deviceId.equals(topic.deviceId) || kind != topic.kind) {
+            return false;
+        }
+        if (subfolder == null) {
+            return topic.subfolder == null;
+        }
+        if ("#".equals(subfolder)) {
+            return true;
+        }
+        return subfolder.equals(topic.subfolder);
+    }
+
+    private static Kind kindOf(String name) {
+        for (Kind kind : Kind.values()) {
+            if (kind.name().toLowerCase().equals(name)) {
+                return kind;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return DeviceTopics.PREFIX + deviceId + "/" + kind.name().toLowerCase() + (subfolder == null ? "" : "/" + subfolder);
+    }
+}
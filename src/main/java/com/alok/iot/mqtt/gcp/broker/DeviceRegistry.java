@@ -0,0 +1,169 @@
+package com.alok.iot.mqtt.gcp.broker;
+
+import com.alok.iot.mqtt.gcp.utils.JwtUtils;
+import com.alok.iot.mqtt.gcp.utils.MqttUtils;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The devices, gateways, public keys and gateway bindings a {@link LocalBridge} accepts, for one
+ * Cloud IoT Core registry.
+ */
+public class DeviceRegistry {
+    /** Cloud IoT Core rejects tokens that are valid for longer than a day. */
+    private static final long MAX_TOKEN_LIFETIME_SECS = TimeUnit.DAYS.toSeconds(1);
+    private static final long ALLOWED_CLOCK_SKEW_SECS = 600;
+
+    private final String projectId;
+    private final String cloudRegion;
+    private final String registryId;
+    private final ConcurrentMap<String, Device> devices = new ConcurrentHashMap<>();
+
+    public DeviceRegistry(String projectId, String cloudRegion, String registryId) {
+        this.projectId = projectId;
+        this.cloudRegion = cloudRegion;
+        this.registryId = registryId;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    /**
+     * Registers a device that authenticates with any of {@code publicKeys}. A device registered
+     * without keys can only talk through a gateway.
+     */
+    public void registerDevice(String deviceId, PublicKey... publicKeys) {
+        devices.put(deviceId, new Device(false, publicKeys));
+    }
+
+    public void registerGateway(String gatewayId, PublicKey... publicKeys) {
+        devices.put(gatewayId, new Device(true, publicKeys));
+    }
+
+    /** Lets {@code gatewayId} attach {@code deviceId} and act on its behalf. */
+    public void bind(String gatewayId, String deviceId) {
+        Device gateway = devices.get(gatewayId);
+        if (gateway == null || !gateway.gateway) {
+            throw new IllegalArgumentException("No gateway registered as " + gatewayId);
+        }
+        if (!devices.containsKey(deviceId)) {
+            throw new IllegalArgumentException("No device registered as " + deviceId);
+        }
+        gateway.boundDevices.add(deviceId);
+    }
+
+    public void unbind(String gatewayId, String deviceId) {
+        Device gateway = devices.get(gatewayId);
+        if (gateway != null) {
+            gateway.boundDevices.remove(deviceId);
+        }
+    }
+
+    public boolean isRegistered(String deviceId) {
+        return devices.containsKey(deviceId);
+    }
+
+    public boolean isGateway(String deviceId) {
+        Device device = devices.get(deviceId);
+        return device != null && device.gateway;
+    }
+
+    public boolean isBound(String gatewayId, String deviceId) {
+        Device gateway = devices.get(gatewayId);
+        return gateway != null && gateway.boundDevices.contains(deviceId);
+    }
+
+    /** Returns the device id in an MQTT client id for this registry, or null if it names another registry. */
+    String deviceIdOf(String clientId) {
+        String prefix = MqttUtils.clientId(projectId, cloudRegion, registryId, "");
+        if (!clientId.startsWith(prefix) || clientId.length() == prefix.length()) {
+            return null;
+        }
+        return clientId.substring(prefix.length());
+    }
+
+    /**
+     * True if {@code jwt} is signed by one of the device's keys, is addressed to this project, has
+     * not expired and is valid for no longer than a day.
+     */
+    boolean verify(String deviceId, String jwt) {
+        Device device = devices.get(deviceId);
+        if (device == null || jwt == null) {
+            return false;
+        }
+        for (PublicKey key : device.publicKeys) {
+            try {
+                Claims claims =
+                        Jwts.parser()
+                                .setSigningKey(key)
+                                .requireAudience(projectId)
+                                .setAllowedClockSkewSeconds(ALLOWED_CLOCK_SKEW_SECS)
+                                .parseClaimsJws(jwt)
+                                .getBody();
+                if (claims.getIssuedAt() == null || claims.getExpiration() == null) {
+                    return false;
+                }
+                long lifetimeMillis = claims.getExpiration().getTime() - claims.getIssuedAt().getTime();
+                return lifetimeMillis <= TimeUnit.SECONDS.toMillis(MAX_TOKEN_LIFETIME_SECS);
+            } catch (JwtException | IllegalArgumentException e) {
+                // Wrong key, wrong audience, expired or malformed: try the device's next key.
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Loads a public key registered with Cloud IoT Core: a PEM public key, a PEM X.509
+     * certificate, or a DER encoded public key, for the named algorithm, either 'RS256' or 'ES256'.
+     */
+    public static PublicKey loadPublicKey(String publicKeyFile, String algorithm)
+            throws IOException, GeneralSecurityException {
+        byte[] bytes = Files.readAllBytes(Paths.get(publicKeyFile));
+        String text = new String(bytes, StandardCharsets.US_ASCII);
+        if (text.contains("-----BEGIN CERTIFICATE-----")) {
+            return CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(bytes))
+                    .getPublicKey();
+        }
+        if (text.contains("-----BEGIN PUBLIC KEY-----")) {
+            String base64 = text.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+            bytes = Base64.getDecoder().decode(base64);
+        }
+        SignatureAlgorithm signatureAlgorithm = JwtUtils.parseAlgorithm(algorithm);
+        return KeyFactory.getInstance(signatureAlgorithm == SignatureAlgorithm.ES256 ? "EC" : "RSA")
+                .generatePublic(new X509EncodedKeySpec(bytes));
+    }
+
+    private static final class Device {
+        final boolean gateway;
+        final List<PublicKey> publicKeys;
+        final Set<String> boundDevices = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        Device(boolean gateway, PublicKey[] publicKeys) {
+            this.gateway = gateway;
+            this.publicKeys = Arrays.asList(publicKeys.clone());
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.alok.iot.mqtt.gcp.broker;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for the Cloud IoT Core MQTT bridge, for tests, benchmarks and offline
+ * development.
+ *
+ * It speaks plain MQTT 3.1.1 over TCP on the loopback interface and applies the bridge's rules:
+ * the client id must name a device in the {@link DeviceRegistry}, the password must be a JWT
+ * signed by one of that device's keys, a device may only publish to its own
+ * {@code events}, {@code state}, {@code attach} and {@code detach} topics and subscribe to its own
+ * {@code config}, {@code commands} and {@code errors} topics, and a gateway may do the same for
+ * devices bound to it once it has attached them. QoS 2 is refused, the latest config is sent on
+ * subscribing to it, and the {@link BridgeQuotas} are enforced. Every acknowledgement and
+ * delivery can be delayed by a fixed latency plus uniform jitter, without reordering what one
+ * connection receives.
+ *
+ * Point a client at it with {@code mqtt_bridge_hostname=localhost}, the port it was started on,
+ * and {@code mqtt_bridge_tls=false}: it speaks plain TCP.
+ */
+public class LocalBridge implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalBridge.class);
+
+    /** Receives every message a device publishes to its events or state topic. */
+    public interface MessageListener {
+        void onMessage(String deviceId, String topic, byte[] payload);
+    }
+
+    private final DeviceRegistry registry;
+    private final BridgeQuotas quotas;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger connectionIndex = new AtomicInteger();
+
+    /** Which connection currently speaks for each device, directly or through a gateway. */
+    private final ConcurrentMap<String, BridgeConnection> routes = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> configs = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> states = new ConcurrentHashMap<>();
+    private volatile MessageListener listener = (deviceId, topic, payload) -> { };
+    private volatile ServerSocket serverSocket;
+
+    public LocalBridge(DeviceRegistry registry, BridgeQuotas quotas) {
+        this(registry, quotas, 0, 0);
+    }
+
+    /** Creates a bridge that holds every acknowledgement and delivery for {@code latencyMillis} plus up to {@code jitterMillis}. */
+    public LocalBridge(DeviceRegistry registry, BridgeQuotas quotas, long latencyMillis, long jitterMillis) {
+        if (latencyMillis < 0 || jitterMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid latency: latencyMillis=" + latencyMillis + ", jitterMillis=" + jitterMillis);
+        }
+        this.registry = registry;
+        this.quotas = quotas;
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "local-bridge-latency");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Starts accepting connections on the loopback interface; pass 0 for any free port. Returns the port. */
+    public synchronized int start(int port) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Already listening on port " + serverSocket.getLocalPort());
+        }
+        ServerSocket socket = new ServerSocket();
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serverSocket = socket;
+        Thread acceptor = new Thread(() -> accept(socket), "local-bridge-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("Local bridge listening on port {} ({})", socket.getLocalPort(), quotas);
+        return socket.getLocalPort();
+    }
+
+    public DeviceRegistry getRegistry() {
+        return registry;
+    }
+
+    public void setMessageListener(MessageListener listener) {
+        this.listener = listener;
+    }
+
+    /** Stores {@code config} as the device's latest config and sends it if the device is subscribed. */
+    public void setConfig(String deviceId, byte[] config) {
+        configs.put(deviceId, config.clone());
+        BridgeConnection connection = routes.get(deviceId);
+        if (connection != null) {
+            connection.deliver(BridgeTopic.of(deviceId, BridgeTopic.Kind.CONFIG, null), config);
+        }
+    }
+
+    /**
+     * Sends a command to the device, under {@code subfolder} if not null. Like Cloud IoT Core,
+     * returns false instead if the device is not connected and subscribed to commands.
+     */
+    public boolean sendCommand(String deviceId, String subfolder, byte[] payload) {
+        BridgeConnection connection = routes.get(deviceId);
+        return connection != null
+                && connection.deliver(BridgeTopic.of(deviceId, BridgeTopic.Kind.COMMANDS, subfolder), payload);
+    }
+
+    /** The device's last reported state, or null if it has not reported one. */
+    public byte[] getState(String deviceId) {
+        byte[] state = states.get(deviceId);
+        return state == null ? null : state.clone();
+    }
+
+    /** True if the device is connected directly or attached through a connected gateway. */
+    public boolean isConnected(String deviceId) {
+        return routes.containsKey(deviceId);
+    }
+
+    @Override
+    public void close() {
+        ServerSocket socket;
+        synchronized (this) {
+            socket = serverSocket;
+            serverSocket = null;
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.warn("Closing the local bridge socket failed: {}", e.toString());
+            }
+        }
+        for (BridgeConnection connection : new ArrayList<>(routes.values())) {
+            connection.close();
+        }
+        scheduler.shutdownNow();
+    }
+
+    BridgeQuotas quotas() {
+        return quotas;
+    }
+
+    /** Makes {@code connection} the route to {@code deviceId}, closing any connection it replaces. */
+    void route(String deviceId, BridgeConnection connection) {
+        BridgeConnection previous = routes.put(deviceId, connection);
+        if (previous != null && previous != connection && previous.isDirectlyConnected(deviceId)) {
+            // A second connection with the same client id takes over, as on the real bridge.
+            previous.close();
+        }
+    }
+
+    void unroute(String deviceId, BridgeConnection connection) {
+        routes.remove(deviceId, connection);
+    }
+
+    byte[] config(String deviceId) {
+        return configs.get(deviceId);
+    }
+
+    void published(String deviceId, BridgeTopic topic, byte[] payload) {
+        if (topic.kind == BridgeTopic.Kind.STATE) {
+            states.put(deviceId, payload);
+        }
+        try {
+            listener.onMessage(deviceId, topic.toString(), payload);
+        } catch (RuntimeException e) {
+            LOG.warn("Message listener failed for {}", topic, e);
+        }
+    }
+
+    /**
+     * Publishes a Cloud IoT Core style error report to the gateway's errors topic; {@code errorType}
+     * is one of the types in {@link com.alok.iot.mqtt.gcp.gateway.GatewayError}.
+     */
+    void gatewayError(BridgeConnection gateway, String errorType, String deviceId, String description, int messageId) {
+        JSONObject error = new JSONObject();
+        error.put("error_type", errorType);
+        error.put("device_id", deviceId);
+        error.put("description", description);
+        if (messageId > 0) {
+            error.put("message_id", messageId);
+        }
+        gateway.deliver(
+                BridgeTopic.of(gateway.getDeviceId(), BridgeTopic.Kind.ERRORS, null),
+                error.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** How long to hold the next acknowledgement or delivery. */
+    long delayMillis() {
+        if (jitterMillis == 0) {
+            return latencyMillis;
+        }
+        return latencyMillis + ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+    }
+
+    ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    DeviceRegistry registry() {
+        return registry;
+    }
+
+    private void accept(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                Socket client = socket.accept();
+                client.setTcpNoDelay(true);
+                BridgeConnection connection = new BridgeConnection(this, client);
+                Thread thread = new Thread(connection, "local-bridge-conn-" + connectionIndex.getAndIncrement());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    LOG.warn("Accepting a connection failed: {}", e.toString());
+                }
+            }
+        }
+    }
+}
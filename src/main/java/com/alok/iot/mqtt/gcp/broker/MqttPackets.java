@@ -0,0 +1,186 @@
+package com.alok.iot.mqtt.gcp.broker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/** Reads and writes the handful of MQTT 3.1.1 control packets the bridge understands. */
+final class MqttPackets {
+    static final int CONNECT = 1;
+    static final int CONNACK = 2;
+    static final int PUBLISH = 3;
+    static final int PUBACK = 4;
+    static final int SUBSCRIBE = 8;
+    static final int SUBACK = 9;
+    static final int UNSUBSCRIBE = 10;
+    static final int UNSUBACK = 11;
+    static final int PINGREQ = 12;
+    static final int PINGRESP = 13;
+    static final int DISCONNECT = 14;
+
+    static final int CONNACK_ACCEPTED = 0;
+    static final int CONNACK_BAD_PROTOCOL = 1;
+    static final int CONNACK_IDENTIFIER_REJECTED = 2;
+    static final int CONNACK_BAD_CREDENTIALS = 4;
+    static final int CONNACK_NOT_AUTHORIZED = 5;
+
+    static final int SUBACK_FAILURE = 0x80;
+
+    /** The largest remaining length MQTT can encode. */
+    private static final int MAX_REMAINING_LENGTH = 268_435_455;
+
+    private MqttPackets() {
+    }
+
+    /** One control packet: its type, the flags in the low nibble of the first byte, and the rest. */
+    static final class Packet {
+        final int type;
+        final int flags;
+        final byte[] body;
+
+        Packet(int type, int flags, byte[] body) {
+            this.type = type;
+            this.flags = flags;
+            this.body = body;
+        }
+    }
+
+    /** Sequential access to a packet body. */
+    static final class Reader {
+        private final byte[] body;
+        private int position;
+
+        Reader(byte[] body) {
+            this.body = body;
+        }
+
+        int readByte() throws IOException {
+            require(1);
+            return body[position++] & 0xFF;
+        }
+
+        int readShort() throws IOException {
+            return (readByte() << 8) | readByte();
+        }
+
+        String readString() throws IOException {
+            return new String(readBinary(), StandardCharsets.UTF_8);
+        }
+
+        byte[] readBinary() throws IOException {
+            int length = readShort();
+            require(length);
+            byte[] value = new byte[length];
+            System.arraycopy(body, position, value, 0, length);
+            position += length;
+            return value;
+        }
+
+        byte[] readRemaining() {
+            byte[] value = new byte[body.length - position];
+            System.arraycopy(body, position, value, 0, value.length);
+            position = body.length;
+            return value;
+        }
+
+        boolean hasRemaining() {
+            return position < body.length;
+        }
+
+        private void require(int bytes) throws IOException {
+            if (body.length - position < bytes) {
+                throw new IOException("Malformed packet: " + bytes + " more bytes expected");
+            }
+        }
+    }
+
+    /** Reads the next packet, or returns null when the peer has closed the connection. */
+    static Packet read(DataInputStream in, int maxRemainingLength) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = 0;
+        int encoded;
+        int shift = 0;
+        do {
+            if (shift == 28) {
+                throw new IOException("Malformed remaining length");
+            }
+            encoded = in.readUnsignedByte();
+            length |= (encoded & 0x7F) << shift;
+            shift += 7;
+        } while ((encoded & 0x80) != 0);
+        if (length > maxRemainingLength) {
+            throw new IOException("Packet of " + length + " bytes exceeds the limit of " + maxRemainingLength);
+        }
+        byte[] body = new byte[length];
+        try {
+            in.readFully(body);
+        } catch (EOFException e) {
+            throw new IOException("Connection closed mid-packet", e);
+        }
+        return new Packet(first >>> 4, first & 0x0F, body);
+    }
+
+    static byte[] connack(int returnCode) {
+        return new byte[] {(byte) (CONNACK << 4), 2, 0, (byte) returnCode};
+    }
+
+    static byte[] puback(int packetId) {
+        return new byte[] {(byte) (PUBACK << 4), 2, (byte) (packetId >>> 8), (byte) packetId};
+    }
+
+    static byte[] suback(int packetId, int[] returnCodes) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeShort(body, packetId);
+        for (int returnCode : returnCodes) {
+            body.write(returnCode);
+        }
+        return packet(SUBACK << 4, body.toByteArray());
+    }
+
+    static byte[] unsuback(int packetId) {
+        return new byte[] {(byte) (UNSUBACK << 4), 2, (byte) (packetId >>> 8), (byte) packetId};
+    }
+
+    static byte[] pingresp() {
+        return new byte[] {(byte) (PINGRESP << 4), 0};
+    }
+
+    /** A PUBLISH packet; {@code packetId} is ignored at QoS 0. */
+    static byte[] publish(String topic, byte[] payload, int qos, int packetId) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(topic.length() + payload.length + 4);
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        writeShort(body, topicBytes.length);
+        body.write(topicBytes, 0, topicBytes.length);
+        if (qos > 0) {
+            writeShort(body, packetId);
+        }
+        body.write(payload, 0, payload.length);
+        return packet((PUBLISH << 4) | (qos << 1), body.toByteArray());
+    }
+
+    private static byte[] packet(int firstByte, byte[] body) {
+        if (body.length > MAX_REMAINING_LENGTH) {
+            throw new IllegalArgumentException("Packet body of " + body.length + " bytes is too large");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 5);
+        out.write(firstByte);
+        int length = body.length;
+        do {
+            int encoded = length % 128;
+            length /= 128;
+            out.write(length > 0 ? encoded | 0x80 : encoded);
+        } while (length > 0);
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
@@ -0,0 +1,289 @@
+package com.alok.iot.mqtt.gcp.config;
+
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the config last applied to each device, so a handler only runs when the config has
+ * really changed.
+ *
+ * Cloud IoT Core sends a device's full config on every subscribe, so every reconnect redelivers
+ * configs that are already applied. Each config is identified by the SHA-256 of its payload and
+ * a version; a config with the same payload as the applied one is skipped, and so is one with an
+ * older version. The MQTT bridge does not send config versions, so for configs offered with
+ * {@link #UNKNOWN_VERSION} the store numbers each change itself.
+ *
+ * A store opened on a file appends each applied config to it, so after a restart the redelivered
+ * configs are skipped too. The log is written without forcing it to disk: a crash can at worst
+ * lose the last few records, and those configs are then applied once more. It is rewritten once
+ * it holds more than twice as many records as devices.
+ *
+ * Offers for the same device must not race; {@link com.alok.iot.mqtt.gcp.inbound.InboundDispatcher}
+ * handles each device's messages on one thread.
+ */
+public class ConfigStore implements Closeable {
+    public static final long UNKNOWN_VERSION = 0L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConfigStore.class);
+
+    private static final int HASH_BYTES = 32;
+    /** Length and CRC32 of the record body. */
+    private static final int RECORD_PREFIX_BYTES = 8;
+    /** Version and hash, followed by the device id. */
+    private static final int RECORD_FIXED_BYTES = 8 + HASH_BYTES;
+    /** Logs shorter than this are never rewritten. */
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    /** Applies a changed config. If it throws, the config is not recorded and is offered again next time. */
+    @FunctionalInterface
+    public interface ConfigHandler {
+        void configChanged(String deviceId, long version, byte[] payload) throws Exception;
+    }
+
+    private final Path file;
+    private final Map<String, Applied> applied = new ConcurrentHashMap<>();
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private FileChannel log;
+    private int records;
+
+    private ConfigStore(Path file) {
+        this.file = file;
+    }
+
+    /** A store that forgets everything when the process exits. */
+    public static ConfigStore inMemory() {
+        return new ConfigStore(null);
+    }
+
+    /**
+     * Opens the store logged to {@code file}, creating it if needed. Records after the first torn
+     * or corrupt one are discarded.
+     */
+    public static ConfigStore open(Path file) throws IOException {
+        ConfigStore store = new ConfigStore(file);
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        store.log = FileChannel.open(
+                file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        store.recover();
+        return store;
+    }
+
+    /**
+     * Runs {@code handler} if {@code payload} differs from the config last applied to the device,
+     * and records it once the handler returns. Returns whether the handler ran.
+     *
+     * @param version the config version, or {@link #UNKNOWN_VERSION}
+     */
+    public boolean offer(String deviceId, long version, byte[] payload, ConfigHandler handler) throws Exception {
+        if (version < 0) {
+            throw new IllegalArgumentException("Invalid config version " + version + " for " + deviceId);
+        }
+        byte[] hash = sha256(payload);
+        Applied last = applied.get(deviceId);
+        if (last != null) {
+            if (version != UNKNOWN_VERSION && version < last.version) {
+                stale.increment();
+                return false;
+            }
+            if (Arrays.equals(hash, last.hash)) {
+                duplicates.increment();
+                if (version > last.version) {
+                    record(deviceId, new Applied(version, hash));
+                }
+                return false;
+            }
+        }
+        long applying = version != UNKNOWN_VERSION ? version : (last == null ? 1 : last.version + 1);
+        handler.configChanged(deviceId, applying, payload);
+        changes.increment();
+        record(deviceId, new Applied(applying, hash));
+        return true;
+    }
+
+    /**
+     * A listener for {@code /devices/{device-id}/config} subscriptions that offers every config it
+     * receives to this store.
+     */
+    public IMqttMessageListener listener(ConfigHandler handler) {
+        return (topic, message) -> offer(deviceIdOf(topic), UNKNOWN_VERSION, message.getPayload(), handler);
+    }
+
+    /** The version of the config last applied to the device, or {@link #UNKNOWN_VERSION} if none. */
+    public long getAppliedVersion(String deviceId) {
+        Applied last = applied.get(deviceId);
+        return last == null ? UNKNOWN_VERSION : last.version;
+    }
+
+    public int size() {
+        return applied.size();
+    }
+
+    /** Configs whose handler ran. */
+    public long getChanges() {
+        return changes.sum();
+    }
+
+    /** Configs skipped because they matched the applied one. */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /** Configs skipped because they were older than the applied one. */
+    public long getStale() {
+        return stale.sum();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.force(false);
+            log.close();
+            log = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d devices: %d changes applied, %d duplicates and %d stale configs skipped",
+                size(), getChanges(), getDuplicates(), getStale());
+    }
+
+    /** The device id in a {@code /devices/{device-id}/config} topic. */
+    static String deviceIdOf(String topic) {
+        String deviceId = DeviceTopics.deviceIdOf(topic);
+        if (deviceId != null) {
+            return deviceId;
+        }
+        throw new IllegalArgumentException("Invalid config topic " + topic + ". Should be /devices/{device-id}/config.");
+    }
+
+    private void record(String deviceId, Applied entry) throws IOException {
+        applied.put(deviceId, entry);
+        if (file == null) {
+            return;
+        }
+        synchronized (this) {
+            if (log == null) {
+                throw new IOException("Config store " + file + " is closed");
+            }
+            write(log, deviceId, entry);
+            records++;
+            if (records > Math.max(MIN_COMPACTION_RECORDS, 2 * applied.size())) {
+                compact();
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        ByteBuffer contents = ByteBuffer.allocate((int) log.size());
+        while (contents.hasRemaining() && log.read(contents) >= 0) {
+            // Keep reading until the whole log is in memory.
+        }
+        contents.flip();
+        CRC32 crc = new CRC32();
+        long valid = 0;
+        while (contents.remaining() >= RECORD_PREFIX_BYTES) {
+            int bodyLength = contents.getInt();
+            int checksum = contents.getInt();
+            if (bodyLength <= RECORD_FIXED_BYTES || bodyLength > contents.remaining()) {
+                break;
+            }
+            byte[] body = new byte[bodyLength];
+            contents.get(body);
+            crc.reset();
+            crc.update(body, 0, bodyLength);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body);
+            long version = record.getLong();
+            byte[] hash = new byte[HASH_BYTES];
+            record.get(hash);
+            String deviceId = new String(body, RECORD_FIXED_BYTES, bodyLength - RECORD_FIXED_BYTES, StandardCharsets.UTF_8);
+            applied.put(deviceId, new Applied(version, hash));
+            records++;
+            valid = contents.position();
+        }
+        if (valid < log.size()) {
+            LOG.warn("Discarding {} bytes after the last intact record of {}", log.size() - valid, file);
+            log.truncate(valid);
+        }
+        log.position(valid);
+        LOG.info("Recovered the applied configs of {} devices from {}", applied.size(), file);
+    }
+
+    private void compact() throws IOException {
+        Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(rewritten,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, Applied> entry : applied.entrySet()) {
+                write(out, entry.getKey(), entry.getValue());
+            }
+            out.force(false);
+        }
+        log.close();
+        Files.move(rewritten, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        log.position(log.size());
+        records = applied.size();
+    }
+
+    private static void write(FileChannel channel, String deviceId, Applied entry) throws IOException {
+        byte[] id = deviceId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_PREFIX_BYTES + RECORD_FIXED_BYTES + id.length);
+        record.position(RECORD_PREFIX_BYTES);
+        record.putLong(entry.version);
+        record.put(entry.hash);
+        record.put(id);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_PREFIX_BYTES, RECORD_FIXED_BYTES + id.length);
+        record.putInt(0, RECORD_FIXED_BYTES + id.length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    private static byte[] sha256(byte[] payload) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(payload);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static final class Applied {
+        final long version;
+        final byte[] hash;
+
+        Applied(long version, byte[] hash) {
+            this.version = version;
+            this.hash = hash;
+        }
+    }
+}
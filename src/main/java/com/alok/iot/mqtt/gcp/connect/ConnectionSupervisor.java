@@ -0,0 +1,389 @@
+package com.alok.iot.mqtt.gcp.connect;
+
+import com.alok.iot.mqtt.gcp.logging.SampledLogger;
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import com.alok.iot.mqtt.gcp.utils.TokenBucket;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps an {@link IMqttAsyncClient} connected: connects with retries, and reconnects whenever
+ * the connection is lost.
+ *
+ * Retries back off per the {@link ReconnectPolicy}, and every connect attempt in the JVM also
+ * takes a permit from one global token bucket (see {@link #setGlobalConnectRate}), so a mass
+ * disconnect turns into a bounded trickle of connects instead of a storm against the bridge.
+ * Connect options are fetched for every attempt, which lets the supplier hand out a fresh JWT.
+ * After every successful connect the {@link RecoveryAction}s run, in order, to re-subscribe or
+ * re-attach whatever the previous session had. Each one is chained onto the previous one's
+ * future rather than waited for, so a slow broker never blocks the scheduler, which may be a
+ * shard shared with many other sessions.
+ *
+ * The supervisor installs itself as the client's callback; pass the application's callback to
+ * {@link #setCallback} instead of to the client. Paho's own automatic reconnect must stay off.
+ */
+public class ConnectionSupervisor implements AutoCloseable {
+    public static final double DEFAULT_CONNECTS_PER_SEC = 10;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionSupervisor.class);
+    // A mass disconnect makes every supervisor retry at once; log a sample of those retries.
+    private static final SampledLogger RETRY_LOG =
+            SampledLogger.of(ConnectionSupervisor.class.getName() + ".retry", 5, 1);
+
+    private static final TokenBucket GLOBAL_CONNECTS =
+            new TokenBucket(DEFAULT_CONNECTS_PER_SEC, DEFAULT_CONNECTS_PER_SEC);
+
+    /**
+     * Restores session state after a connect, e.g. by re-subscribing. Runs on the supervisor's
+     * scheduler, so it must not block: it starts its work and returns a future that completes
+     * once the work is done, e.g. through {@link #completing}.
+     */
+    public interface RecoveryAction {
+        CompletableFuture<Void> recover(IMqttAsyncClient client) throws MqttException;
+    }
+
+    private final IMqttAsyncClient client;
+    private final Supplier<MqttConnectOptions> connectOptions;
+    private final ReconnectPolicy policy;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final List<RecoveryAction> recoveryActions = new CopyOnWriteArrayList<>();
+    private final ReconnectStats stats = new ReconnectStats();
+    private volatile MqttCallback delegate;
+
+    // Guarded by this. A connect cycle runs from the first attempt until connected or given up.
+    private CompletableFuture<Void> cycle;
+    private boolean reconnecting;
+    private long cycleStartNanos;
+    private int attempt;
+    private boolean closed;
+
+    public ConnectionSupervisor(
+            IMqttAsyncClient client, Supplier<MqttConnectOptions> connectOptions, ReconnectPolicy policy) {
+        this(client, connectOptions, policy,
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "mqtt-reconnect");
+                    thread.setDaemon(true);
+                    return thread;
+                }), true);
+    }
+
+    /** Creates a supervisor that runs on a shared scheduler, which the caller keeps ownership of. */
+    public ConnectionSupervisor(
+            IMqttAsyncClient client,
+            Supplier<MqttConnectOptions> connectOptions,
+            ReconnectPolicy policy,
+            ScheduledExecutorService scheduler) {
+        this(client, connectOptions, policy, scheduler, false);
+    }
+
+    private ConnectionSupervisor(
+            IMqttAsyncClient client,
+            Supplier<MqttConnectOptions> connectOptions,
+            ReconnectPolicy policy,
+            ScheduledExecutorService scheduler,
+            boolean ownsScheduler) {
+        this.client = client;
+        this.connectOptions = connectOptions;
+        this.policy = policy;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        client.setCallback(new SupervisingCallback());
+    }
+
+    /** Sets the rate and burst of connect attempts allowed across every supervisor in the JVM. */
+    public static void setGlobalConnectRate(double connectsPerSecond, int burst) {
+        GLOBAL_CONNECTS.setRate(connectsPerSecond, burst);
+    }
+
+    /** Connects, blocking, retrying per {@code policy} and the global connect rate; for synchronous clients. */
+    public static void connectBlocking(MqttClient client, MqttConnectOptions options, ReconnectPolicy policy)
+            throws MqttException, InterruptedException {
+        long start = System.nanoTime();
+        for (int attempt = 0; ; attempt++) {
+            TimeUnit.NANOSECONDS.sleep(GLOBAL_CONNECTS.reserve());
+            try {
+                client.connect(options);
+                return;
+            } catch (MqttException e) {
+                long delayMillis = policy.delayMillis(attempt);
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (!policy.isRetryable(e) || elapsedMillis + delayMillis > policy.getMaxElapsedMillis()) {
+                    throw e;
+                }
+                LOG.info("Connecting failed ({}), retrying in {} ms", e.getMessage(), delayMillis);
+                Thread.sleep(delayMillis);
+            }
+        }
+    }
+
+    /** An action listener that completes {@code result} as the token it is passed to does. */
+    public static IMqttActionListener completing(CompletableFuture<Void> result) {
+        return new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                result.complete(null);
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                result.completeExceptionally(exception);
+            }
+        };
+    }
+
+    /** The application callback; connection loss is passed on to it before reconnecting. */
+    public void setCallback(MqttCallback callback) {
+        this.delegate = callback;
+    }
+
+    public void addRecoveryAction(RecoveryAction action) {
+        recoveryActions.add(action);
+    }
+
+    /**
+     * Connects unless already connected, retrying per the policy. The future completes on the
+     * scheduler once connected and the recovery actions have run, or exceptionally once the
+     * supervisor gives up.
+     */
+    public synchronized CompletableFuture<Void> connect() {
+        if (closed) {
+            throw new IllegalStateException("Supervisor is closed");
+        }
+        if (cycle != null) {
+            return cycle;
+        }
+        if (client.isConnected()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        startCycle(false);
+        scheduler.execute(this::attempt);
+        return cycle;
+    }
+
+    /** Connects like {@link #connect()} and waits for the outcome. */
+    public void connectAndWait() throws MqttException, InterruptedException {
+        try {
+            connect().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MqttException) {
+                throw (MqttException) e.getCause();
+            }
+            throw new MqttException(e.getCause());
+        }
+    }
+
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    public ReconnectStats getStats() {
+        return stats;
+    }
+
+    /** Stops reconnecting; the client itself is left to the caller. */
+    @Override
+    public void close() {
+        CompletableFuture<Void> abandoned;
+        synchronized (this) {
+            closed = true;
+            abandoned = cycle;
+            cycle = null;
+        }
+        if (abandoned != null) {
+            abandoned.completeExceptionally(new IllegalStateException("Supervisor is closed"));
+        }
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    private void startCycle(boolean reconnect) {
+        cycle = new CompletableFuture<>();
+        reconnecting = reconnect;
+        cycleStartNanos = System.nanoTime();
+        attempt = 0;
+    }
+
+    private void onConnectionLost() {
+        long delayMillis;
+        synchronized (this) {
+            if (closed || cycle != null) {
+                return;
+            }
+            startCycle(true);
+            // Jitter the first attempt too, so clients that lost their connections at the same
+            // moment do not all come back at the same moment.
+            delayMillis = policy.delayMillis(attempt++);
+        }
+        scheduler.schedule(this::attempt, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt() {
+        long waitNanos = GLOBAL_CONNECTS.reserve();
+        if (waitNanos > 0) {
+            scheduler.schedule(this::connectNow, waitNanos, TimeUnit.NANOSECONDS);
+        } else {
+            connectNow();
+        }
+    }
+
+    private void connectNow() {
+        synchronized (this) {
+            if (closed || cycle == null) {
+                return;
+            }
+        }
+        stats.recordAttempt();
+        long start = System.nanoTime();
+        try {
+            client.connect(connectOptions.get(), null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    MqttMetrics.connected(System.nanoTime() - start);
+                    scheduler.execute(ConnectionSupervisor.this::onConnected);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    MqttMetrics.connectFailed(System.nanoTime() - start);
+                    scheduler.execute(() -> onAttemptFailed(exception));
+                }
+            });
+        } catch (MqttException e) {
+            if (e.getReasonCode() == MqttException.REASON_CODE_CLIENT_CONNECTED) {
+                onConnected();
+            } else {
+                onAttemptFailed(e);
+            }
+        }
+    }
+
+    private void onConnected() {
+        CompletableFuture<Void> recovered = CompletableFuture.completedFuture(null);
+        for (RecoveryAction action : recoveryActions) {
+            recovered = recovered.thenComposeAsync(ignored -> recover(action), scheduler);
+        }
+        recovered.whenCompleteAsync((ignored, e) -> completeCycle(), scheduler);
+    }
+
+    /** Runs {@code action}; a failure is logged and does not stop the actions after it. */
+    private CompletableFuture<Void> recover(RecoveryAction action) {
+        CompletableFuture<Void> result;
+        try {
+            result = action.recover(client);
+        } catch (MqttException | RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        return result.handle((ignored, e) -> {
+            if (e != null) {
+                LOG.warn("Recovering {} failed: {}", client.getClientId(), e.toString());
+            }
+            return null;
+        });
+    }
+
+    private void completeCycle() {
+        CompletableFuture<Void> done;
+        synchronized (this) {
+            done = cycle;
+            cycle = null;
+            if (done == null) {
+                return;
+            }
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cycleStartNanos);
+            stats.recordConnected(reconnecting, latencyMillis);
+            if (reconnecting) {
+                MqttMetrics.reconnected(latencyMillis);
+            }
+        }
+        done.complete(null);
+    }
+
+    private void onAttemptFailed(Throwable e) {
+        stats.recordFailedAttempt();
+        CompletableFuture<Void> failed = null;
+        long delayMillis = 0;
+        synchronized (this) {
+            if (cycle == null) {
+                return;
+            }
+            delayMillis = policy.delayMillis(attempt++);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cycleStartNanos);
+            if (!policy.isRetryable(e) || elapsedMillis + delayMillis > policy.getMaxElapsedMillis()) {
+                failed = cycle;
+                cycle = null;
+            }
+        }
+        if (failed != null) {
+            stats.recordGiveUp();
+            LOG.error("Giving up connecting {}: {}", client.getClientId(), e.toString());
+            failed.completeExceptionally(e);
+            return;
+        }
+        RETRY_LOG.info(
+                "Connecting {} failed ({}), retrying in {} ms", client.getClientId(), e.getMessage(), delayMillis);
+        scheduler.schedule(this::attempt, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private final class SupervisingCallback implements MqttCallbackExtended {
+        @Override
+        public void connectionLost(Throwable cause) {
+            MqttCallback callback = delegate;
+            if (callback != null) {
+                callback.connectionLost(cause);
+            }
+            onConnectionLost();
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            MqttCallback callback = delegate;
+            if (callback == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                callback.messageArrived(topic, message);
+            } finally {
+                MqttMetrics.messageHandled(message.getPayload().length, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+            MqttCallback callback = delegate;
+            if (callback != null) {
+                callback.deliveryComplete(token);
+            }
+        }
+
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            MqttCallback callback = delegate;
+            if (callback instanceof MqttCallbackExtended) {
+                ((MqttCallbackExtended) callback).connectComplete(reconnect, serverURI);
+            }
+        }
+    }
+}
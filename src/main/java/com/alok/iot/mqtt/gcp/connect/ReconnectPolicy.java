@@ -0,0 +1,74 @@
+package com.alok.iot.mqtt.gcp.connect;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the delay before retry {@code n} is drawn uniformly from
+ * {@code [0, min(maxDelay, initialDelay * multiplier^n)]}. Spreading retries over the whole
+ * interval keeps a fleet that lost its connections together, e.g. behind one NAT, from
+ * reconnecting in lockstep.
+ */
+public final class ReconnectPolicy {
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 500L;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 6000L;
+    public static final double DEFAULT_MULTIPLIER = 1.5;
+    public static final long DEFAULT_MAX_ELAPSED_MILLIS = 900000L;
+
+    public static final ReconnectPolicy DEFAULT =
+            new ReconnectPolicy(
+                    DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MULTIPLIER, DEFAULT_MAX_ELAPSED_MILLIS);
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final long maxElapsedMillis;
+
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier, long maxElapsedMillis) {
+        if (initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis || multiplier < 1 || maxElapsedMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid reconnect policy: initialDelayMillis=" + initialDelayMillis + ", maxDelayMillis="
+                            + maxDelayMillis + ", multiplier=" + multiplier + ", maxElapsedMillis=" + maxElapsedMillis);
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.multiplier = multiplier;
+        this.maxElapsedMillis = maxElapsedMillis;
+    }
+
+    /** The jittered delay before retry {@code attempt}, counting from 0. */
+    public long delayMillis(int attempt) {
+        double ceiling = initialDelayMillis * Math.pow(multiplier, attempt);
+        long bound = (long) Math.min(maxDelayMillis, ceiling);
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /** How long to keep retrying before giving up. */
+    public long getMaxElapsedMillis() {
+        return maxElapsedMillis;
+    }
+
+    /** Whether a failed connect is worth retrying; bad credentials or configuration are not. */
+    public boolean isRetryable(Throwable e) {
+        if (!(e instanceof MqttException)) {
+            return false;
+        }
+        switch (((MqttException) e).getReasonCode()) {
+            case MqttException.REASON_CODE_CONNECTION_LOST:
+            case MqttException.REASON_CODE_SERVER_CONNECT_ERROR:
+            case MqttException.REASON_CODE_CLIENT_TIMEOUT:
+            case MqttException.REASON_CODE_BROKER_UNAVAILABLE:
+            case MqttException.REASON_CODE_CONNECT_IN_PROGRESS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("full jitter, ceiling %d ms growing x%.1f to %d ms, giving up after %d ms",
+                initialDelayMillis, multiplier, maxDelayMillis, maxElapsedMillis);
+    }
+}
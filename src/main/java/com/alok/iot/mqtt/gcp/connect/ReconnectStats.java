@@ -0,0 +1,87 @@
+package com.alok.iot.mqtt.gcp.connect;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for a {@link ConnectionSupervisor}. Reconnect latency runs from the moment the
+ * connection was lost to the moment it was back, including backoff and rate-limit waits.
+ */
+public class ReconnectStats {
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder failedAttempts = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder giveUps = new LongAdder();
+    private final LongAdder reconnectLatencyTotalMillis = new LongAdder();
+    private final AtomicLong reconnectLatencyMaxMillis = new AtomicLong();
+    private volatile long lastReconnectLatencyMillis;
+
+    void recordAttempt() {
+        attempts.increment();
+    }
+
+    void recordFailedAttempt() {
+        failedAttempts.increment();
+    }
+
+    void recordGiveUp() {
+        giveUps.increment();
+    }
+
+    void recordConnected(boolean reconnect, long latencyMillis) {
+        connects.increment();
+        if (!reconnect) {
+            return;
+        }
+        reconnects.increment();
+        reconnectLatencyTotalMillis.add(latencyMillis);
+        reconnectLatencyMaxMillis.accumulateAndGet(latencyMillis, Math::max);
+        lastReconnectLatencyMillis = latencyMillis;
+    }
+
+    /** Connect calls issued, including the first. */
+    public long getAttempts() {
+        return attempts.sum();
+    }
+
+    public long getFailedAttempts() {
+        return failedAttempts.sum();
+    }
+
+    /** Successful connects, including the first. */
+    public long getConnects() {
+        return connects.sum();
+    }
+
+    /** Connections restored after being lost. */
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    /** Times the policy ran out of retries or met a failure not worth retrying. */
+    public long getGiveUps() {
+        return giveUps.sum();
+    }
+
+    public long getLastReconnectLatencyMillis() {
+        return lastReconnectLatencyMillis;
+    }
+
+    public long getMaxReconnectLatencyMillis() {
+        return reconnectLatencyMaxMillis.get();
+    }
+
+    public double getMeanReconnectLatencyMillis() {
+        long count = reconnects.sum();
+        return count == 0 ? 0 : (double) reconnectLatencyTotalMillis.sum() / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d connects (%d reconnects) from %d attempts, %d failed, %d gave up; reconnect latency mean %.0f ms, max %d ms",
+                getConnects(), getReconnects(), getAttempts(), getFailedAttempts(), getGiveUps(),
+                getMeanReconnectLatencyMillis(), getMaxReconnectLatencyMillis());
+    }
+}
@@ -0,0 +1,242 @@
+package com.alok.iot.mqtt.gcp.gateway;
+
+import com.alok.iot.mqtt.gcp.logging.SampledLogger;
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import com.alok.iot.mqtt.gcp.publish.MessagePublisher;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes for a gateway's bound devices, attaching each device on its first publish and keeping
+ * it attached while it is active, instead of attaching and detaching around every message.
+ *
+ * A device is detached once it has published nothing for {@code idleMillis}, or, when more than
+ * {@code capacity} devices are attached, whichever was used least recently. The attach is
+ * published just before the device's first message rather than awaited: the bridge handles a
+ * connection's messages in order, so the message is not held up by a round trip. Downstream must
+ * keep that order, as {@link com.alok.iot.mqtt.gcp.session.DeviceSession} and
+ * {@link com.alok.iot.mqtt.gcp.publish.AsyncPublisher} do.
+ *
+ * A refused attach shows up on the gateway's errors topic, not as a failed publish; pass those
+ * errors to {@link #onError} so the device is attached again on its next publish.
+ */
+public class AttachmentManager implements MessagePublisher, AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final byte[] EMPTY_JSON = "{}".getBytes(StandardCharsets.UTF_8);
+    private static final SampledLogger CHURN_LOG =
+            SampledLogger.of(AttachmentManager.class.getName() + ".churn", 5, 1);
+
+    private final MessagePublisher downstream;
+    private final String gatewayId;
+    private final int capacity;
+    private final long idleMillis;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final ScheduledFuture<?> sweeper;
+
+    /** Attached devices and when each last published, least recently used first. */
+    private final LinkedHashMap<String, Long> attached = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder attaches = new LongAdder();
+    private final LongAdder idleDetaches = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder refusals = new LongAdder();
+    private boolean closed;
+
+    public AttachmentManager(MessagePublisher downstream, String gatewayId, int capacity, long idleMillis) {
+        this(downstream, gatewayId, capacity, idleMillis,
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "gateway-attachments");
+                    thread.setDaemon(true);
+                    return thread;
+                }), true);
+    }
+
+    /** Creates a manager whose idle sweeps run on a shared scheduler, which the caller keeps ownership of. */
+    public AttachmentManager(
+            MessagePublisher downstream,
+            String gatewayId,
+            int capacity,
+            long idleMillis,
+            ScheduledExecutorService scheduler) {
+        this(downstream, gatewayId, capacity, idleMillis, scheduler, false);
+    }
+
+    private AttachmentManager(
+            MessagePublisher downstream,
+            String gatewayId,
+            int capacity,
+            long idleMillis,
+            ScheduledExecutorService scheduler,
+            boolean ownsScheduler) {
+        if (capacity < 1 || idleMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid attachment limits: capacity=" + capacity + ", idleMillis=" + idleMillis);
+        }
+        this.downstream = downstream;
+        this.gatewayId = gatewayId;
+        this.capacity = capacity;
+        this.idleMillis = idleMillis;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        long sweepMillis = Math.max(1, idleMillis / 2);
+        this.sweeper = scheduler.scheduleWithFixedDelay(this::detachIdle, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes {@code payload}, attaching the device {@code topic} belongs to first if needed.
+     * Topics of the gateway itself, or outside {@code /devices/}, are passed straight through.
+     */
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        String deviceId = DeviceTopics.deviceIdOf(topic);
+        if (deviceId == null || deviceId.equals(gatewayId)) {
+            return downstream.publish(topic, payload, qos);
+        }
+        synchronized (this) {
+            if (closed) {
+                CompletableFuture<Void> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(new IllegalStateException("Attachment manager is closed"));
+                return rejected;
+            }
+            if (attached.put(deviceId, System.nanoTime()) == null) {
+                attach(deviceId);
+                if (attached.size() > capacity) {
+                    Iterator<String> eldest = attached.keySet().iterator();
+                    String evicted = eldest.next();
+                    eldest.remove();
+                    evictions.increment();
+                    detach(evicted, "capacity");
+                }
+            }
+            // Published under the lock, so it cannot overtake the attach or a later detach.
+            return downstream.publish(topic, payload, qos);
+        }
+    }
+
+    /** Forgets a device whose attach the bridge refused, so its next publish attaches it again. */
+    public void onError(GatewayError error) {
+        if (!error.isAttachmentError() || error.getDeviceId() == null) {
+            return;
+        }
+        synchronized (this) {
+            if (attached.remove(error.getDeviceId()) != null) {
+                refusals.increment();
+                MqttMetrics.gatewayDetached("error");
+                CHURN_LOG.warn("{} is not attached: {}", error.getDeviceId(), error);
+            }
+        }
+    }
+
+    public synchronized boolean isAttached(String deviceId) {
+        return attached.containsKey(deviceId);
+    }
+
+    public synchronized int size() {
+        return attached.size();
+    }
+
+    public long getAttaches() {
+        return attaches.sum();
+    }
+
+    /** Devices detached after being idle for {@code idleMillis}. */
+    public long getIdleDetaches() {
+        return idleDetaches.sum();
+    }
+
+    /** Devices detached to make room for another. */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** Devices whose attach the bridge refused. */
+    public long getRefusals() {
+        return refusals.sum();
+    }
+
+    /** Detaches every attached device. */
+    @Override
+    public void close() {
+        sweeper.cancel(false);
+        synchronized (this) {
+            closed = true;
+            for (String deviceId : attached.keySet()) {
+                detach(deviceId, "close");
+            }
+            attached.clear();
+        }
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d attached: %d attaches, %d idle detaches, %d evictions, %d refused",
+                size(), getAttaches(), getIdleDetaches(), getEvictions(), getRefusals());
+    }
+
+    /** Detaches the devices that have been idle for {@code idleMillis}. */
+    void detachIdle() {
+        long idleSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        List<String> idle = new ArrayList<>();
+        synchronized (this) {
+            // Least recently used first, so the idle devices are all at the front.
+            Iterator<Map.Entry<String, Long>> eldest = attached.entrySet().iterator();
+            while (eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getValue() - idleSince > 0) {
+                    break;
+                }
+                eldest.remove();
+                idleDetaches.increment();
+                detach(entry.getKey(), "idle");
+                idle.add(entry.getKey());
+            }
+        }
+        if (!idle.isEmpty()) {
+            CHURN_LOG.info("Detached {} idle devices, such as {}", idle.size(), idle.get(0));
+        }
+    }
+
+    private void attach(String deviceId) {
+        attaches.increment();
+        MqttMetrics.gatewayAttached();
+        downstream.publish(DeviceTopics.of(deviceId).attach(), EMPTY_JSON, 1).whenComplete((ignored, e) -> {
+            if (e != null) {
+                synchronized (this) {
+                    if (attached.remove(deviceId) != null) {
+                        MqttMetrics.gatewayDetached("error");
+                    }
+                }
+                CHURN_LOG.warn("Could not attach {}: {}", deviceId, MqttMetrics.reason(e));
+            }
+        });
+    }
+
+    private void detach(String deviceId, String reason) {
+        MqttMetrics.gatewayDetached(reason);
+        String topic = DeviceTopics.of(deviceId).detach();
+        DeviceTopics.evict(deviceId);
+        downstream.publish(topic, EMPTY_JSON, 1).whenComplete((ignored, e) -> {
+            if (e != null) {
+                CHURN_LOG.warn("Could not detach {}: {}", deviceId, MqttMetrics.reason(e));
+            }
+        });
+    }
+}
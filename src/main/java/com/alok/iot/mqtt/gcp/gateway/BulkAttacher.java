@@ -0,0 +1,154 @@
+package com.alok.iot.mqtt.gcp.gateway;
+
+import com.alok.iot.mqtt.gcp.logging.SampledLogger;
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import com.alok.iot.mqtt.gcp.publish.MessagePublisher;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Attaches or detaches many bound devices at once by pipelining their QoS 1 attach or detach
+ * messages, up to {@code maxInFlight} awaiting acknowledgement, instead of one round trip per
+ * device.
+ *
+ * The bridge acknowledges an attach even if it refuses it, and reports the refusal on the
+ * gateway's errors topic. Subscribe {@link #errorListener()} to that topic, at QoS 0, before
+ * attaching. An operation waits for every acknowledgement, and then {@code errorGraceMillis}
+ * more for errors still on their way, before it reports.
+ *
+ * One bulk operation runs at a time.
+ */
+public class BulkAttacher {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+    public static final long DEFAULT_ERROR_GRACE_MILLIS = 1000L;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000L;
+
+    private static final SampledLogger FAILURE_LOG =
+            SampledLogger.of(BulkAttacher.class.getName() + ".failure", 5, 1);
+    private static final byte[] EMPTY_JSON = "{}".getBytes(StandardCharsets.UTF_8);
+
+    private final MessagePublisher publisher;
+    private final int maxInFlight;
+    private final long errorGraceMillis;
+    private volatile Operation current;
+
+    public BulkAttacher(MessagePublisher publisher) {
+        this(publisher, DEFAULT_MAX_IN_FLIGHT, DEFAULT_ERROR_GRACE_MILLIS);
+    }
+
+    /**
+     * @param maxInFlight attach or detach messages awaiting acknowledgement at once; the client's
+     *                    own in-flight limit must be at least as high
+     */
+    public BulkAttacher(MessagePublisher publisher, int maxInFlight, long errorGraceMillis) {
+        if (maxInFlight < 1 || errorGraceMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid bulk attacher: maxInFlight=" + maxInFlight + ", errorGraceMillis=" + errorGraceMillis);
+        }
+        this.publisher = publisher;
+        this.maxInFlight = maxInFlight;
+        this.errorGraceMillis = errorGraceMillis;
+    }
+
+    /** Attaches every device, waiting up to {@code timeoutMillis} for the bridge to acknowledge them. */
+    public synchronized BulkReport attachAll(Collection<String> deviceIds, long timeoutMillis)
+            throws InterruptedException {
+        return run("attach", deviceIds, timeoutMillis);
+    }
+
+    /** Detaches every device, waiting up to {@code timeoutMillis} for the bridge to acknowledge them. */
+    public synchronized BulkReport detachAll(Collection<String> deviceIds, long timeoutMillis)
+            throws InterruptedException {
+        return run("detach", deviceIds, timeoutMillis);
+    }
+
+    /** A listener for the gateway's errors topic that fails the devices errors are reported for. */
+    public IMqttMessageListener errorListener() {
+        return (topic, message) -> onError(GatewayError.parse(message.getPayload()));
+    }
+
+    /** Fails the device {@code error} is about, if it is part of the running operation. */
+    public void onError(GatewayError error) {
+        Operation operation = current;
+        if (operation != null && error.getDeviceId() != null) {
+            operation.fail(error.getDeviceId(), error.toString());
+        }
+    }
+
+    private BulkReport run(String action, Collection<String> deviceIds, long timeoutMillis)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Operation operation = new Operation(deviceIds);
+        Semaphore window = new Semaphore(maxInFlight);
+        current = operation;
+        try {
+            for (String deviceId : operation.devices) {
+                if (!window.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+                DeviceTopics topics = DeviceTopics.of(deviceId);
+                String topic = "attach".equals(action) ? topics.attach() : topics.detach();
+                publisher.publish(topic, EMPTY_JSON, 1).whenComplete((ignored, e) -> {
+                    window.release();
+                    if (e != null) {
+                        operation.fail(deviceId, "publish failed: " + MqttMetrics.reason(e));
+                    }
+                    operation.acknowledged(deviceId);
+                });
+            }
+            boolean complete = operation.acks.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (complete && errorGraceMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(errorGraceMillis);
+            }
+        } finally {
+            current = null;
+        }
+        Map<String, String> failures = new LinkedHashMap<>(operation.failures);
+        for (String deviceId : operation.pending) {
+            failures.putIfAbsent(deviceId, "not acknowledged in " + timeoutMillis + " ms");
+        }
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            FAILURE_LOG.warn("Could not {} {}: {}", action, failure.getKey(), failure.getValue());
+        }
+        return new BulkReport(action, operation.devices.size(), failures,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /** One bulk attach or detach; its devices' outcomes arrive on Paho's threads. */
+    private static final class Operation {
+        final Set<String> devices;
+        final Set<String> pending = ConcurrentHashMap.newKeySet();
+        final Map<String, String> failures = new ConcurrentHashMap<>();
+        final CountDownLatch acks;
+
+        Operation(Collection<String> deviceIds) {
+            this.devices = new LinkedHashSet<>(deviceIds);
+            this.pending.addAll(devices);
+            this.acks = new CountDownLatch(devices.size());
+        }
+
+        void acknowledged(String deviceId) {
+            if (pending.remove(deviceId)) {
+                acks.countDown();
+            }
+        }
+
+        void fail(String deviceId, String reason) {
+            if (devices.contains(deviceId)) {
+                failures.putIfAbsent(deviceId, reason);
+            }
+        }
+    }
+}
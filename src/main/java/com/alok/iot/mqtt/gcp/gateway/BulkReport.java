@@ -0,0 +1,54 @@
+package com.alok.iot.mqtt.gcp.gateway;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** The outcome of a {@link BulkAttacher} attach or detach. */
+public class BulkReport {
+    private final String action;
+    private final int devices;
+    private final Map<String, String> failures;
+    private final long elapsedMillis;
+
+    BulkReport(String action, int devices, Map<String, String> failures, long elapsedMillis) {
+        this.action = action;
+        this.devices = devices;
+        this.failures = Collections.unmodifiableMap(new TreeMap<>(failures));
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /** 'attach' or 'detach'. */
+    public String getAction() {
+        return action;
+    }
+
+    public int getDevices() {
+        return devices;
+    }
+
+    /** Devices the bridge acknowledged and reported no error for. */
+    public int getSucceeded() {
+        return devices - failures.size();
+    }
+
+    /** Why each failed device failed: the gateway error, the publish failure or a timeout. */
+    public Map<String, String> getFailures() {
+        return failures;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getDevicesPerSec() {
+        return elapsedMillis == 0 ? 0 : devices * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s of %d devices took %d ms (%.1f/s): %d succeeded, %d failed",
+                action, devices, elapsedMillis, getDevicesPerSec(), getSucceeded(), failures.size());
+    }
+}
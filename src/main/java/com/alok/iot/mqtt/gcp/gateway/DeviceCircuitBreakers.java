@@ -0,0 +1,156 @@
+package com.alok.iot.mqtt.gcp.gateway;
+
+import com.alok.iot.mqtt.gcp.logging.SampledLogger;
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import com.alok.iot.mqtt.gcp.publish.MessagePublisher;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A publish stage for a gateway that pauses a bound device after the bridge reports errors for
+ * it, so a device that is unbound, unattached or over its quota stops using the connection.
+ *
+ * Each error about a device opens its breaker for a pause that starts at {@code initialPauseMillis}
+ * and doubles with every error, up to {@code maxPauseMillis}, until the device has gone
+ * {@code resetMillis} without one. Pauses are jittered by up to half, so devices refused together
+ * do not all come back at once. While a
+ * breaker is open, the device's publishes fail at once with a {@link DevicePausedException}.
+ * Once it closes, the next publish goes through as a probe; with an {@link AttachmentManager}
+ * downstream that also attaches the device again after an attachment error.
+ *
+ * Devices that have had no errors are not tracked, so their publishes only pay for a map lookup.
+ * Errors reach the breakers through {@link #onError}, fed from the gateway's errors topic.
+ */
+public class DeviceCircuitBreakers implements MessagePublisher {
+    public static final long DEFAULT_INITIAL_PAUSE_MILLIS = 1000L;
+    public static final long DEFAULT_MAX_PAUSE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    public static final long DEFAULT_RESET_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final SampledLogger TRIP_LOG =
+            SampledLogger.of(DeviceCircuitBreakers.class.getName() + ".trip", 5, 1);
+
+    private final MessagePublisher downstream;
+    private final long initialPauseMillis;
+    private final long maxPauseMillis;
+    private final long resetNanos;
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+    private final LongAdder trips = new LongAdder();
+    private final LongAdder paused = new LongAdder();
+
+    public DeviceCircuitBreakers(MessagePublisher downstream) {
+        this(downstream, DEFAULT_INITIAL_PAUSE_MILLIS, DEFAULT_MAX_PAUSE_MILLIS, DEFAULT_RESET_MILLIS);
+    }
+
+    public DeviceCircuitBreakers(
+            MessagePublisher downstream, long initialPauseMillis, long maxPauseMillis, long resetMillis) {
+        if (initialPauseMillis < 1 || maxPauseMillis < initialPauseMillis || resetMillis < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid circuit breaker: initialPauseMillis=" + initialPauseMillis + ", maxPauseMillis="
+                            + maxPauseMillis + ", resetMillis=" + resetMillis);
+        }
+        this.downstream = downstream;
+        this.initialPauseMillis = initialPauseMillis;
+        this.maxPauseMillis = maxPauseMillis;
+        this.resetNanos = TimeUnit.MILLISECONDS.toNanos(resetMillis);
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        String deviceId = DeviceTopics.deviceIdOf(topic);
+        Breaker breaker = deviceId == null ? null : breakers.get(deviceId);
+        if (breaker != null) {
+            long now = System.nanoTime();
+            long retryInNanos = breaker.openUntilNanos - now;
+            if (retryInNanos > 0) {
+                paused.increment();
+                MqttMetrics.gatewayPublishPaused();
+                CompletableFuture<Void> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(
+                        new DevicePausedException(deviceId, TimeUnit.NANOSECONDS.toMillis(retryInNanos), breaker.lastError));
+                return rejected;
+            }
+            if (now - breaker.lastErrorNanos > resetNanos) {
+                // Quiet for long enough: forget the device's history, unless an error has just come in.
+                breakers.computeIfPresent(
+                        deviceId, (id, current) -> now - current.lastErrorNanos > resetNanos ? null : current);
+            }
+        }
+        return downstream.publish(topic, payload, qos);
+    }
+
+    /** Opens the breaker of the device {@code error} is about; errors about no device are ignored. */
+    public void onError(GatewayError error) {
+        String deviceId = error.getDeviceId();
+        if (deviceId == null) {
+            TRIP_LOG.warn("Gateway error not about a device: {}", error);
+            return;
+        }
+        long now = System.nanoTime();
+        // Each error replaces the device's breaker with a new one, built whole under the map's lock,
+        // so publish() never sees one half updated.
+        Breaker breaker = breakers.compute(deviceId, (id, previous) -> {
+            int failures = previous == null || now - previous.lastErrorNanos > resetNanos ? 0 : previous.failures;
+            long openUntilNanos = now + TimeUnit.MILLISECONDS.toNanos(pauseMillis(failures));
+            if (previous != null && previous.openUntilNanos - openUntilNanos > 0) {
+                openUntilNanos = previous.openUntilNanos;
+            }
+            return new Breaker(failures + 1, now, openUntilNanos, error.toString());
+        });
+        long delayMillis = TimeUnit.NANOSECONDS.toMillis(breaker.openUntilNanos - now);
+        trips.increment();
+        MqttMetrics.gatewayBreakerTripped(error.getErrorType());
+        TRIP_LOG.warn("Pausing {} for {} ms: {}", deviceId, delayMillis, error);
+    }
+
+    /** Whether the device's publishes are paused right now. */
+    public boolean isOpen(String deviceId) {
+        Breaker breaker = breakers.get(deviceId);
+        return breaker != null && breaker.openUntilNanos - System.nanoTime() > 0;
+    }
+
+    /** Devices that have had errors recently enough to be tracked. */
+    public int size() {
+        return breakers.size();
+    }
+
+    /** Errors that opened, or kept open, a device's breaker. */
+    public long getTrips() {
+        return trips.sum();
+    }
+
+    /** Publishes refused while a breaker was open. */
+    public long getPaused() {
+        return paused.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d devices tracked: %d trips, %d publishes paused", size(), getTrips(), getPaused());
+    }
+
+    private long pauseMillis(int failures) {
+        long ceiling = Math.min(maxPauseMillis, initialPauseMillis << Math.min(failures, 30));
+        return ceiling - ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /** A device's error history; replaced, never changed, so it can be read without a lock. */
+    private static final class Breaker {
+        final int failures;
+        final long lastErrorNanos;
+        final long openUntilNanos;
+        final String lastError;
+
+        Breaker(int failures, long lastErrorNanos, long openUntilNanos, String lastError) {
+            this.failures = failures;
+            this.lastErrorNanos = lastErrorNanos;
+            this.openUntilNanos = openUntilNanos;
+            this.lastError = lastError;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.alok.iot.mqtt.gcp.gateway;
+
+/** Fails a publish for a device whose circuit breaker is open after errors from the bridge. */
+public class DevicePausedException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    private final String deviceId;
+    private final long retryInMillis;
+
+    public DevicePausedException(String deviceId, long retryInMillis, String cause) {
+        super("Publishes for " + deviceId + " are paused for " + retryInMillis + " ms after " + cause);
+        this.deviceId = deviceId;
+        this.retryInMillis = retryInMillis;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /** How long until the device's breaker lets a publish through again. */
+    public long getRetryInMillis() {
+        return retryInMillis;
+    }
+}
@@ -0,0 +1,74 @@
+package com.alok.iot.mqtt.gcp.gateway;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An error Cloud IoT Core reported on a gateway's {@code /devices/{gateway-id}/errors} topic,
+ * such as a failed attach or a bound device's exceeded quota.
+ */
+public final class GatewayError {
+    public static final String ATTACHMENT_ERROR = "GATEWAY_ATTACHMENT_ERROR";
+    public static final String DEVICE_NOT_FOUND = "GATEWAY_DEVICE_NOT_FOUND";
+    public static final String INVALID_MQTT_TOPIC = "GATEWAY_INVALID_MQTT_TOPIC";
+    public static final String DEVICE_QUOTA_EXCEEDED = "GATEWAY_DEVICE_QUOTA_EXCEEDED";
+
+    private final String errorType;
+    private final String deviceId;
+    private final String description;
+    private final int messageId;
+
+    public GatewayError(String errorType, String deviceId, String description, int messageId) {
+        this.errorType = errorType;
+        this.deviceId = deviceId;
+        this.description = description;
+        this.messageId = messageId;
+    }
+
+    /**
+     * Parses an errors topic payload, for example
+     * {@code {"error_type": "GATEWAY_ATTACHMENT_ERROR", "device_id": "d1", "description": "...", "message_id": 7}}.
+     */
+    public static GatewayError parse(byte[] payload) {
+        try {
+            JSONObject error = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+            return new GatewayError(
+                    error.optString("error_type", "UNKNOWN"),
+                    error.optString("device_id", null),
+                    error.optString("description", ""),
+                    error.optInt("message_id", 0));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid gateway error payload: " + e.getMessage(), e);
+        }
+    }
+
+    /** Whether the device is no longer, or never was, attached because of this error. */
+    public boolean isAttachmentError() {
+        return ATTACHMENT_ERROR.equals(errorType) || DEVICE_NOT_FOUND.equals(errorType);
+    }
+
+    public String getErrorType() {
+        return errorType;
+    }
+
+    /** The device the error is about, or null if it is about the gateway or a topic. */
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /** The id of the message that caused the error, or 0 if there is none. */
+    public int getMessageId() {
+        return messageId;
+    }
+
+    @Override
+    public String toString() {
+        return errorType + (description.isEmpty() ? "" : ": " + description);
+    }
+}
@@ -0,0 +1,171 @@
+package com.alok.iot.mqtt.gcp.inbound;
+
+import com.alok.iot.mqtt.gcp.logging.SampledLogger;
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves inbound config and command handling off Paho's callback thread.
+ *
+ * Messages are partitioned by the device id in their {@code /devices/{device-id}/...} topic (by
+ * the whole topic otherwise) onto single-threaded workers, so one device's messages are handled
+ * in arrival order while different devices are handled in parallel, and a slow handler no longer
+ * holds up other subscriptions or the connection's acknowledgements. Each worker has a bounded
+ * queue; a message arriving at a full queue is dropped and counted rather than blocking the
+ * callback thread.
+ *
+ * Paho acknowledges a QoS 1 message once the callback returns, which is now when the message is
+ * queued, not when it has been handled. A handler that throws is logged; unlike on the callback
+ * thread, it does not take the connection down.
+ */
+public class InboundDispatcher implements AutoCloseable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private static final SampledLogger OVERLOAD_LOG =
+            SampledLogger.of(InboundDispatcher.class.getName() + ".overload", 5, 1);
+    private static final SampledLogger HANDLER_LOG =
+            SampledLogger.of(InboundDispatcher.class.getName() + ".handler", 5, 1);
+
+    private final ThreadPoolExecutor[] workers;
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public InboundDispatcher(int workerCount, int queueCapacity) {
+        if (workerCount < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid dispatcher: workerCount=" + workerCount + ", queueCapacity=" + queueCapacity);
+        }
+        this.workers = new ThreadPoolExecutor[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            String name = "mqtt-inbound-" + i;
+            workers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+    }
+
+    /**
+     * Queues {@code handler} to handle {@code message} on the device's worker. Returns false if
+     * the worker's queue was full and the message was dropped.
+     */
+    public boolean dispatch(String topic, MqttMessage message, IMqttMessageListener handler) {
+        long queuedAt = System.nanoTime();
+        MqttMetrics.inboundQueued();
+        try {
+            workerFor(topic).execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    handler.messageArrived(topic, message);
+                } catch (Exception e) {
+                    failed.increment();
+                    HANDLER_LOG.warn("Handler for {} failed", topic, e);
+                } finally {
+                    MqttMetrics.inboundHandled(start - queuedAt, System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            MqttMetrics.inboundRejected();
+            rejected.increment();
+            OVERLOAD_LOG.warn("Dropped a message on {}: its worker's queue is full", topic);
+            return false;
+        }
+        dispatched.increment();
+        return true;
+    }
+
+    /** A listener that hands every message to {@code handler} through this dispatcher. */
+    public IMqttMessageListener wrap(IMqttMessageListener handler) {
+        return (topic, message) -> dispatch(topic, message, handler);
+    }
+
+    /** A callback whose {@code messageArrived} goes through this dispatcher; the other calls pass straight through. */
+    public MqttCallback wrap(MqttCallback callback) {
+        return new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                callback.connectionLost(cause);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                dispatch(topic, message, callback::messageArrived);
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+                callback.deliveryComplete(token);
+            }
+        };
+    }
+
+    public long getDispatched() {
+        return dispatched.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /** Messages whose handler threw. */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /** Messages waiting for a worker right now. */
+    public int getQueued() {
+        int queued = 0;
+        for (ThreadPoolExecutor worker : workers) {
+            queued += worker.getQueue().size();
+        }
+        return queued;
+    }
+
+    /** Stops taking messages and waits up to five seconds for queued ones to be handled. */
+    @Override
+    public void close() {
+        for (ThreadPoolExecutor worker : workers) {
+            worker.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (ThreadPoolExecutor worker : workers) {
+            try {
+                worker.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d workers: %d dispatched, %d dropped, %d failed, %d queued",
+                workers.length, getDispatched(), getRejected(), getFailed(), getQueued());
+    }
+
+    /** The device id in a Cloud IoT Core topic, or the topic itself if it is not a device topic. */
+    static String partitionKey(String topic) {
+        String deviceId = DeviceTopics.deviceIdOf(topic);
+        return deviceId != null ? deviceId : topic;
+    }
+
+    private ThreadPoolExecutor workerFor(String topic) {
+        return workers[Math.floorMod(partitionKey(topic).hashCode(), workers.length)];
+    }
+}
@@ -0,0 +1,23 @@
+package com.alok.iot.mqtt.gcp.inbound;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Handles an inbound message's payload without copying or decoding it. {@link Payloads} decodes
+ * it on demand.
+ */
+@FunctionalInterface
+public interface PayloadHandler {
+    /**
+     * @param payload a read-only view of the message's payload, positioned at its start; it is
+     *                only valid until the handler returns
+     */
+    void handle(String topic, ByteBuffer payload) throws Exception;
+
+    /** A listener that hands {@code handler} a read-only view of each message's payload. */
+    static IMqttMessageListener listener(PayloadHandler handler) {
+        return (topic, message) -> handler.handle(topic, Payloads.view(message));
+    }
+}
@@ -0,0 +1,69 @@
+package com.alok.iot.mqtt.gcp.inbound;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes {@link PayloadHandler} payloads when, and only if, a handler needs them. None of these
+ * move the payload's position.
+ */
+public final class Payloads {
+    private Payloads() {
+    }
+
+    /** A read-only view of the message's payload; Paho's array is shared, not copied. */
+    public static ByteBuffer view(MqttMessage message) {
+        return ByteBuffer.wrap(message.getPayload()).asReadOnlyBuffer();
+    }
+
+    /** Decodes the payload as UTF-8. */
+    public static String text(ByteBuffer payload) {
+        return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+    }
+
+    /**
+     * An object whose {@code toString()} decodes the payload, for log arguments that are only
+     * rendered when the message is actually logged.
+     */
+    public static Object lazyText(ByteBuffer payload) {
+        ByteBuffer view = payload.duplicate();
+        return new Object() {
+            @Override
+            public String toString() {
+                return text(view);
+            }
+        };
+    }
+
+    /** Streams the payload, for parsers that read from an {@link InputStream}. */
+    public static InputStream stream(ByteBuffer payload) {
+        ByteBuffer view = payload.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return view.hasRemaining() ? view.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (length == 0) {
+                    return 0;
+                }
+                if (!view.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(length, view.remaining());
+                view.get(bytes, offset, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return view.remaining();
+            }
+        };
+    }
+}
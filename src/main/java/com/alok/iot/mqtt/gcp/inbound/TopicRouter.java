@@ -0,0 +1,212 @@
+package com.alok.iot.mqtt.gcp.inbound;
+
+import com.alok.iot.mqtt.gcp.logging.SampledLogger;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes inbound messages to the handlers registered for matching topic filters, so one
+ * connection can serve the config and command topics of every device attached to a gateway.
+ *
+ * Filters are kept in a trie with one level per topic level, and {@code +} and {@code #} follow
+ * MQTT's wildcard rules. Routing a topic walks its levels once, checking the exact, {@code +} and
+ * {@code #} children at each, so its cost depends on the topic's depth and not on how many
+ * filters are registered. Routing is lock-free and may run on many threads; registering and
+ * unregistering take a lock.
+ */
+public class TopicRouter implements IMqttMessageListener {
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+    private static final SampledLogger UNROUTED_LOG =
+            SampledLogger.of(TopicRouter.class.getName() + ".unrouted", 5, 1);
+
+    private final Node root = new Node(null, null);
+    private final LongAdder routed = new LongAdder();
+    private final LongAdder unrouted = new LongAdder();
+    private int registrations;
+
+    /** Calls {@code handler} for every message on a topic matching {@code topicFilter}. */
+    public synchronized void register(String topicFilter, IMqttMessageListener handler) {
+        validate(topicFilter);
+        Node node = root;
+        int start = 0;
+        while (true) {
+            int end = levelEnd(topicFilter, start);
+            String level = topicFilter.substring(start, end);
+            Node parent = node;
+            node = parent.children.computeIfAbsent(level, key -> new Node(parent, key));
+            if (end == topicFilter.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        node.handlers.add(handler);
+        registrations++;
+    }
+
+    /** Removes one registration of {@code handler} for {@code topicFilter}; returns false if there was none. */
+    public synchronized boolean unregister(String topicFilter, IMqttMessageListener handler) {
+        Node node = root;
+        int start = 0;
+        while (node != null) {
+            int end = levelEnd(topicFilter, start);
+            node = node.children.get(topicFilter.substring(start, end));
+            if (end == topicFilter.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (node == null || !node.handlers.remove(handler)) {
+            return false;
+        }
+        registrations--;
+        // Prune the branch back to the first node still in use.
+        while (node.parent != null && node.handlers.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.level);
+            node = node.parent;
+        }
+        return true;
+    }
+
+    /**
+     * Calls every handler whose filter matches {@code topic}, on the calling thread, and returns
+     * how many there were. If handlers throw, the rest still run and the first exception is
+     * rethrown afterwards.
+     */
+    public int route(String topic, MqttMessage message) throws Exception {
+        Routing routing = new Routing(topic, message);
+        routing.visit(root, 0);
+        if (routing.handled == 0) {
+            unrouted.increment();
+            UNROUTED_LOG.warn("No handler for a message on {}", topic);
+        } else {
+            routed.increment();
+        }
+        if (routing.failure != null) {
+            throw routing.failure;
+        }
+        return routing.handled;
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        route(topic, message);
+    }
+
+    /** Registered (filter, handler) pairs. */
+    public synchronized int size() {
+        return registrations;
+    }
+
+    /** Messages that reached at least one handler. */
+    public long getRouted() {
+        return routed.sum();
+    }
+
+    /** Messages no filter matched. */
+    public long getUnrouted() {
+        return unrouted.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d handlers: %d messages routed, %d unrouted", size(), getRouted(), getUnrouted());
+    }
+
+    private static int levelEnd(String topic, int start) {
+        int end = topic.indexOf('/', start);
+        return end < 0 ? topic.length() : end;
+    }
+
+    private static void validate(String topicFilter) {
+        if (topicFilter == null || topicFilter.isEmpty()) {
+            throw new IllegalArgumentException("Invalid topic filter: empty");
+        }
+        int start = 0;
+        while (true) {
+            int end = levelEnd(topicFilter, start);
+            String level = topicFilter.substring(start, end);
+            boolean last = end == topicFilter.length();
+            if ((level.contains(MULTI_LEVEL) && (!MULTI_LEVEL.equals(level) || !last))
+                    || (level.contains(SINGLE_LEVEL) && !SINGLE_LEVEL.equals(level))) {
+                throw new IllegalArgumentException(
+                        "Invalid topic filter " + topicFilter
+                                + ". '+' must be a whole level and '#' must be the whole last level.");
+            }
+            if (last) {
+                return;
+            }
+            start = end + 1;
+        }
+    }
+
+    private static final class Node {
+        final Node parent;
+        final String level;
+        final Map<String, Node> children = new ConcurrentHashMap<>();
+        final List<IMqttMessageListener> handlers = new CopyOnWriteArrayList<>();
+
+        Node(Node parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+    }
+
+    /** One message's walk down the trie. */
+    private static final class Routing {
+        final String topic;
+        final MqttMessage message;
+        int handled;
+        Exception failure;
+
+        Routing(String topic, MqttMessage message) {
+            this.topic = topic;
+            this.message = message;
+        }
+
+        /** Visits {@code node}, which matched the levels before {@code start}. */
+        void visit(Node node, int start) {
+            // Wildcards in the first level do not match topics starting with '$'.
+            boolean wildcardsMatch = start > 0 || !topic.startsWith("$");
+            // '#' also matches the parent level itself, so "a/#" matches "a".
+            Node multi = node.children.get(MULTI_LEVEL);
+            if (multi != null && wildcardsMatch) {
+                call(multi);
+            }
+            if (start > topic.length()) {
+                call(node);
+                return;
+            }
+            int end = levelEnd(topic, start);
+            Node exact = node.children.get(topic.substring(start, end));
+            if (exact != null) {
+                visit(exact, end + 1);
+            }
+            Node single = node.children.get(SINGLE_LEVEL);
+            if (single != null && wildcardsMatch) {
+                visit(single, end + 1);
+            }
+        }
+
+        void call(Node node) {
+            for (IMqttMessageListener handler : node.handlers) {
+                handled++;
+                try {
+                    handler.messageArrived(topic, message);
+                } catch (Exception e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.alok.iot.mqtt.gcp.loadgen;
+
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import com.alok.iot.mqtt.gcp.session.DeviceSession;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import com.alok.iot.mqtt.gcp.utils.HashedWheelTimer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a fleet of {@link DeviceSession}s at a target publish rate and measures what comes back.
+ *
+ * Each device publishes on its own shard thread at {@code ratePerDevice} messages per second,
+ * scaled by the {@link RampProfile}, cycling through {@code payloadSizes}. Load is open-loop: a
+ * device never waits for an acknowledgement before sending its next message, and latency is
+ * measured from when a message was due rather than when it was actually sent, so a stalled shard
+ * or client shows up in the percentiles instead of quietly lowering the offered load. Devices
+ * start at random phases so their publishes do not line up. When each device is next due is kept
+ * on a shared {@link HashedWheelTimer}, which hands the device back to its shard; the wheel's tick
+ * is part of the measured latency. Every device connects on its own; devices behind a gateway are
+ * not simulated.
+ *
+ * With a {@code stateIntervalMillis}, each device also reports its state that often, from a
+ * periodic timer on the same wheel. State heartbeats are counted as errors when they fail but are
+ * not part of the throughput or latency figures.
+ */
+public class LoadGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    /** Longest a device sleeps before re-reading the ramp, so a rising rate takes effect promptly. */
+    private static final long MAX_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long DRAIN_TIMEOUT_MILLIS = 10_000;
+
+    private final List<DeviceSession> sessions;
+    private final HashedWheelTimer timer;
+    private final String messageType;
+    private final double ratePerDevice;
+    private final byte[][] payloads;
+    private final int qos;
+    private final RampProfile ramp;
+    private final long rampMillis;
+    private final long stateIntervalMillis;
+
+    private final Recorder recorder = new Recorder(HIGHEST_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder connected = new LongAdder();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private volatile long startNanos;
+    private volatile boolean stopped;
+
+    /**
+     * @param messageType what each device publishes, as {@link DeviceTopics#telemetry} takes it
+     * @param payloadSizes payload sizes in bytes, used in turn by every device
+     * @param stateIntervalMillis how often each device reports its state, or 0 for never
+     */
+    public LoadGenerator(
+            Collection<DeviceSession> sessions,
+            HashedWheelTimer timer,
+            String messageType,
+            double ratePerDevice,
+            int[] payloadSizes,
+            int qos,
+            RampProfile ramp,
+            long rampMillis,
+            long stateIntervalMillis) {
+        if (ratePerDevice <= 0 || payloadSizes.length == 0 || rampMillis < 0 || stateIntervalMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid load: ratePerDevice=" + ratePerDevice + ", payloadSizes=" + Arrays.toString(payloadSizes)
+                            + ", rampMillis=" + rampMillis + ", stateIntervalMillis=" + stateIntervalMillis);
+        }
+        this.sessions = new ArrayList<>(sessions);
+        this.timer = timer;
+        this.messageType = messageType;
+        this.ratePerDevice = ratePerDevice;
+        this.payloads = new byte[payloadSizes.length][];
+        for (int i = 0; i < payloadSizes.length; i++) {
+            payloads[i] = payload(payloadSizes[i]);
+        }
+        this.qos = qos;
+        this.ramp = ramp;
+        this.rampMillis = rampMillis;
+        this.stateIntervalMillis = stateIntervalMillis;
+    }
+
+    /**
+     * Connects every session, publishes for {@code durationMillis}, logs a report every
+     * {@code reportIntervalMillis}, then waits briefly for outstanding acknowledgements. The
+     * sessions are left connected.
+     */
+    public LoadReport run(long durationMillis, long reportIntervalMillis) throws InterruptedException {
+        startNanos = System.nanoTime();
+        stopped = false;
+        for (DeviceSession session : sessions) {
+            Device device = new Device(session);
+            session.connect().whenComplete((ignored, e) -> {
+                if (e != null) {
+                    error("connect:" + MqttMetrics.reason(e));
+                    return;
+                }
+                connected.increment();
+                session.getShard().execute(() -> device.start(System.nanoTime()));
+            });
+        }
+
+        Histogram total = new Histogram(HIGHEST_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+        long lastSent = 0;
+        Map<String, Long> lastErrors = new HashMap<>();
+        long lastReportNanos = startNanos;
+        long endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long now;
+        while ((now = System.nanoTime()) < endNanos) {
+            TimeUnit.NANOSECONDS.sleep(Math.min(TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis), endNanos - now));
+            Histogram interval = recorder.getIntervalHistogram();
+            total.add(interval);
+            long reportNanos = System.nanoTime();
+            long sentNow = sent.sum();
+            Map<String, Long> errorsNow = errorCounts();
+            LOG.info("Load test interval: {}",
+                    new LoadReport(
+                            sessions.size(),
+                            connected.intValue(),
+                            TimeUnit.NANOSECONDS.toMillis(reportNanos - lastReportNanos),
+                            sentNow - lastSent,
+                            interval,
+                            difference(errorsNow, lastErrors)));
+            lastReportNanos = reportNanos;
+            lastSent = sentNow;
+            lastErrors = errorsNow;
+        }
+        stopped = true;
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+        long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (outstanding.get() > 0 && System.currentTimeMillis() < drainDeadline) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        if (outstanding.get() > 0) {
+            LOG.warn("{} messages were still unacknowledged when the load test ended", outstanding.get());
+        }
+        total.add(recorder.getIntervalHistogram());
+        return new LoadReport(sessions.size(), connected.intValue(), elapsedMillis, sent.sum(), total, errorCounts());
+    }
+
+    private void error(String reason) {
+        errors.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+
+    private Map<String, Long> errorCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    private static Map<String, Long> difference(Map<String, Long> now, Map<String, Long> before) {
+        Map<String, Long> difference = new HashMap<>();
+        for (Map.Entry<String, Long> entry : now.entrySet()) {
+            long count = entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+            if (count > 0) {
+                difference.put(entry.getKey(), count);
+            }
+        }
+        return difference;
+    }
+
+    /** A compressible but not trivial payload of the given size. */
+    private static byte[] payload(int size) {
+        byte[] alphabet = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.US_ASCII);
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = alphabet[ThreadLocalRandom.current().nextInt(alphabet.length)];
+        }
+        return payload;
+    }
+
+    /** One simulated device; only ever touched on its session's shard thread. */
+    private final class Device {
+        private final DeviceSession session;
+        private final String topic;
+        private final String stateTopic;
+        /** Hands the next tick to the shard; made once, as the wheel's thread runs it on every tick. */
+        private final Runnable nextTick;
+        private Pacer pacer;
+        private int nextPayload;
+        private HashedWheelTimer.Timeout heartbeat;
+        private long heartbeats;
+
+        Device(DeviceSession session) {
+            this.session = session;
+            DeviceTopics topics = DeviceTopics.of(session.getDeviceId());
+            this.topic = topics.telemetry(messageType);
+            this.stateTopic = topics.state();
+            this.nextTick = () -> session.getShard().execute(this::tick);
+        }
+
+        void start(long now) {
+            pacer = new Pacer(now, ThreadLocalRandom.current().nextDouble(), MAX_TICK_NANOS);
+            nextPayload = ThreadLocalRandom.current().nextInt(payloads.length);
+            if (stateIntervalMillis > 0) {
+                heartbeat = timer.newPeriodic(
+                        () -> session.getShard().execute(this::reportState),
+                        ThreadLocalRandom.current().nextLong(stateIntervalMillis),
+                        stateIntervalMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            tick();
+        }
+
+        private void reportState() {
+            if (stopped) {
+                heartbeat.cancel();
+                return;
+            }
+            byte[] state = ("{\"heartbeat\":" + ++heartbeats + "}").getBytes(StandardCharsets.UTF_8);
+            session.publish(stateTopic, state, qos).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    error("state:" + MqttMetrics.reason(e));
+                }
+            });
+        }
+
+        private void tick() {
+            if (stopped) {
+                return;
+            }
+            long now = System.nanoTime();
+            double rate = ratePerDevice * ramp.fraction(TimeUnit.NANOSECONDS.toMillis(now - startNanos), rampMillis);
+            pacer.accrue(now, rate);
+            if (pacer.isDue()) {
+                send(pacer.take(now, rate));
+            }
+            long delay = pacer.delayNanos(rate);
+            if (delay == 0) {
+                session.getShard().execute(this::tick);
+            } else {
+                timer.newTimeout(nextTick, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void send(long dueNanos) {
+            byte[] payload = payloads[nextPayload];
+            nextPayload = (nextPayload + 1) % payloads.length;
+            sent.increment();
+            outstanding.incrementAndGet();
+            session.publish(topic, payload, qos).whenComplete((ignored, e) -> {
+                outstanding.decrementAndGet();
+                if (e != null) {
+                    error(MqttMetrics.reason(e));
+                    return;
+                }
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dueNanos);
+                recorder.recordValue(Math.min(Math.max(0, micros), HIGHEST_LATENCY_MICROS));
+            });
+        }
+    }
+}
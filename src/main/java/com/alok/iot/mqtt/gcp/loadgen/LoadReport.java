@@ -0,0 +1,99 @@
+package com.alok.iot.mqtt.gcp.loadgen;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** What a load test, or one reporting interval of it, achieved. Latencies are in microseconds. */
+public class LoadReport {
+    private final int devices;
+    private final int connectedDevices;
+    private final long elapsedMillis;
+    private final long sent;
+    private final Histogram latencyMicros;
+    private final Map<String, Long> errors;
+
+    LoadReport(
+            int devices,
+            int connectedDevices,
+            long elapsedMillis,
+            long sent,
+            Histogram latencyMicros,
+            Map<String, Long> errors) {
+        this.devices = devices;
+        this.connectedDevices = connectedDevices;
+        this.elapsedMillis = elapsedMillis;
+        this.sent = sent;
+        this.latencyMicros = latencyMicros;
+        this.errors = Collections.unmodifiableMap(new TreeMap<>(errors));
+    }
+
+    public int getDevices() {
+        return devices;
+    }
+
+    public int getConnectedDevices() {
+        return connectedDevices;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /** Messages handed to the client. */
+    public long getSent() {
+        return sent;
+    }
+
+    /** Messages the broker acknowledged. */
+    public long getAcked() {
+        return latencyMicros.getTotalCount();
+    }
+
+    public double getAckedPerSec() {
+        return elapsedMillis == 0 ? 0 : getAcked() * 1000.0 / elapsedMillis;
+    }
+
+    /** Error counts keyed by Paho reason code or exception type; connect failures are prefixed with "connect:". */
+    public Map<String, Long> getErrors() {
+        return errors;
+    }
+
+    public long getErrorCount() {
+        long total = 0;
+        for (long count : errors.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /** Publish to PUBACK latency, measured from when each message was due to be sent. */
+    public Histogram getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(
+                "%d/%d devices connected, %d sent, %d acked in %.1fs (%.1f msg/s), %d errors",
+                connectedDevices, devices, sent, getAcked(), elapsedMillis / 1000.0, getAckedPerSec(),
+                getErrorCount()));
+        if (latencyMicros.getTotalCount() > 0) {
+            sb.append(String.format(
+                    "%n  PUBACK latency ms: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                    millisAt(50), millisAt(90), millisAt(99), millisAt(99.9),
+                    latencyMicros.getMaxValue() / 1000.0));
+        }
+        for (Map.Entry<String, Long> error : errors.entrySet()) {
+            sb.append(String.format("%n  %s: %d", error.getKey(), error.getValue()));
+        }
+        return sb.toString();
+    }
+
+    private double millisAt(double percentile) {
+        return latencyMicros.getValueAtPercentile(percentile) / 1000.0;
+    }
+}
@@ -0,0 +1,55 @@
+package com.alok.iot.mqtt.gcp.loadgen;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open-loop pacing for one simulated device. Credit accrues at the current rate, and a message is
+ * due each time it reaches one; the message's due time is when the credit crossed one, which may
+ * be well before the device got to run. Not thread-safe; a device only touches it on its shard.
+ */
+final class Pacer {
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long maxDelayNanos;
+    private long lastNanos;
+    /** Messages owed at the current rate. */
+    private double credit;
+
+    /**
+     * @param initialCredit where in its first interval the device starts, in [0, 1)
+     * @param maxDelayNanos the longest {@link #delayNanos} returns, so a rising rate is seen promptly
+     */
+    Pacer(long startNanos, double initialCredit, long maxDelayNanos) {
+        this.lastNanos = startNanos;
+        this.credit = initialCredit;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /** Accrues credit at {@code rate} messages per second from the last call until {@code now}. */
+    void accrue(long now, double rate) {
+        credit += rate * (now - lastNanos) / NANOS_PER_SECOND;
+        lastNanos = now;
+    }
+
+    boolean isDue() {
+        return credit >= 1;
+    }
+
+    /** Takes the oldest due message and returns when it fell due, given the credit was accrued at {@code rate}. */
+    long take(long now, double rate) {
+        long due = rate > 0 ? now - (long) ((credit - 1) / rate * NANOS_PER_SECOND) : now;
+        credit -= 1;
+        return due;
+    }
+
+    /** How long until the next message is due at {@code rate}: zero if one already is, at most the maximum delay. */
+    long delayNanos(double rate) {
+        if (credit >= 1) {
+            return 0;
+        }
+        if (rate <= 0) {
+            return maxDelayNanos;
+        }
+        return Math.min((long) ((1 - credit) / rate * NANOS_PER_SECOND), maxDelayNanos);
+    }
+}
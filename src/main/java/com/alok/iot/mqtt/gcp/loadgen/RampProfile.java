@@ -0,0 +1,35 @@
+package com.alok.iot.mqtt.gcp.loadgen;
+
+/** How a load test builds up to its target publish rate. */
+public enum RampProfile {
+    /** Every device publishes at the full rate from the start. */
+    CONSTANT,
+    /** The rate grows linearly from zero to the full rate over the ramp period. */
+    LINEAR,
+    /** The rate climbs in four equal steps of 25% spread over the ramp period. */
+    STEP;
+
+    private static final int STEPS = 4;
+
+    public static RampProfile forName(String name) {
+        for (RampProfile profile : values()) {
+            if (profile.name().equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException(
+                "Invalid ramp profile " + name + ". Should be one of 'constant', 'linear' or 'step'.");
+    }
+
+    /** The fraction of the target rate to publish at, {@code elapsedMillis} into the test. */
+    public double fraction(long elapsedMillis, long rampMillis) {
+        if (this == CONSTANT || rampMillis <= 0 || elapsedMillis >= rampMillis) {
+            return 1.0;
+        }
+        double progress = Math.max(0, elapsedMillis) / (double) rampMillis;
+        if (this == LINEAR) {
+            return progress;
+        }
+        return (Math.floor(progress * STEPS) + 1) / STEPS;
+    }
+}
@@ -0,0 +1,90 @@
+package com.alok.iot.mqtt.gcp.logging;
+
+import com.alok.iot.mqtt.gcp.utils.TokenBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs one category of frequent events, e.g. every publish: only one event in every
+ * {@code sampleEvery}, and at most {@code maxPerSecond} of those. Events left out are counted,
+ * and the count is appended to the next event that is logged.
+ *
+ * The level is checked before anything else, so a disabled category costs next to nothing, and
+ * arguments are only formatted for events that are logged.
+ */
+public final class SampledLogger {
+    private static final String SUPPRESSED_SUFFIX = " ({} similar suppressed)";
+
+    private final Logger logger;
+    private final int sampleEvery;
+    private final TokenBucket budget;
+    private final AtomicLong seen = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    public SampledLogger(Logger logger, double maxPerSecond, int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be at least 1, was " + sampleEvery);
+        }
+        this.logger = logger;
+        this.sampleEvery = sampleEvery;
+        this.budget = new TokenBucket(maxPerSecond, Math.max(1, maxPerSecond));
+    }
+
+    /** A sampled logger for {@code category}, whose level can be set like any other logger's. */
+    public static SampledLogger of(String category, double maxPerSecond, int sampleEvery) {
+        return new SampledLogger(LoggerFactory.getLogger(category), maxPerSecond, sampleEvery);
+    }
+
+    public void debug(String format, Object... args) {
+        if (logger.isDebugEnabled() && admit()) {
+            Object[] withCount = appendSuppressed(args);
+            logger.debug(withCount == args ? format : format + SUPPRESSED_SUFFIX, withCount);
+        }
+    }
+
+    public void info(String format, Object... args) {
+        if (logger.isInfoEnabled() && admit()) {
+            Object[] withCount = appendSuppressed(args);
+            logger.info(withCount == args ? format : format + SUPPRESSED_SUFFIX, withCount);
+        }
+    }
+
+    public void warn(String format, Object... args) {
+        if (logger.isWarnEnabled() && admit()) {
+            Object[] withCount = appendSuppressed(args);
+            logger.warn(withCount == args ? format : format + SUPPRESSED_SUFFIX, withCount);
+        }
+    }
+
+    /** Events left out since the last one that was logged. */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    private boolean admit() {
+        if (seen.getAndIncrement() % sampleEvery == 0 && budget.tryAcquire()) {
+            return true;
+        }
+        suppressed.incrementAndGet();
+        return false;
+    }
+
+    /** Returns {@code args} itself if nothing was suppressed; keeps a trailing throwable last. */
+    private Object[] appendSuppressed(Object[] args) {
+        long count = suppressed.getAndSet(0);
+        if (count == 0) {
+            return args;
+        }
+        Object[] withCount = Arrays.copyOf(args, args.length + 1);
+        if (args.length > 0 && args[args.length - 1] instanceof Throwable) {
+            withCount[args.length - 1] = count;
+            withCount[args.length] = args[args.length - 1];
+        } else {
+            withCount[args.length] = count;
+        }
+        return withCount;
+    }
+}
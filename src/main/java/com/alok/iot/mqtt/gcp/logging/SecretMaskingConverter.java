@@ -0,0 +1,16 @@
+package com.alok.iot.mqtt.gcp.logging;
+
+import ch.qos.logback.classic.pattern.ClassicConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * The {@code %maskedMsg} pattern word in logback-spring.xml: the formatted message with
+ * {@link Secrets} masked. It runs on the async appender's worker thread, not the caller's.
+ */
+public class SecretMaskingConverter extends ClassicConverter {
+
+    @Override
+    public String convert(ILoggingEvent event) {
+        return Secrets.redact(event.getFormattedMessage());
+    }
+}
@@ -0,0 +1,16 @@
+package com.alok.iot.mqtt.gcp.logging;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import org.springframework.boot.logging.logback.ExtendedWhitespaceThrowableProxyConverter;
+
+/**
+ * The {@code %maskedEx} pattern word in logback-spring.xml: {@code %wEx} with {@link Secrets} masked,
+ * so a token or key carried in an exception message or a cause does not reach the log unmasked.
+ */
+public class SecretMaskingThrowableConverter extends ExtendedWhitespaceThrowableProxyConverter {
+
+    @Override
+    protected String throwableProxyToString(IThrowableProxy tp) {
+        return Secrets.redact(super.throwableProxyToString(tp));
+    }
+}
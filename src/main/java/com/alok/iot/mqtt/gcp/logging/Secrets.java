@@ -0,0 +1,30 @@
+package com.alok.iot.mqtt.gcp.logging;
+
+import java.util.regex.Pattern;
+
+/** Masks credentials in text that is about to be logged. */
+public final class Secrets {
+    public static final String MASK = "****";
+
+    /** A compact JWS: base64url header starting with '{"', payload and signature. */
+    private static final Pattern JWT =
+            Pattern.compile("eyJ[A-Za-z0-9_-]{4,}\\.[A-Za-z0-9_-]{4,}\\.[A-Za-z0-9_-]*");
+    private static final Pattern PRIVATE_KEY =
+            Pattern.compile("-----BEGIN [A-Z ]*PRIVATE KEY-----.*?(-----END [A-Z ]*PRIVATE KEY-----|$)", Pattern.DOTALL);
+    /** {@code password=x}, {@code "secret": "x"} and the like. */
+    private static final Pattern KEY_VALUE =
+            Pattern.compile(
+                    "(?i)\\b(password|passwd|secret|token|jwt|authorization)(\"?\\s*[=:]\\s*\"?)[^\\s\",;}]+");
+
+    private Secrets() {
+    }
+
+    public static String redact(String text) {
+        if (text == null || text.isEmpty()) {
+            return text;
+        }
+        String redacted = JWT.matcher(text).replaceAll(MASK);
+        redacted = PRIVATE_KEY.matcher(redacted).replaceAll(MASK);
+        return KEY_VALUE.matcher(redacted).replaceAll("$1$2" + MASK);
+    }
+}
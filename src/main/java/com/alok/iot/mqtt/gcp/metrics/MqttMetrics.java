@@ -0,0 +1,253 @@
+package com.alok.iot.mqtt.gcp.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters for the connect, publish, subscribe and callback paths, and for gateway attachments.
+ *
+ * Meters live in Micrometer's global registry, which Spring Boot feeds into its own registries,
+ * so they show up under {@code /actuator/metrics} and {@code /actuator/prometheus}. Nothing is
+ * tagged per device or client: with thousands of sessions per JVM that would blow up the number
+ * of time series. Rates such as messages or bytes per second are derived from the counters.
+ */
+public final class MqttMetrics {
+    public static final String PUBLISH_ACK = "mqtt.publish.ack";
+    public static final String PUBLISH_MESSAGES = "mqtt.publish.messages";
+    public static final String PUBLISH_BYTES = "mqtt.publish.bytes";
+    public static final String PUBLISH_FAILURES = "mqtt.publish.failures";
+    public static final String PUBLISH_IN_FLIGHT = "mqtt.publish.inflight";
+    public static final String PUBLISH_RATE_LIMITED = "mqtt.publish.rate_limited";
+    public static final String STATE_COALESCED = "mqtt.state.coalesced";
+    public static final String CONNECT = "mqtt.connect";
+    public static final String RECONNECTS = "mqtt.reconnects";
+    public static final String RECONNECT_LATENCY = "mqtt.reconnect.latency";
+    public static final String SUBSCRIBE = "mqtt.subscribe";
+    public static final String RECEIVED_MESSAGES = "mqtt.received.messages";
+    public static final String RECEIVED_BYTES = "mqtt.received.bytes";
+    public static final String CALLBACK = "mqtt.callback";
+    public static final String INBOUND_WAIT = "mqtt.inbound.wait";
+    public static final String INBOUND_HANDLER = "mqtt.inbound.handler";
+    public static final String INBOUND_QUEUED = "mqtt.inbound.queued";
+    public static final String INBOUND_REJECTED = "mqtt.inbound.rejected";
+    public static final String GATEWAY_ATTACHES = "mqtt.gateway.attaches";
+    public static final String GATEWAY_DETACHES = "mqtt.gateway.detaches";
+    public static final String GATEWAY_ATTACHED = "mqtt.gateway.attached";
+    public static final String GATEWAY_BREAKER_TRIPS = "mqtt.gateway.breaker.trips";
+    public static final String GATEWAY_PAUSED = "mqtt.gateway.paused";
+    public static final String JWT_MINT = "jwt.mint";
+
+    private static final MeterRegistry REGISTRY = Metrics.globalRegistry;
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    private static final AtomicInteger INBOUND_QUEUE_DEPTH = new AtomicInteger();
+    private static final AtomicInteger GATEWAY_ATTACHED_DEVICES = new AtomicInteger();
+
+    private static final Timer PUBLISH_ACK_TIMER =
+            Timer.builder(PUBLISH_ACK)
+                    .description("Time from publishing a message to its acknowledgement")
+                    .publishPercentileHistogram()
+                    .register(REGISTRY);
+    private static final Counter PUBLISH_MESSAGES_COUNTER =
+            Counter.builder(PUBLISH_MESSAGES).description("Messages acknowledged").register(REGISTRY);
+    private static final Counter PUBLISH_BYTES_COUNTER =
+            Counter.builder(PUBLISH_BYTES)
+                    .description("Payload bytes acknowledged")
+                    .baseUnit("bytes")
+                    .register(REGISTRY);
+    private static final Timer CONNECT_SUCCESS_TIMER = connectTimer("success");
+    private static final Timer CONNECT_FAILURE_TIMER = connectTimer("failure");
+    private static final Counter RECONNECTS_COUNTER =
+            Counter.builder(RECONNECTS).description("Connections restored after being lost").register(REGISTRY);
+    private static final Timer RECONNECT_LATENCY_TIMER =
+            Timer.builder(RECONNECT_LATENCY)
+                    .description("Time from losing a connection to having it back")
+                    .publishPercentileHistogram()
+                    .register(REGISTRY);
+    private static final Timer SUBSCRIBE_TIMER =
+            Timer.builder(SUBSCRIBE).description("Time from subscribing to the SUBACK").register(REGISTRY);
+    private static final Counter RECEIVED_MESSAGES_COUNTER =
+            Counter.builder(RECEIVED_MESSAGES).description("Messages delivered to callbacks").register(REGISTRY);
+    private static final Counter RECEIVED_BYTES_COUNTER =
+            Counter.builder(RECEIVED_BYTES)
+                    .description("Payload bytes delivered to callbacks")
+                    .baseUnit("bytes")
+                    .register(REGISTRY);
+    private static final Timer CALLBACK_TIMER =
+            Timer.builder(CALLBACK)
+                    .description("Time spent in message callbacks, on Paho's callback thread")
+                    .publishPercentileHistogram()
+                    .register(REGISTRY);
+    private static final Timer INBOUND_WAIT_TIMER =
+            Timer.builder(INBOUND_WAIT)
+                    .description("Time inbound messages wait for a dispatch worker")
+                    .publishPercentileHistogram()
+                    .register(REGISTRY);
+    private static final Timer INBOUND_HANDLER_TIMER =
+            Timer.builder(INBOUND_HANDLER)
+                    .description("Time spent in inbound message handlers, on dispatch workers")
+                    .publishPercentileHistogram()
+                    .register(REGISTRY);
+    private static final Counter INBOUND_REJECTED_COUNTER =
+            Counter.builder(INBOUND_REJECTED)
+                    .description("Inbound messages dropped because their worker's queue was full")
+                    .register(REGISTRY);
+    private static final Counter STATE_COALESCED_COUNTER =
+            Counter.builder(STATE_COALESCED)
+                    .description("State updates replaced by a newer one before they were sent")
+                    .register(REGISTRY);
+    private static final Counter GATEWAY_ATTACHES_COUNTER =
+            Counter.builder(GATEWAY_ATTACHES).description("Devices attached to a gateway").register(REGISTRY);
+    private static final Counter GATEWAY_PAUSED_COUNTER =
+            Counter.builder(GATEWAY_PAUSED)
+                    .description("Publishes refused because the device's circuit breaker was open")
+                    .register(REGISTRY);
+    private static final Timer JWT_MINT_TIMER =
+            Timer.builder(JWT_MINT).description("Time to create and sign a JWT").register(REGISTRY);
+
+    static {
+        Gauge.builder(PUBLISH_IN_FLIGHT, IN_FLIGHT, AtomicInteger::get)
+                .description("Messages published but not yet acknowledged")
+                .register(REGISTRY);
+        Gauge.builder(INBOUND_QUEUED, INBOUND_QUEUE_DEPTH, AtomicInteger::get)
+                .description("Inbound messages waiting for a dispatch worker")
+                .register(REGISTRY);
+        Gauge.builder(GATEWAY_ATTACHED, GATEWAY_ATTACHED_DEVICES, AtomicInteger::get)
+                .description("Devices currently attached to a gateway")
+                .register(REGISTRY);
+    }
+
+    private MqttMetrics() {
+    }
+
+    /** Call when a message is handed to Paho; pair with {@link #published} or {@link #publishFailed}. */
+    public static void publishing() {
+        IN_FLIGHT.incrementAndGet();
+    }
+
+    public static void published(int payloadBytes, long ackNanos) {
+        IN_FLIGHT.decrementAndGet();
+        PUBLISH_ACK_TIMER.record(ackNanos, TimeUnit.NANOSECONDS);
+        PUBLISH_MESSAGES_COUNTER.increment();
+        PUBLISH_BYTES_COUNTER.increment(payloadBytes);
+    }
+
+    /** Counts a failed publish; {@code wasInFlight} says whether {@link #publishing()} was called for it. */
+    public static void publishFailed(Throwable e, boolean wasInFlight) {
+        if (wasInFlight) {
+            IN_FLIGHT.decrementAndGet();
+        }
+        Counter.builder(PUBLISH_FAILURES)
+                .description("Messages that could not be published")
+                .tag("reason", reason(e))
+                .register(REGISTRY)
+                .increment();
+    }
+
+    /** Counts a publish over its device's quota; {@code action} is 'queued' or 'shed'. */
+    public static void publishRateLimited(String action) {
+        Counter.builder(PUBLISH_RATE_LIMITED)
+                .description("Publishes held back or refused for exceeding a device quota")
+                .tag("action", action)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    public static void stateCoalesced() {
+        STATE_COALESCED_COUNTER.increment();
+    }
+
+    public static void connected(long nanos) {
+        CONNECT_SUCCESS_TIMER.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void connectFailed(long nanos) {
+        CONNECT_FAILURE_TIMER.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void reconnected(long latencyMillis) {
+        RECONNECTS_COUNTER.increment();
+        RECONNECT_LATENCY_TIMER.record(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static void subscribed(long nanos) {
+        SUBSCRIBE_TIMER.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void messageHandled(int payloadBytes, long handlerNanos) {
+        RECEIVED_MESSAGES_COUNTER.increment();
+        RECEIVED_BYTES_COUNTER.increment(payloadBytes);
+        CALLBACK_TIMER.record(handlerNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Call before queuing an inbound message for a worker; pair with {@link #inboundHandled} or {@link #inboundRejected}. */
+    public static void inboundQueued() {
+        INBOUND_QUEUE_DEPTH.incrementAndGet();
+    }
+
+    public static void inboundHandled(long waitNanos, long handlerNanos) {
+        INBOUND_QUEUE_DEPTH.decrementAndGet();
+        INBOUND_WAIT_TIMER.record(waitNanos, TimeUnit.NANOSECONDS);
+        INBOUND_HANDLER_TIMER.record(handlerNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void inboundRejected() {
+        INBOUND_QUEUE_DEPTH.decrementAndGet();
+        INBOUND_REJECTED_COUNTER.increment();
+    }
+
+    public static void gatewayAttached() {
+        GATEWAY_ATTACHED_DEVICES.incrementAndGet();
+        GATEWAY_ATTACHES_COUNTER.increment();
+    }
+
+    /** Counts a device leaving a gateway; {@code reason} says why, such as 'idle' or 'capacity'. */
+    public static void gatewayDetached(String reason) {
+        GATEWAY_ATTACHED_DEVICES.decrementAndGet();
+        Counter.builder(GATEWAY_DETACHES)
+                .description("Devices detached from a gateway")
+                .tag("reason", reason)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    /** Counts a device's circuit breaker opening on a gateway error of type {@code errorType}. */
+    public static void gatewayBreakerTripped(String errorType) {
+        Counter.builder(GATEWAY_BREAKER_TRIPS)
+                .description("Device circuit breakers opened by gateway errors")
+                .tag("error_type", errorType)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    public static void gatewayPublishPaused() {
+        GATEWAY_PAUSED_COUNTER.increment();
+    }
+
+    public static void jwtMinted(long nanos) {
+        JWT_MINT_TIMER.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** A low-cardinality tag value: the Paho reason code, or the exception type. */
+    public static String reason(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof MqttException) {
+            return Integer.toString(((MqttException) cause).getReasonCode());
+        }
+        return cause.getClass().getSimpleName();
+    }
+
+    private static Timer connectTimer(String outcome) {
+        return Timer.builder(CONNECT)
+                .description("Time taken by connect attempts")
+                .tag("outcome", outcome)
+                .register(REGISTRY);
+    }
+}
@@ -0,0 +1,536 @@
+package com.alok.iot.mqtt.gcp.persist;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A durable {@link MqttClientPersistence} backed by an append-only log of memory-mapped segment
+ * files, so QoS 1 messages that were published but not yet acknowledged survive a restart.
+ *
+ * Every put and remove appends a checksummed record to the active segment; an in-memory index
+ * points at the latest record for each key. Writes land in the page cache straight away, so they
+ * survive a process crash. A shared background thread forces dirty segments to disk every
+ * {@code syncIntervalMillis}, which bounds what a power loss can take with it to that window
+ * while letting every message written in the window share one fsync.
+ *
+ * When the active segment fills up a new one is started, and the oldest segments are reclaimed:
+ * deleted once nothing in them is live, or, if only a small fraction still is, after copying
+ * their live records forward. On {@link #open} the segments are replayed in order, stopping at the
+ * first torn record, and Paho resends the recovered messages on connect. Paho clears its
+ * persistence on a clean-session connect, so connect with {@code setCleanSession(false)}.
+ */
+public class MappedOutboxPersistence implements MqttClientPersistence {
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedOutboxPersistence.class);
+
+    /** Oldest segments whose live bytes are at most this fraction of their size get compacted. */
+    private static final double COMPACTION_LIVE_RATIO = 0.25;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = ".lck";
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    /** Length and CRC32 of the record body. */
+    private static final int RECORD_PREFIX_BYTES = 8;
+
+    private static final ScheduledExecutorService SYNCER =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "outbox-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final Path baseDirectory;
+    private final int segmentBytes;
+    private final long syncIntervalMillis;
+
+    private final CRC32 crc = new CRC32();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, Location> index = new HashMap<>();
+    private final Set<Segment> dirty = new LinkedHashSet<>();
+
+    private Path directory;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private Segment active;
+    private ScheduledFuture<?> syncTask;
+
+    public MappedOutboxPersistence(String directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    public MappedOutboxPersistence(String directory, int segmentBytes, long syncIntervalMillis) {
+        this.baseDirectory = Paths.get(directory);
+        this.segmentBytes = segmentBytes;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        if (directory != null) {
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+        }
+        try {
+            directory = baseDirectory.resolve(sanitize(clientId + "-" + serverURI));
+            Files.createDirectories(directory);
+
+            lockChannel = FileChannel.open(
+                    directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = lockChannel.tryLock();
+            if (lock == null) {
+                lockChannel.close();
+                directory = null;
+                throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+            }
+
+            recover();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        syncTask = SYNCER.scheduleWithFixedDelay(
+                this::syncQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() throws MqttPersistenceException {
+        List<Segment> toClose;
+        synchronized (this) {
+            if (directory == null) {
+                return;
+            }
+            syncTask.cancel(false);
+            toClose = new ArrayList<>(segments.values());
+            segments.clear();
+            index.clear();
+            dirty.clear();
+            active = null;
+            directory = null;
+        }
+        try {
+            for (Segment segment : toClose) {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] header = persistable.getHeaderBytes();
+        int headerOffset = persistable.getHeaderOffset();
+        int headerLength = header == null ? 0 : persistable.getHeaderLength();
+        byte[] payload = persistable.getPayloadBytes();
+        int payloadOffset = persistable.getPayloadOffset();
+        int payloadLength = payload == null ? 0 : persistable.getPayloadLength();
+
+        int bodyLength = 1 + 2 + keyBytes.length + 4 + headerLength + 4 + payloadLength;
+        Segment segment = reserve(RECORD_PREFIX_BYTES + bodyLength);
+        int start = segment.writePosition;
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(start + RECORD_PREFIX_BYTES);
+        buffer.put(OP_PUT);
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.putInt(headerLength);
+        int headerPosition = buffer.position();
+        if (headerLength > 0) {
+            buffer.put(header, headerOffset, headerLength);
+        }
+        buffer.putInt(payloadLength);
+        int payloadPosition = buffer.position();
+        if (payloadLength > 0) {
+            buffer.put(payload, payloadOffset, payloadLength);
+        }
+        commit(segment, start, bodyLength);
+
+        track(key, new Location(
+                segment, start, RECORD_PREFIX_BYTES + bodyLength,
+                headerPosition, headerLength, payloadPosition, payloadLength));
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        byte[] header = new byte[location.headerLength];
+        buffer.position(location.headerPosition);
+        buffer.get(header);
+        byte[] payload = null;
+        if (location.payloadLength > 0) {
+            payload = new byte[location.payloadLength];
+            buffer.position(location.payloadPosition);
+            buffer.get(payload);
+        }
+        return new MqttPersistentData(
+                key, header, 0, header.length, payload, 0, payload == null ? 0 : payload.length);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        if (!index.containsKey(key)) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 1 + 2 + keyBytes.length;
+        Segment segment = reserve(RECORD_PREFIX_BYTES + bodyLength);
+        int start = segment.writePosition;
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(start + RECORD_PREFIX_BYTES);
+        buffer.put(OP_REMOVE);
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        commit(segment, start, bodyLength);
+
+        untrack(key);
+    }
+
+    @Override
+    public synchronized Enumeration keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(index.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        long nextSequence = active.sequence + 1;
+        try {
+            for (Segment segment : new ArrayList<>(segments.values())) {
+                delete(segment);
+            }
+            index.clear();
+            active = createSegment(nextSequence, segmentBytes);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return index.containsKey(key);
+    }
+
+    /** Forces every segment written since the last sync to disk. */
+    public void sync() throws IOException {
+        List<Segment> toSync;
+        synchronized (this) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            toSync = new ArrayList<>(dirty);
+            dirty.clear();
+        }
+        for (Segment segment : toSync) {
+            segment.buffer.force();
+        }
+    }
+
+    /** Number of messages currently stored. */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** Number of segment files currently on disk. */
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Outbox sync failed for {}", directory, e);
+        }
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (directory == null) {
+            throw new MqttPersistenceException();
+        }
+    }
+
+    /** Returns a segment with room for {@code recordBytes}, starting a new one if needed. */
+    private Segment reserve(int recordBytes) throws MqttPersistenceException {
+        if (active.writePosition + recordBytes <= active.capacity) {
+            return active;
+        }
+        try {
+            active = createSegment(active.sequence + 1, Math.max(segmentBytes, recordBytes));
+            compact();
+            if (active.writePosition + recordBytes > active.capacity) {
+                // Records moved forward by compaction took the room.
+                active = createSegment(active.sequence + 1, Math.max(segmentBytes, recordBytes));
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        return active;
+    }
+
+    /** Checksums the record body and then writes its length, which makes the record visible. */
+    private void commit(Segment segment, int start, int bodyLength) {
+        ByteBuffer body = segment.buffer.duplicate();
+        body.position(start + RECORD_PREFIX_BYTES);
+        body.limit(start + RECORD_PREFIX_BYTES + bodyLength);
+        crc.reset();
+        crc.update(body);
+        segment.buffer.putInt(start + 4, (int) crc.getValue());
+        segment.buffer.putInt(start, bodyLength);
+        segment.writePosition = start + RECORD_PREFIX_BYTES + bodyLength;
+        dirty.add(segment);
+    }
+
+    private void track(String key, Location location) {
+        untrack(key);
+        index.put(key, location);
+        location.segment.liveRecords++;
+        location.segment.liveBytes += location.recordLength;
+    }
+
+    private void untrack(String key) {
+        Location previous = index.remove(key);
+        if (previous != null) {
+            previous.segment.liveRecords--;
+            previous.segment.liveBytes -= previous.recordLength;
+        }
+    }
+
+    /**
+     * Reclaims the oldest segments. Only the oldest one is ever deleted, so a remove record is never
+     * dropped while an older segment still holds the put it cancels.
+     */
+    private void compact() throws IOException {
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest.liveRecords > 0) {
+                if (oldest.liveBytes > oldest.capacity * COMPACTION_LIVE_RATIO
+                        || active.writePosition + oldest.liveBytes > active.capacity) {
+                    return;
+                }
+                relocateLiveRecords(oldest);
+            }
+            delete(oldest);
+        }
+    }
+
+    private void relocateLiveRecords(Segment from) {
+        for (Map.Entry<String, Location> entry : new ArrayList<>(index.entrySet())) {
+            Location location = entry.getValue();
+            if (location.segment != from) {
+                continue;
+            }
+            // The record is copied byte for byte, so its checksum stays valid.
+            int start = active.writePosition;
+            ByteBuffer source = from.buffer.duplicate();
+            source.position(location.start);
+            source.limit(location.start + location.recordLength);
+            ByteBuffer target = active.buffer.duplicate();
+            target.position(start);
+            target.put(source);
+            active.writePosition = start + location.recordLength;
+            dirty.add(active);
+
+            int shift = start - location.start;
+            track(entry.getKey(), new Location(
+                    active, start, location.recordLength,
+                    location.headerPosition + shift, location.headerLength,
+                    location.payloadPosition + shift, location.payloadLength));
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long sequence = Long.parseLong(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = mapSegment(sequence, file, (int) Files.size(file));
+            replay(segment);
+            active = segment;
+        }
+        if (active == null) {
+            active = createSegment(0, segmentBytes);
+        } else {
+            // New records overwrite whatever followed a torn record; clear it so that stale bytes
+            // behind them can never be replayed as records later.
+            ByteBuffer tail = active.buffer.duplicate();
+            tail.position(active.writePosition);
+            while (tail.hasRemaining()) {
+                tail.put((byte) 0);
+            }
+        }
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + RECORD_PREFIX_BYTES <= segment.capacity) {
+            int bodyLength = buffer.getInt(position);
+            int end = position + RECORD_PREFIX_BYTES + bodyLength;
+            if (bodyLength <= 0 || end > segment.capacity) {
+                break;
+            }
+            ByteBuffer body = segment.buffer.duplicate();
+            body.position(position + RECORD_PREFIX_BYTES);
+            body.limit(end);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                // A record torn by a crash; nothing after it was acknowledged as written.
+                break;
+            }
+
+            buffer.position(position + RECORD_PREFIX_BYTES);
+            byte op = buffer.get();
+            byte[] keyBytes = new byte[buffer.getShort() & 0xffff];
+            buffer.get(keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            if (op == OP_PUT) {
+                int headerLength = buffer.getInt();
+                int headerPosition = buffer.position();
+                buffer.position(headerPosition + headerLength);
+                int payloadLength = buffer.getInt();
+                int payloadPosition = buffer.position();
+                track(key, new Location(
+                        segment, position, RECORD_PREFIX_BYTES + bodyLength,
+                        headerPosition, headerLength, payloadPosition, payloadLength));
+            } else if (op == OP_REMOVE) {
+                untrack(key);
+            }
+            position = end;
+        }
+        segment.writePosition = position;
+    }
+
+    private Segment createSegment(long sequence, int capacity) throws IOException {
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        return mapSegment(sequence, file, capacity);
+    }
+
+    private Segment mapSegment(long sequence, Path file, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(
+                file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        Segment segment = new Segment(sequence, file, channel, buffer, capacity);
+        segments.put(sequence, segment);
+        return segment;
+    }
+
+    private void delete(Segment segment) throws IOException {
+        segments.remove(segment.sequence);
+        dirty.remove(segment);
+        segment.channel.close();
+        Files.deleteIfExists(segment.file);
+    }
+
+    private static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '-' ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static final class Segment {
+        final long sequence;
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        int writePosition;
+        int liveRecords;
+        long liveBytes;
+
+        Segment(long sequence, Path file, FileChannel channel, MappedByteBuffer buffer, int capacity) {
+            this.sequence = sequence;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+    }
+
+    /** Where the latest put record for a key lives. */
+    private static final class Location {
+        final Segment segment;
+        final int start;
+        final int recordLength;
+        final int headerPosition;
+        final int headerLength;
+        final int payloadPosition;
+        final int payloadLength;
+
+        Location(
+                Segment segment,
+                int start,
+                int recordLength,
+                int headerPosition,
+                int headerLength,
+                int payloadPosition,
+                int payloadLength) {
+            this.segment = segment;
+            this.start = start;
+            this.recordLength = recordLength;
+            this.headerPosition = headerPosition;
+            this.headerLength = headerLength;
+            this.payloadPosition = payloadPosition;
+            this.payloadLength = payloadLength;
+        }
+    }
+}
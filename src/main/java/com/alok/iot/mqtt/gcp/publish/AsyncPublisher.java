@@ -0,0 +1,111 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes through an {@link IMqttAsyncClient} with up to {@code maxInFlight} unacknowledged
+ * messages outstanding, instead of waiting for each PUBACK before sending the next message.
+ *
+ * When the window is full {@link #publish} blocks the caller until an acknowledgement frees a
+ * slot, which is the backpressure; after {@code acquireTimeoutMillis} it gives up and fails the
+ * message with {@link MqttException#REASON_CODE_MAX_INFLIGHT}. The connect options must allow at
+ * least as many in-flight messages, see {@link org.eclipse.paho.client.mqttv3.MqttConnectOptions#setMaxInflight}.
+ *
+ * Futures complete on Paho's callback thread; chain slow work with the {@code *Async} variants.
+ */
+public class AsyncPublisher implements MessagePublisher {
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 30000L;
+
+    private final IMqttAsyncClient client;
+    private final int maxInFlight;
+    private final Semaphore window;
+    private final long acquireTimeoutMillis;
+
+    public AsyncPublisher(IMqttAsyncClient client, int maxInFlight) {
+        this(client, maxInFlight, DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+    }
+
+    public AsyncPublisher(IMqttAsyncClient client, int maxInFlight, long acquireTimeoutMillis) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1, was " + maxInFlight);
+        }
+        this.client = client;
+        this.maxInFlight = maxInFlight;
+        this.window = new Semaphore(maxInFlight);
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            if (!window.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                MqttException e = new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+                MqttMetrics.publishFailed(e, false);
+                result.completeExceptionally(e);
+                return result;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        long start = System.nanoTime();
+        MqttMetrics.publishing();
+        try {
+            client.publish(topic, message, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    MqttMetrics.published(payload.length, System.nanoTime() - start);
+                    window.release();
+                    result.complete(null);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    MqttMetrics.publishFailed(exception, true);
+                    window.release();
+                    result.completeExceptionally(exception);
+                }
+            });
+        } catch (MqttException e) {
+            MqttMetrics.publishFailed(e, true);
+            window.release();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /** Number of messages published but not yet acknowledged. */
+    public int inFlight() {
+        return maxInFlight - window.availablePermits();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Waits until every in-flight message has completed, holding off new publishes while waiting.
+     * Returns false if that did not happen within the timeout.
+     */
+    public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!window.tryAcquire(maxInFlight, timeout, unit)) {
+            return false;
+        }
+        window.release(maxInFlight);
+        return true;
+    }
+}
@@ -0,0 +1,65 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of readings per flushed batch, in power-of-two buckets: 1, 2-3, 4-7, 8-15 and so
+ * on. Recording is lock-free and allocation-free.
+ */
+public class BatchSizeHistogram {
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder readings = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    public void record(int readingCount, int payloadBytes) {
+        buckets.incrementAndGet(bucketOf(readingCount));
+        batches.increment();
+        readings.add(readingCount);
+        bytes.add(payloadBytes);
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getReadings() {
+        return readings.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /** Number of batches holding between 2^bucket and 2^(bucket+1)-1 readings. */
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    public double getMeanReadingsPerBatch() {
+        long batchCount = batches.sum();
+        return batchCount == 0 ? 0 : (double) readings.sum() / batchCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(
+                "%d batches, %d readings, %d bytes, %.1f readings/batch",
+                getBatches(), getReadings(), getBytes(), getMeanReadingsPerBatch()));
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = buckets.get(i);
+            if (count > 0) {
+                sb.append(String.format("%n  %d-%d: %d", 1L << i, (1L << (i + 1)) - 1, count));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int bucketOf(int readingCount) {
+        return 31 - Integer.numberOfLeadingZeros(Math.max(1, readingCount));
+    }
+}
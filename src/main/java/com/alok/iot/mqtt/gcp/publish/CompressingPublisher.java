@@ -0,0 +1,65 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compresses payloads before handing them downstream.
+ *
+ * Payloads smaller than {@code minSizeBytes} are sent as they are, since headers make small
+ * payloads grow rather than shrink, and so is any payload the codec failed to make smaller.
+ * Subscribers tell the two apart by the codec's magic bytes ({@code 1f 8b} for gzip).
+ */
+public class CompressingPublisher implements MessagePublisher {
+    private final MessagePublisher downstream;
+    private final PayloadCodec codec;
+    private final int minSizeBytes;
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    public CompressingPublisher(MessagePublisher downstream, PayloadCodec codec, int minSizeBytes) {
+        this.downstream = downstream;
+        this.codec = codec;
+        this.minSizeBytes = minSizeBytes;
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        byte[] encoded = payload;
+        if (payload.length >= minSizeBytes) {
+            byte[] compressed = codec.encode(payload);
+            if (compressed.length < payload.length) {
+                encoded = compressed;
+            }
+        }
+        if (encoded == payload) {
+            skipped.increment();
+        }
+        bytesIn.add(payload.length);
+        bytesOut.add(encoded.length);
+        return downstream.publish(topic, encoded, qos);
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /** Payloads sent uncompressed because they were too small or did not shrink. */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    @Override
+    public String toString() {
+        long in = getBytesIn();
+        return String.format(
+                "%s: %d bytes in, %d bytes out (%.1f%%), %d skipped",
+                codec.name(), in, getBytesOut(), in == 0 ? 100.0 : getBytesOut() * 100.0 / in, getSkipped());
+    }
+}
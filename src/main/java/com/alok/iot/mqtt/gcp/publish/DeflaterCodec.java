@@ -0,0 +1,90 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * gzip (RFC 1952) or zlib deflate (RFC 1950) compression.
+ *
+ * Each thread keeps one {@link Deflater}, checksum and output buffer and resets them between
+ * messages, so the only allocation per message is the returned array.
+ */
+class DeflaterCodec implements PayloadCodec {
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private final boolean gzip;
+    private final ThreadLocal<Compressor> compressors;
+
+    DeflaterCodec(boolean gzip) {
+        this.gzip = gzip;
+        this.compressors = ThreadLocal.withInitial(() -> new Compressor(gzip));
+    }
+
+    @Override
+    public String name() {
+        return gzip ? "gzip" : "deflate";
+    }
+
+    @Override
+    public byte[] encode(byte[] payload) {
+        return compressors.get().compress(payload);
+    }
+
+    private static final class Compressor {
+        final boolean gzip;
+        // gzip carries its own header and trailer around a raw deflate stream.
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1024];
+
+        Compressor(boolean gzip) {
+            this.gzip = gzip;
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        }
+
+        byte[] compress(byte[] payload) {
+            deflater.reset();
+            deflater.setInput(payload);
+            deflater.finish();
+
+            int length = 0;
+            if (gzip) {
+                ensureCapacity(GZIP_HEADER.length);
+                System.arraycopy(GZIP_HEADER, 0, buffer, 0, GZIP_HEADER.length);
+                length = GZIP_HEADER.length;
+            }
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    ensureCapacity(buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (gzip) {
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                ensureCapacity(length + GZIP_TRAILER_LENGTH);
+                length = writeIntLE(buffer, length, (int) crc.getValue());
+                length = writeIntLE(buffer, length, payload.length);
+            }
+            return Arrays.copyOf(buffer, length);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (buffer.length < capacity) {
+                buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+            }
+        }
+
+        private static int writeIntLE(byte[] target, int offset, int value) {
+            target[offset] = (byte) value;
+            target[offset + 1] = (byte) (value >>> 8);
+            target[offset + 2] = (byte) (value >>> 16);
+            target[offset + 3] = (byte) (value >>> 24);
+            return offset + 4;
+        }
+    }
+}
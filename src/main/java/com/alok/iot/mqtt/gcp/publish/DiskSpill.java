@@ -0,0 +1,186 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A FIFO of {@link QueuedMessage}s in segment files, bounded by {@code maxBytes}. Fully read
+ * segments are deleted. Each message's result future stays in memory, in the same order. Not
+ * thread-safe; {@link StoreAndForwardPublisher} guards it.
+ *
+ * The spill only buffers across a connection loss, not across restarts: leftover segments are
+ * deleted when it is created.
+ */
+final class DiskSpill implements Closeable {
+    private static final String SEGMENT_PREFIX = "spill-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    /** Record length, sequence, priority, QoS, topic length and payload length. */
+    private static final int RECORD_OVERHEAD = 4 + 8 + 4 + 1 + 2 + 4;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long segmentBytes;
+
+    private final Deque<Path> segments = new ArrayDeque<>();
+    private final Deque<CompletableFuture<Void>> results = new ArrayDeque<>();
+    private long nextSegment;
+    private FileChannel writer;
+    private long writerSize;
+    private FileChannel reader;
+    private long bytes;
+    private int count;
+
+    DiskSpill(Path directory, long maxBytes, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stale) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    boolean hasRoomFor(QueuedMessage message) {
+        return bytes + recordSize(message) <= maxBytes;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    void append(QueuedMessage message) throws IOException {
+        byte[] topic = message.topic.getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_OVERHEAD + topic.length + message.payload.length;
+        if (writer == null || writerSize >= segmentBytes) {
+            rollWriter();
+        }
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(size - 4);
+        record.putLong(message.sequence);
+        record.putInt(message.priority);
+        record.put((byte) message.qos);
+        record.putShort((short) topic.length);
+        record.put(topic);
+        record.putInt(message.payload.length);
+        record.put(message.payload);
+        record.flip();
+        while (record.hasRemaining()) {
+            writer.write(record);
+        }
+        writerSize += size;
+        bytes += size;
+        count++;
+        results.addLast(message.result);
+    }
+
+    /** Removes and returns the oldest message, or null if the spill is empty. */
+    QueuedMessage poll() throws IOException {
+        ByteBuffer record = readRecord();
+        if (record == null) {
+            return null;
+        }
+        long sequence = record.getLong();
+        int priority = record.getInt();
+        int qos = record.get();
+        byte[] topic = new byte[record.getShort() & 0xffff];
+        record.get(topic);
+        byte[] payload = new byte[record.getInt()];
+        record.get(payload);
+        return new QueuedMessage(
+                sequence, new String(topic, StandardCharsets.UTF_8), payload, qos, priority, results.pollFirst());
+    }
+
+    /** Discards the oldest message without decoding it, and returns its result future. */
+    CompletableFuture<Void> dropHead() throws IOException {
+        readRecord();
+        return results.pollFirst();
+    }
+
+    /** The result futures of the messages still spilled, oldest first. */
+    Collection<CompletableFuture<Void>> pendingResults() {
+        return results;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+        if (writer != null && writer != reader) {
+            writer.close();
+        }
+        for (Path segment : segments) {
+            Files.deleteIfExists(segment);
+        }
+        segments.clear();
+        results.clear();
+    }
+
+    private ByteBuffer readRecord() throws IOException {
+        if (count == 0) {
+            return null;
+        }
+        if (reader == null) {
+            reader = FileChannel.open(segments.peekFirst(), StandardOpenOption.READ);
+        }
+        if (reader.position() >= reader.size() && segments.size() > 1) {
+            // The head segment is used up; the writer has moved on, so it can go.
+            reader.close();
+            Files.delete(segments.pollFirst());
+            reader = FileChannel.open(segments.peekFirst(), StandardOpenOption.READ);
+        }
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length);
+        ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+        readFully(record);
+        record.flip();
+        bytes -= 4 + record.capacity();
+        count--;
+        return record;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (reader.read(buffer) < 0) {
+                throw new EOFException("Truncated spill segment " + segments.peekFirst());
+            }
+        }
+    }
+
+    private void rollWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        Path segment = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX));
+        writer = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        writerSize = 0;
+        segments.addLast(segment);
+    }
+
+    /** An upper bound that avoids encoding the topic just to check for room. */
+    private static int recordSize(QueuedMessage message) {
+        return RECORD_OVERHEAD + message.topic.length() * 3 + message.payload.length;
+    }
+}
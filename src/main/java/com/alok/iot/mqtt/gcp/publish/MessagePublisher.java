@@ -0,0 +1,14 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A stage of the publish path.
+ *
+ * The returned future completes when the message has been delivered at the requested QoS (for
+ * QoS 1, once the bridge acknowledged it), or exceptionally if it could not be.
+ */
+public interface MessagePublisher {
+
+    CompletableFuture<Void> publish(String topic, byte[] payload, int qos);
+}
@@ -0,0 +1,24 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+/** Compresses publish payloads. Implementations must be safe to call from many threads. */
+public interface PayloadCodec {
+
+    /** The codec name used on the command line, for example {@code gzip}. */
+    String name();
+
+    /** Returns the encoded payload; the input is not modified. */
+    byte[] encode(byte[] payload);
+
+    /** Returns the codec for {@code name}: {@code gzip}, {@code deflate}, or {@code none} (null). */
+    static PayloadCodec forName(String name) {
+        if (name == null || "none".equals(name)) {
+            return null;
+        } else if ("gzip".equals(name)) {
+            return new DeflaterCodec(true);
+        } else if ("deflate".equals(name)) {
+            return new DeflaterCodec(false);
+        }
+        throw new IllegalArgumentException(
+                "Invalid compression " + name + ". Should be one of 'none', 'gzip' or 'deflate'.");
+    }
+}
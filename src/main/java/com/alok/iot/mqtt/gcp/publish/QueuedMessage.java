@@ -0,0 +1,24 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import java.util.concurrent.CompletableFuture;
+
+/** A message held back by {@link StoreAndForwardPublisher} until it can be sent. */
+final class QueuedMessage {
+    /** Publish order, so messages sent again after a lost connection keep their original order. */
+    final long sequence;
+    final String topic;
+    final byte[] payload;
+    final int qos;
+    final int priority;
+    /** Completes once the message is delivered, or is lost. */
+    final CompletableFuture<Void> result;
+
+    QueuedMessage(long sequence, String topic, byte[] payload, int qos, int priority, CompletableFuture<Void> result) {
+        this.sequence = sequence;
+        this.topic = topic;
+        this.payload = payload;
+        this.qos = qos;
+        this.priority = priority;
+        this.result = result;
+    }
+}
@@ -0,0 +1,342 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import com.alok.iot.mqtt.gcp.utils.TokenBucket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps each device's telemetry and state publishes within per-second quotas, so the bridge never
+ * sees a breach and disconnects the device. Quotas default to Cloud IoT Core's per-device limits,
+ * as in {@link com.alok.iot.mqtt.gcp.broker.BridgeQuotas#CLOUD_IOT_DEFAULTS}; 0 means no limit.
+ *
+ * Each device and message type has its own token bucket, with a burst of one second's quota, as
+ * the bridge has. A publish over quota is either held and sent once a token is due, up to
+ * {@code maxQueued} per device and type, or refused at once, depending on the {@link Overflow}.
+ * Held messages keep their order, and later publishes queue behind them. A lane sends its held
+ * messages one drain at a time: each drain takes the messages that are due under the lane's lock,
+ * sends them after releasing it, and the next drain waits for those sends to complete, so a
+ * downstream that stalls on one lane holds up only that lane. A lane with nothing held and a full
+ * bucket is no different from a new one, so such lanes are pruned every {@value #PRUNE_MILLIS} ms
+ * rather than kept for every device ever seen.
+ */
+public class RateLimitedPublisher implements MessagePublisher, AutoCloseable {
+    public static final double DEFAULT_TELEMETRY_PER_SEC = 100;
+    public static final double DEFAULT_STATE_PER_SEC = 1;
+    public static final int DEFAULT_MAX_QUEUED = 1000;
+
+    /** What to do with a publish over quota. */
+    public enum Overflow {
+        /** Hold it until a token is due, refusing it only when {@code maxQueued} are already held. */
+        QUEUE,
+        /** Refuse it. */
+        SHED;
+
+        public static Overflow forName(String name) {
+            for (Overflow overflow : values()) {
+                if (overflow.name().equalsIgnoreCase(name)) {
+                    return overflow;
+                }
+            }
+            throw new IllegalArgumentException(
+                    "Invalid rate limit overflow " + name + ". Should be one of 'queue' or 'shed'.");
+        }
+    }
+
+    private static final long AWAIT_TICK_MILLIS = 10;
+    private static final long PRUNE_MILLIS = 10000;
+
+    private final MessagePublisher downstream;
+    private final double telemetryPerSec;
+    private final double statePerSec;
+    private final Overflow overflow;
+    private final int maxQueued;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> pruner;
+
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private volatile boolean closed;
+
+    public RateLimitedPublisher(
+            MessagePublisher downstream, double telemetryPerSec, double statePerSec, Overflow overflow, int maxQueued) {
+        this(downstream, telemetryPerSec, statePerSec, overflow, maxQueued,
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "publish-rate-limit");
+                    thread.setDaemon(true);
+                    return thread;
+                }), true);
+    }
+
+    /** Creates a limiter whose held messages are sent from a shared scheduler, which the caller keeps ownership of. */
+    public RateLimitedPublisher(
+            MessagePublisher downstream,
+            double telemetryPerSec,
+            double statePerSec,
+            Overflow overflow,
+            int maxQueued,
+            ScheduledExecutorService scheduler) {
+        this(downstream, telemetryPerSec, statePerSec, overflow, maxQueued, scheduler, false);
+    }
+
+    private RateLimitedPublisher(
+            MessagePublisher downstream,
+            double telemetryPerSec,
+            double statePerSec,
+            Overflow overflow,
+            int maxQueued,
+            ScheduledExecutorService scheduler,
+            boolean ownsScheduler) {
+        if (telemetryPerSec < 0 || statePerSec < 0 || maxQueued < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid rate limits: telemetryPerSec=" + telemetryPerSec + ", statePerSec=" + statePerSec
+                            + ", maxQueued=" + maxQueued);
+        }
+        this.downstream = downstream;
+        this.telemetryPerSec = telemetryPerSec;
+        this.statePerSec = statePerSec;
+        this.overflow = overflow;
+        this.maxQueued = maxQueued;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.pruner = scheduler.scheduleWithFixedDelay(this::prune, PRUNE_MILLIS, PRUNE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes {@code payload} now if its device is within quota. Topics other than a device's
+     * events and state are not limited.
+     */
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        Lane lane;
+        while ((lane = laneOf(topic)) != null) {
+            synchronized (lane) {
+                if (lane.pruned) {
+                    // Pruned since the lookup; go again, on the lane that replaces it.
+                    continue;
+                }
+                if (closed) {
+                    return refused(new IllegalStateException("Rate limiter is closed"));
+                }
+                // Nothing may overtake messages already held or being drained.
+                if (lane.held.isEmpty() && !lane.draining && lane.bucket.tryAcquire()) {
+                    passed.increment();
+                    break;
+                }
+                if (overflow == Overflow.SHED || lane.held.size() >= maxQueued) {
+                    shed.increment();
+                    MqttMetrics.publishRateLimited("shed");
+                    return refused(new IllegalStateException(
+                            "Rate limit of " + lane.permitsPerSec + " per second exceeded on " + topic));
+                }
+                Held held = new Held(topic, payload, qos);
+                lane.held.add(held);
+                delayed.increment();
+                MqttMetrics.publishRateLimited("queued");
+                if (!lane.draining) {
+                    lane.draining = true;
+                    scheduleDrain(lane);
+                }
+                return held.result;
+            }
+        }
+        // Not limited, or within quota; sent outside the lane's lock, as drains are.
+        return downstream.publish(topic, payload, qos);
+    }
+
+    /** Messages held back right now, across devices. */
+    public int size() {
+        int size = 0;
+        for (Lane lane : lanes.values()) {
+            synchronized (lane) {
+                size += lane.held.size();
+            }
+        }
+        return size;
+    }
+
+    /** Publishes sent on without waiting. */
+    public long getPassed() {
+        return passed.sum();
+    }
+
+    /** Publishes held until their device was within quota again. */
+    public long getDelayed() {
+        return delayed.sum();
+    }
+
+    /** Publishes refused for being over quota. */
+    public long getShed() {
+        return shed.sum();
+    }
+
+    /** Waits until every held message has been sent on; returns false if some are still held after {@code timeout}. */
+    public boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (size() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(AWAIT_TICK_MILLIS);
+        }
+        return true;
+    }
+
+    /** Fails the messages still held. */
+    @Override
+    public void close() {
+        closed = true;
+        pruner.cancel(false);
+        List<Held> abandoned = new ArrayList<>();
+        for (Lane lane : lanes.values()) {
+            synchronized (lane) {
+                abandoned.addAll(lane.held);
+                lane.held.clear();
+            }
+        }
+        for (Held held : abandoned) {
+            held.result.completeExceptionally(new IllegalStateException("Rate limiter is closed"));
+        }
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "telemetry %s/s, state %s/s: %d passed, %d delayed, %d shed, %d held",
+                telemetryPerSec == 0 ? "unlimited" : telemetryPerSec,
+                statePerSec == 0 ? "unlimited" : statePerSec,
+                getPassed(), getDelayed(), getShed(), size());
+    }
+
+    /** Returns the lane for {@code topic}'s device and message type, or null if it is not limited. */
+    private Lane laneOf(String topic) {
+        String deviceId = DeviceTopics.deviceIdOf(topic);
+        if (deviceId == null) {
+            return null;
+        }
+        DeviceTopics topics = DeviceTopics.of(deviceId);
+        String events = topics.events();
+        boolean state = topic.equals(topics.state());
+        boolean isEvents = topic.startsWith(events)
+                && (topic.length() == events.length() || topic.charAt(events.length()) == '/');
+        double permitsPerSec = state ? statePerSec : isEvents ? telemetryPerSec : 0;
+        if (permitsPerSec == 0) {
+            return null;
+        }
+        // Keyed by the device's own topic, so every subfolder of its events shares one lane.
+        return lanes.computeIfAbsent(state ? topics.state() : events, key -> new Lane(permitsPerSec));
+    }
+
+    /** Forgets the lanes with nothing held or draining and a full bucket, as a new lane would start out the same. */
+    void prune() {
+        for (Iterator<Lane> it = lanes.values().iterator(); it.hasNext(); ) {
+            Lane lane = it.next();
+            synchronized (lane) {
+                if (lane.held.isEmpty() && !lane.draining && lane.bucket.available() >= lane.burst) {
+                    lane.pruned = true;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** Devices and message types with a lane right now. */
+    int lanes() {
+        return lanes.size();
+    }
+
+    private void scheduleDrain(Lane lane) {
+        double missing = 1 - lane.bucket.available();
+        long delayNanos = (long) Math.ceil(Math.max(0, missing) / lane.permitsPerSec * 1e9);
+        scheduler.schedule(() -> drain(lane), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends the lane's held messages that are due, in order, outside the lane's lock, and once they
+     * have completed schedules the next drain if more are held.
+     */
+    private void drain(Lane lane) {
+        List<Held> due = new ArrayList<>();
+        synchronized (lane) {
+            while (!lane.held.isEmpty() && lane.bucket.tryAcquire()) {
+                due.add(lane.held.poll());
+            }
+        }
+        CompletableFuture<?>[] sent = new CompletableFuture<?>[due.size()];
+        for (int i = 0; i < sent.length; i++) {
+            Held held = due.get(i);
+            sent[i] = downstream.publish(held.topic, held.payload, held.qos).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    held.result.completeExceptionally(e);
+                } else {
+                    held.result.complete(null);
+                }
+            });
+        }
+        CompletableFuture.allOf(sent).whenComplete((ignored, e) -> {
+            synchronized (lane) {
+                if (lane.held.isEmpty() || closed) {
+                    lane.draining = false;
+                } else {
+                    scheduleDrain(lane);
+                }
+            }
+        });
+    }
+
+    private static CompletableFuture<Void> refused(Exception e) {
+        CompletableFuture<Void> rejected = new CompletableFuture<>();
+        rejected.completeExceptionally(e);
+        return rejected;
+    }
+
+    /** One device's publishes of one message type. */
+    private static final class Lane {
+        final double permitsPerSec;
+        final double burst;
+        final TokenBucket bucket;
+        // Guarded by this.
+        final ArrayDeque<Held> held = new ArrayDeque<>();
+        // Guarded by this; set from the first held message until a drain leaves none held.
+        boolean draining;
+        // Guarded by this; once set, the lane is no longer in the map and takes no more messages.
+        boolean pruned;
+
+        Lane(double permitsPerSec) {
+            this.permitsPerSec = permitsPerSec;
+            this.burst = Math.max(1, permitsPerSec);
+            this.bucket = new TokenBucket(permitsPerSec, burst);
+        }
+    }
+
+    private static final class Held {
+        final String topic;
+        final byte[] payload;
+        final int qos;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Held(String topic, byte[] payload, int qos) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+        }
+    }
+}
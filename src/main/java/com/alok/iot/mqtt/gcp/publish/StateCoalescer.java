@@ -0,0 +1,246 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import com.alok.iot.mqtt.gcp.utils.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes device state at no more than {@code statePerSec} per device, keeping only the newest.
+ *
+ * A state update within the rate goes out at once. One that comes too soon is held until the
+ * device may publish again, and replaces any update already held for it, so a chatty device
+ * costs one message per interval and the bridge always ends up with its latest state. An update
+ * that is replaced is not sent; its future completes with the update that replaced it. Topics
+ * other than a device's state pass straight through. A device's slot is pruned every
+ * {@value #PRUNE_MILLIS} ms once it holds nothing and its bucket is full, so devices a gateway
+ * has cycled through are not kept for good.
+ */
+public class StateCoalescer implements MessagePublisher, AutoCloseable {
+    private static final String STATE = "/state";
+    private static final long PRUNE_MILLIS = 10000;
+
+    private final MessagePublisher downstream;
+    private final double statePerSec;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> pruner;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private volatile boolean closed;
+
+    public StateCoalescer(MessagePublisher downstream, double statePerSec) {
+        this(downstream, statePerSec,
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "state-coalescer");
+                    thread.setDaemon(true);
+                    return thread;
+                }), true);
+    }
+
+    /** Creates a coalescer whose held updates are sent from a shared scheduler, which the caller keeps ownership of. */
+    public StateCoalescer(MessagePublisher downstream, double statePerSec, ScheduledExecutorService scheduler) {
+        this(downstream, statePerSec, scheduler, false);
+    }
+
+    private StateCoalescer(
+            MessagePublisher downstream,
+            double statePerSec,
+            ScheduledExecutorService scheduler,
+            boolean ownsScheduler) {
+        if (statePerSec <= 0) {
+            throw new IllegalArgumentException("Invalid state rate: statePerSec=" + statePerSec);
+        }
+        this.downstream = downstream;
+        this.statePerSec = statePerSec;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.pruner = scheduler.scheduleWithFixedDelay(this::prune, PRUNE_MILLIS, PRUNE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        if (!isState(topic)) {
+            return downstream.publish(topic, payload, qos);
+        }
+        while (true) {
+            Slot slot = slots.computeIfAbsent(topic, key -> new Slot(statePerSec));
+            synchronized (slot) {
+                if (slot.pruned) {
+                    // Pruned since the lookup; go again, on the slot that replaces it.
+                    continue;
+                }
+                if (closed) {
+                    CompletableFuture<Void> rejected = new CompletableFuture<>();
+                    rejected.completeExceptionally(new IllegalStateException("State coalescer is closed"));
+                    return rejected;
+                }
+                if (slot.held == null && slot.bucket.tryAcquire()) {
+                    sent.increment();
+                    return downstream.publish(topic, payload, qos);
+                }
+                if (slot.held == null) {
+                    slot.held = new Held(topic, payload, qos);
+                    scheduleSend(slot);
+                } else {
+                    // Latest wins: the held update is replaced in place and never sent.
+                    slot.held.payload = payload;
+                    slot.held.qos = Math.max(slot.held.qos, qos);
+                    coalesced.increment();
+                    MqttMetrics.stateCoalesced();
+                }
+                return slot.held.result;
+            }
+        }
+    }
+
+    /** Updates held back right now, at most one per device. */
+    public int size() {
+        int size = 0;
+        for (Slot slot : slots.values()) {
+            synchronized (slot) {
+                if (slot.held != null) {
+                    size++;
+                }
+            }
+        }
+        return size;
+    }
+
+    /** State updates sent on. */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /** State updates replaced by a newer one before they were sent. */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /** Sends every held update now, ignoring the rate, and stops. */
+    @Override
+    public void close() {
+        closed = true;
+        pruner.cancel(false);
+        List<Held> flushed = new ArrayList<>();
+        for (Slot slot : slots.values()) {
+            synchronized (slot) {
+                if (slot.held != null) {
+                    flushed.add(slot.held);
+                    slot.held = null;
+                }
+            }
+        }
+        for (Held held : flushed) {
+            send(held);
+        }
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s/s per device: %d sent, %d coalesced, %d held", statePerSec, getSent(), getCoalesced(), size());
+    }
+
+    /** Forgets the slots holding nothing with a full bucket, as a new slot would start out the same. */
+    void prune() {
+        for (Iterator<Slot> it = slots.values().iterator(); it.hasNext(); ) {
+            Slot slot = it.next();
+            synchronized (slot) {
+                if (slot.held == null && slot.bucket.available() >= slot.burst) {
+                    slot.pruned = true;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** Devices with a slot right now. */
+    int slots() {
+        return slots.size();
+    }
+
+    private void scheduleSend(Slot slot) {
+        double missing = 1 - slot.bucket.available();
+        long delayNanos = (long) Math.ceil(Math.max(0, missing) / statePerSec * 1e9);
+        scheduler.schedule(() -> sendHeld(slot), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void sendHeld(Slot slot) {
+        synchronized (slot) {
+            if (slot.held == null) {
+                return;
+            }
+            if (!slot.bucket.tryAcquire()) {
+                scheduleSend(slot);
+                return;
+            }
+            // Sent under the lock, so a newer update cannot overtake it.
+            send(slot.held);
+            slot.held = null;
+        }
+    }
+
+    private void send(Held held) {
+        sent.increment();
+        downstream.publish(held.topic, held.payload, held.qos).whenComplete((ignored, e) -> {
+            if (e != null) {
+                held.result.completeExceptionally(e);
+            } else {
+                held.result.complete(null);
+            }
+        });
+    }
+
+    private static boolean isState(String topic) {
+        // Compares the rest of the topic rather than looking the device up, which would add it to the table.
+        String deviceId = DeviceTopics.deviceIdOf(topic);
+        return deviceId != null
+                && topic.length() == DeviceTopics.PREFIX.length() + deviceId.length() + STATE.length()
+                && topic.endsWith(STATE);
+    }
+
+    /** One device's state topic. */
+    private static final class Slot {
+        final double burst;
+        final TokenBucket bucket;
+        // Guarded by this.
+        Held held;
+        // Guarded by this; once set, the slot is no longer in the map and takes no more updates.
+        boolean pruned;
+
+        Slot(double statePerSec) {
+            this.burst = Math.max(1, statePerSec);
+            this.bucket = new TokenBucket(statePerSec, burst);
+        }
+    }
+
+    private static final class Held {
+        final String topic;
+        byte[] payload;
+        int qos;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Held(String topic, byte[] payload, int qos) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import com.alok.iot.mqtt.gcp.logging.SampledLogger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps accepting telemetry while the connection is down and forwards it once it is back.
+ *
+ * While {@code connected} reports false, or while older messages are still waiting, messages are
+ * queued: up to {@code memoryCapacity} in memory, after which the oldest are spilled to segment
+ * files under {@code spillDirectory}, up to {@code maxSpillBytes}. Once connected again the queue
+ * is drained oldest first at no more than {@code drainRatePerSec} messages per second, so a
+ * backlog does not trip the bridge's per-device rate limit. When both memory and disk are full
+ * the {@link DropPolicy} decides what is lost.
+ *
+ * Every message's future completes once the message is actually delivered, however long it
+ * waited. It completes exceptionally with {@link MqttException#REASON_CODE_DISCONNECTED_BUFFER_FULL}
+ * if the message is refused or dropped later to make room, and with
+ * {@link MqttException#REASON_CODE_CLIENT_CLOSED} if it is still waiting at {@link #close()}. A
+ * direct or drained publish that fails because the connection went away is queued for retry ahead
+ * of everything else; retries are sent in their original publish order, and at most
+ * {@code memoryCapacity} of them are kept, the {@link DropPolicy} choosing which to lose.
+ */
+public class StoreAndForwardPublisher implements MessagePublisher, AutoCloseable {
+    public static final long DEFAULT_SPILL_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    private static final long DRAIN_TICK_MILLIS = 10;
+    private static final Logger LOG = LoggerFactory.getLogger(StoreAndForwardPublisher.class);
+    private static final SampledLogger DROP_LOG =
+            SampledLogger.of(StoreAndForwardPublisher.class.getName() + ".drop", 5, 1);
+
+    /** What to give up when the queue is full. */
+    public enum DropPolicy {
+        /** Drop the oldest queued message, on disk if anything is spilled. */
+        OLDEST,
+        /** Refuse the incoming message. */
+        NEWEST,
+        /**
+         * Drop the lowest-priority message held in memory, oldest first among equals, or refuse the
+         * incoming message if nothing in memory has a lower priority. Spilled messages are never
+         * considered.
+         */
+        PRIORITY;
+
+        public static DropPolicy forName(String name) {
+            for (DropPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException(
+                    "Invalid drop policy " + name + ". Should be one of 'oldest', 'newest' or 'priority'.");
+        }
+    }
+
+    private final MessagePublisher downstream;
+    private final BooleanSupplier connected;
+    private final int memoryCapacity;
+    private final DropPolicy dropPolicy;
+    private final double drainPerTick;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final ScheduledFuture<?> drainTask;
+
+    private final Comparator<QueuedMessage> dropOrder;
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Guarded by this. Drain order is retry, then spill, then memory.
+    private final PriorityQueue<QueuedMessage> retry =
+            new PriorityQueue<>(Comparator.comparingLong((QueuedMessage message) -> message.sequence));
+    private final DiskSpill spill;
+    private final ArrayDeque<QueuedMessage> memory = new ArrayDeque<>();
+    private double drainCredit;
+    private boolean closed;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder drained = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param spillDirectory where to spill past {@code memoryCapacity}, or null to keep the queue
+     *     in memory only
+     */
+    public StoreAndForwardPublisher(
+            MessagePublisher downstream,
+            BooleanSupplier connected,
+            int memoryCapacity,
+            String spillDirectory,
+            long maxSpillBytes,
+            int drainRatePerSec,
+            DropPolicy dropPolicy) throws IOException {
+        this(downstream, connected, memoryCapacity, spillDirectory, maxSpillBytes, drainRatePerSec, dropPolicy,
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "store-and-forward");
+                    thread.setDaemon(true);
+                    return thread;
+                }), true);
+    }
+
+    /** Creates a publisher whose drain runs on a shared scheduler, which the caller keeps ownership of. */
+    public StoreAndForwardPublisher(
+            MessagePublisher downstream,
+            BooleanSupplier connected,
+            int memoryCapacity,
+            String spillDirectory,
+            long maxSpillBytes,
+            int drainRatePerSec,
+            DropPolicy dropPolicy,
+            ScheduledExecutorService scheduler) throws IOException {
+        this(downstream, connected, memoryCapacity, spillDirectory, maxSpillBytes, drainRatePerSec, dropPolicy,
+                scheduler, false);
+    }
+
+    private StoreAndForwardPublisher(
+            MessagePublisher downstream,
+            BooleanSupplier connected,
+            int memoryCapacity,
+            String spillDirectory,
+            long maxSpillBytes,
+            int drainRatePerSec,
+            DropPolicy dropPolicy,
+            ScheduledExecutorService scheduler,
+            boolean ownsScheduler) throws IOException {
+        if (memoryCapacity < 1 || maxSpillBytes < 0 || drainRatePerSec < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid queue limits: memoryCapacity=" + memoryCapacity + ", maxSpillBytes=" + maxSpillBytes
+                            + ", drainRatePerSec=" + drainRatePerSec);
+        }
+        this.downstream = downstream;
+        this.connected = connected;
+        this.memoryCapacity = memoryCapacity;
+        this.dropPolicy = dropPolicy;
+        this.dropOrder = dropOrder(dropPolicy);
+        this.drainPerTick = drainRatePerSec * DRAIN_TICK_MILLIS / 1000.0;
+        this.spill = spillDirectory == null || maxSpillBytes == 0
+                ? null
+                : new DiskSpill(Paths.get(spillDirectory), maxSpillBytes, DEFAULT_SPILL_SEGMENT_BYTES);
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.drainTask = scheduler.scheduleWithFixedDelay(this::drain, DRAIN_TICK_MILLIS, DRAIN_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        return publish(topic, payload, qos, 0);
+    }
+
+    /** Publishes with a priority, which only matters to {@link DropPolicy#PRIORITY}; higher is kept longer. */
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos, int priority) {
+        QueuedMessage message = new QueuedMessage(
+                sequence.getAndIncrement(), topic, payload, qos, priority, new CompletableFuture<>());
+        List<CompletableFuture<Void>> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                message.result.completeExceptionally(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+                return message.result;
+            }
+            if (!connected.getAsBoolean() || !isEmpty()) {
+                enqueue(message, evicted);
+            } else {
+                evicted = null;
+            }
+        }
+
+        if (evicted == null) {
+            send(message, false);
+        } else {
+            // Completed outside the lock, so their callers' callbacks cannot run while holding it.
+            failAll(evicted, MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+        }
+        return message.result;
+    }
+
+    /** Messages waiting in memory or on disk. */
+    public synchronized int size() {
+        return retry.size() + memory.size() + (spill == null ? 0 : spill.count());
+    }
+
+    public synchronized long getSpillBytes() {
+        return spill == null ? 0 : spill.bytes();
+    }
+
+    /** Messages that were queued instead of sent straight away. */
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    /** Messages written to disk because memory was full. */
+    public long getSpilled() {
+        return spilled.sum();
+    }
+
+    /** Queued messages sent after the connection came back. */
+    public long getDrained() {
+        return drained.sum();
+    }
+
+    /** Messages lost to the drop policy, whether refused on arrival or evicted later. */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits for the queue to drain, which only happens while connected. Returns false if it did
+     * not within the timeout.
+     */
+    public boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (size() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(DRAIN_TICK_MILLIS);
+        }
+        return true;
+    }
+
+    /**
+     * Stops draining; anything still queued is discarded along with the spill files, and its
+     * future fails.
+     */
+    @Override
+    public void close() {
+        drainTask.cancel(false);
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+        List<CompletableFuture<Void>> discarded = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (QueuedMessage message : retry) {
+                discarded.add(message.result);
+            }
+            for (QueuedMessage message : memory) {
+                discarded.add(message.result);
+            }
+            retry.clear();
+            memory.clear();
+            if (spill != null) {
+                discarded.addAll(spill.pendingResults());
+                try {
+                    spill.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to remove spill files", e);
+                }
+            }
+        }
+        failAll(discarded, MqttException.REASON_CODE_CLIENT_CLOSED);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Store-and-forward: %d waiting (%d bytes spilled), %d queued, %d spilled, %d drained, %d dropped",
+                size(), getSpillBytes(), getQueued(), getSpilled(), getDrained(), getDropped());
+    }
+
+    private boolean isEmpty() {
+        return retry.isEmpty() && memory.isEmpty() && (spill == null || spill.isEmpty());
+    }
+
+    /**
+     * Queues {@code message}, or fails it if it is refused; the futures of messages dropped to make
+     * room are added to {@code evicted}. No caller holds {@code message}'s future yet, so failing it
+     * here, under the lock, runs no callbacks.
+     */
+    private void enqueue(QueuedMessage message, List<CompletableFuture<Void>> evicted) {
+        try {
+            if (offer(message, evicted)) {
+                queued.increment();
+            } else {
+                dropped.increment();
+                message.result.completeExceptionally(
+                        new MqttException(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL));
+            }
+        } catch (IOException e) {
+            dropped.increment();
+            message.result.completeExceptionally(e);
+        }
+    }
+
+    /** Adds to the tail, spilling or dropping as needed; returns false if {@code message} itself is refused. */
+    private boolean offer(QueuedMessage message, List<CompletableFuture<Void>> evicted) throws IOException {
+        if (memory.size() < memoryCapacity) {
+            memory.addLast(message);
+            return true;
+        }
+        if (spill != null && spill.hasRoomFor(memory.peekFirst())) {
+            spillOldestInMemory();
+            memory.addLast(message);
+            return true;
+        }
+
+        switch (dropPolicy) {
+            case OLDEST:
+                if (spill != null) {
+                    while (!spill.isEmpty() && !spill.hasRoomFor(memory.peekFirst())) {
+                        evicted.add(spill.dropHead());
+                        dropped.increment();
+                    }
+                    if (spill.hasRoomFor(memory.peekFirst())) {
+                        spillOldestInMemory();
+                        memory.addLast(message);
+                        return true;
+                    }
+                }
+                evicted.add(memory.pollFirst().result);
+                dropped.increment();
+                memory.addLast(message);
+                return true;
+            case PRIORITY:
+                QueuedMessage lowest = null;
+                for (QueuedMessage candidate : memory) {
+                    if (lowest == null || candidate.priority < lowest.priority) {
+                        lowest = candidate;
+                    }
+                }
+                if (lowest == null || lowest.priority >= message.priority) {
+                    return false;
+                }
+                removeFirstOccurrence(lowest);
+                evicted.add(lowest.result);
+                dropped.increment();
+                memory.addLast(message);
+                return true;
+            case NEWEST:
+            default:
+                return false;
+        }
+    }
+
+    private void spillOldestInMemory() throws IOException {
+        spill.append(memory.pollFirst());
+        spilled.increment();
+    }
+
+    private void removeFirstOccurrence(QueuedMessage message) {
+        for (Iterator<QueuedMessage> it = memory.iterator(); it.hasNext(); ) {
+            if (it.next() == message) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues a message whose publish failed with the connection for retry. With
+     * {@code memoryCapacity} retries already waiting, the drop policy picks one of them or
+     * {@code message} itself to lose.
+     */
+    private void requeue(QueuedMessage message) {
+        QueuedMessage lost = null;
+        int reasonCode = MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL;
+        synchronized (this) {
+            if (closed) {
+                lost = message;
+                reasonCode = MqttException.REASON_CODE_CLIENT_CLOSED;
+            } else {
+                if (retry.size() >= memoryCapacity) {
+                    lost = message;
+                    for (QueuedMessage candidate : retry) {
+                        if (dropOrder.compare(candidate, lost) < 0) {
+                            lost = candidate;
+                        }
+                    }
+                    retry.remove(lost);
+                    dropped.increment();
+                }
+                if (lost != message) {
+                    retry.add(message);
+                    queued.increment();
+                }
+            }
+        }
+        if (lost != null) {
+            lost.result.completeExceptionally(new MqttException(reasonCode));
+        }
+    }
+
+    private void drain() {
+        List<QueuedMessage> batch = new ArrayList<>();
+        synchronized (this) {
+            if (!connected.getAsBoolean()) {
+                drainCredit = 0;
+                return;
+            }
+            drainCredit = Math.min(drainCredit + drainPerTick, Math.max(1, drainPerTick));
+            try {
+                while (drainCredit >= 1 && !isEmpty()) {
+                    batch.add(poll());
+                    drainCredit--;
+                }
+            } catch (IOException e) {
+                LOG.error("Failed to read spilled messages", e);
+            }
+        }
+
+        for (QueuedMessage message : batch) {
+            send(message, true);
+        }
+    }
+
+    /** Publishes downstream and completes {@code message}'s future, unless the connection failed and it is retried. */
+    private void send(QueuedMessage message, boolean fromQueue) {
+        downstream.publish(message.topic, message.payload, message.qos).whenComplete((ignored, e) -> {
+            if (e == null) {
+                if (fromQueue) {
+                    drained.increment();
+                }
+                message.result.complete(null);
+            } else if (isConnectionFailure(e)) {
+                requeue(message);
+            } else {
+                if (fromQueue) {
+                    DROP_LOG.warn("Dropping queued message for {}: {}", message.topic, e.toString());
+                    dropped.increment();
+                }
+                message.result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private QueuedMessage poll() throws IOException {
+        if (!retry.isEmpty()) {
+            return retry.poll();
+        }
+        if (spill != null && !spill.isEmpty()) {
+            return spill.poll();
+        }
+        return memory.pollFirst();
+    }
+
+    private static void failAll(List<CompletableFuture<Void>> results, int reasonCode) {
+        for (CompletableFuture<Void> result : results) {
+            result.completeExceptionally(new MqttException(reasonCode));
+        }
+    }
+
+    /** Orders messages from the first to lose to the last, as {@code policy} would pick among retries. */
+    private static Comparator<QueuedMessage> dropOrder(DropPolicy policy) {
+        Comparator<QueuedMessage> oldestFirst = Comparator.comparingLong(message -> message.sequence);
+        switch (policy) {
+            case NEWEST:
+                return oldestFirst.reversed();
+            case PRIORITY:
+                return Comparator.<QueuedMessage>comparingInt(message -> message.priority).thenComparing(oldestFirst);
+            case OLDEST:
+            default:
+                return oldestFirst;
+        }
+    }
+
+    private static boolean isConnectionFailure(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (!(cause instanceof MqttException)) {
+            return false;
+        }
+        switch (((MqttException) cause).getReasonCode()) {
+            case MqttException.REASON_CODE_CLIENT_NOT_CONNECTED:
+            case MqttException.REASON_CODE_CONNECTION_LOST:
+            case MqttException.REASON_CODE_CLIENT_DISCONNECTING:
+            case MqttException.REASON_CODE_CONNECT_IN_PROGRESS:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs many readings for the same topic into one MQTT message.
+ *
+ * Readings are joined with a newline, so each batch arrives in Pub/Sub as one reading per line
+ * (JSON Lines when the readings are JSON); a reading must therefore not contain a newline itself.
+ * A topic's batch is flushed when the next reading would push it past {@code maxBatchBytes}, when
+ * it holds {@code maxBatchCount} readings, or {@code lingerMillis} after its first reading,
+ * whichever comes first. Every reading's future completes with the batch that carried it.
+ *
+ * A topic's batches are handed downstream while holding its batch's lock, so they go out in the
+ * order they were filled. Topics with nothing buffered are pruned every {@value #PRUNE_MILLIS} ms,
+ * rather than kept for every device ever seen.
+ */
+public class TelemetryBatcher implements MessagePublisher, AutoCloseable {
+    /** Cloud IoT Core rejects telemetry payloads larger than 256 KB. */
+    public static final int DEFAULT_MAX_BATCH_BYTES = 256 * 1024;
+
+    private static final byte SEPARATOR = '\n';
+    private static final long PRUNE_MILLIS = 10000;
+
+    private final MessagePublisher downstream;
+    private final int maxBatchBytes;
+    private final int maxBatchCount;
+    private final long lingerMillis;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+    private final BatchSizeHistogram histogram = new BatchSizeHistogram();
+    private final ScheduledFuture<?> pruner;
+
+    public TelemetryBatcher(MessagePublisher downstream, int maxBatchBytes, int maxBatchCount, long lingerMillis) {
+        this(downstream, maxBatchBytes, maxBatchCount, lingerMillis,
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "telemetry-batcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }), true);
+    }
+
+    /** Creates a batcher whose linger timers run on a shared scheduler, which the caller keeps ownership of. */
+    public TelemetryBatcher(
+            MessagePublisher downstream,
+            int maxBatchBytes,
+            int maxBatchCount,
+            long lingerMillis,
+            ScheduledExecutorService scheduler) {
+        this(downstream, maxBatchBytes, maxBatchCount, lingerMillis, scheduler, false);
+    }
+
+    private TelemetryBatcher(
+            MessagePublisher downstream,
+            int maxBatchBytes,
+            int maxBatchCount,
+            long lingerMillis,
+            ScheduledExecutorService scheduler,
+            boolean ownsScheduler) {
+        if (maxBatchBytes < 1 || maxBatchCount < 1 || lingerMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid batch limits: maxBatchBytes=" + maxBatchBytes + ", maxBatchCount=" + maxBatchCount
+                            + ", lingerMillis=" + lingerMillis);
+        }
+        this.downstream = downstream;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchCount = maxBatchCount;
+        this.lingerMillis = lingerMillis;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.pruner = scheduler.scheduleWithFixedDelay(this::prune, PRUNE_MILLIS, PRUNE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        for (byte b : payload) {
+            if (b == SEPARATOR) {
+                CompletableFuture<Void> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(
+                        new IllegalArgumentException("A batched reading must not contain a newline"));
+                return rejected;
+            }
+        }
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        while (true) {
+            Batch batch = batches.computeIfAbsent(topic, Batch::new);
+            synchronized (batch) {
+                if (batch.pruned) {
+                    // Pruned since the lookup; go again, on the batch that replaces it.
+                    continue;
+                }
+                if (batch.count > 0 && (batch.qos != qos || batch.size + 1 + payload.length > maxBatchBytes)) {
+                    send(batch.drain());
+                }
+                batch.append(payload, qos, result);
+                if (batch.count >= maxBatchCount || batch.size >= maxBatchBytes || lingerMillis == 0) {
+                    send(batch.drain());
+                } else if (batch.count == 1) {
+                    batch.linger = scheduler.schedule(() -> flush(topic), lingerMillis, TimeUnit.MILLISECONDS);
+                }
+                return result;
+            }
+        }
+    }
+
+    /** Sends the pending batch for {@code topic}, if any, without waiting for its linger time. */
+    public void flush(String topic) {
+        Batch batch = batches.get(topic);
+        if (batch == null) {
+            return;
+        }
+        synchronized (batch) {
+            if (batch.count > 0) {
+                send(batch.drain());
+            }
+        }
+    }
+
+    /** Sends every pending batch. */
+    public void flushAll() {
+        for (String topic : new ArrayList<>(batches.keySet())) {
+            flush(topic);
+        }
+    }
+
+    public BatchSizeHistogram getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public void close() {
+        pruner.cancel(false);
+        flushAll();
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    /** Forgets the topics with nothing buffered, as a new batch would start out the same. */
+    void prune() {
+        for (Iterator<Batch> it = batches.values().iterator(); it.hasNext(); ) {
+            Batch batch = it.next();
+            synchronized (batch) {
+                if (batch.count == 0) {
+                    batch.pruned = true;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** Topics with a batch right now. */
+    int batches() {
+        return batches.size();
+    }
+
+    /** Hands {@code batch} downstream; called holding the lock of the open batch it was drained from. */
+    private void send(Batch batch) {
+        histogram.record(batch.futures.size(), batch.payload.length);
+        List<CompletableFuture<Void>> futures = batch.futures;
+        downstream.publish(batch.topic, batch.payload, batch.qos).whenComplete((ignored, e) -> {
+            for (CompletableFuture<Void> future : futures) {
+                if (e == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * The open batch for one topic, and, once drained, an immutable snapshot of a batch ready to
+     * be sent. The open batch is guarded by its own monitor.
+     */
+    private static final class Batch {
+        final String topic;
+        byte[] payload;
+        int size;
+        int count;
+        int qos;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        ScheduledFuture<?> linger;
+        // Once set, the batch is no longer in the map and takes no more readings.
+        boolean pruned;
+
+        Batch(String topic) {
+            this.topic = topic;
+            this.payload = new byte[256];
+        }
+
+        private Batch(String topic, byte[] payload, int qos, List<CompletableFuture<Void>> futures) {
+            this.topic = topic;
+            this.payload = payload;
+            this.size = payload.length;
+            this.count = futures.size();
+            this.qos = qos;
+            this.futures = futures;
+        }
+
+        void append(byte[] reading, int readingQos, CompletableFuture<Void> future) {
+            int needed = size + (count > 0 ? 1 : 0) + reading.length;
+            if (needed > payload.length) {
+                payload = Arrays.copyOf(payload, Math.max(needed, payload.length * 2));
+            }
+            if (count > 0) {
+                payload[size++] = SEPARATOR;
+            }
+            System.arraycopy(reading, 0, payload, size, reading.length);
+            size += reading.length;
+            count++;
+            qos = readingQos;
+            futures.add(future);
+        }
+
+        /** Returns the buffered readings as a batch to send and resets this one. */
+        Batch drain() {
+            if (linger != null) {
+                linger.cancel(false);
+                linger = null;
+            }
+            Batch drained = new Batch(topic, Arrays.copyOf(payload, size), qos, futures);
+            size = 0;
+            count = 0;
+            futures = new ArrayList<>();
+            return drained;
+        }
+    }
+}
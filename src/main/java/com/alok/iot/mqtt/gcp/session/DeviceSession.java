@@ -0,0 +1,228 @@
+package com.alok.iot.mqtt.gcp.session;
+
+import com.alok.iot.mqtt.gcp.auth.JwtTokenProvider;
+import com.alok.iot.mqtt.gcp.connect.ConnectionSupervisor;
+import com.alok.iot.mqtt.gcp.connect.ReconnectPolicy;
+import com.alok.iot.mqtt.gcp.connect.ReconnectStats;
+import com.alok.iot.mqtt.gcp.inbound.InboundDispatcher;
+import com.alok.iot.mqtt.gcp.metrics.MqttMetrics;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * One device or gateway connection owned by a {@link DeviceSessionManager}.
+ *
+ * Every operation is issued from the session's shard thread, and every returned future completes
+ * on it too, so application code chained onto a future never runs on (and never stalls) Paho's
+ * callback thread. A {@link ConnectionSupervisor} reconnects the session when its connection is
+ * lost and restores its subscriptions.
+ */
+public class DeviceSession {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceSession.class);
+
+    private final String deviceId;
+    private final MqttAsyncClient client;
+    private final JwtTokenProvider tokenProvider;
+    private final ScheduledExecutorService shard;
+    private final ConnectionSupervisor supervisor;
+    private final InboundDispatcher inbound;
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    DeviceSession(
+            String deviceId,
+            MqttAsyncClient client,
+            MqttConnectOptions connectOptions,
+            JwtTokenProvider tokenProvider,
+            ReconnectPolicy reconnectPolicy,
+            ScheduledExecutorService shard,
+            InboundDispatcher inbound) {
+        this.deviceId = deviceId;
+        this.client = client;
+        this.tokenProvider = tokenProvider;
+        this.shard = shard;
+        this.inbound = inbound;
+        this.supervisor =
+                new ConnectionSupervisor(
+                        client,
+                        () -> {
+                            connectOptions.setPassword(tokenProvider.currentToken().toPassword());
+                            return connectOptions;
+                        },
+                        reconnectPolicy,
+                        shard);
+        supervisor.addRecoveryAction(this::resubscribe);
+        tokenProvider.addListener(token -> shard.execute(this::reauthenticate));
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /** The underlying client, for callers that need to drive Paho directly. */
+    public IMqttAsyncClient getClient() {
+        return client;
+    }
+
+    /** The shard thread this session's work and completions run on. */
+    public ScheduledExecutorService getShard() {
+        return shard;
+    }
+
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    /** Reconnect counters and latencies for this session. */
+    public ReconnectStats getReconnectStats() {
+        return supervisor.getStats();
+    }
+
+    /** Connects with the provider's current token, retrying per the manager's reconnect policy. */
+    public CompletableFuture<Void> connect() {
+        return supervisor.connect();
+    }
+
+    /** Publishes {@code payload}; the future completes once the broker acknowledged it (QoS 1). */
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        shard.execute(() -> {
+            long start = System.nanoTime();
+            MqttMetrics.publishing();
+            result.whenComplete((ignored, e) -> {
+                if (e == null) {
+                    MqttMetrics.published(payload.length, System.nanoTime() - start);
+                } else {
+                    MqttMetrics.publishFailed(e, true);
+                }
+            });
+            try {
+                MqttMessage message = new MqttMessage(payload);
+                message.setQos(qos);
+                client.publish(topic, message, null, completeOnShard(result));
+            } catch (MqttException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Subscribes {@code listener}, which runs on the manager's {@link InboundDispatcher}, in order
+     * for each device. The subscription is made again after every reconnect.
+     */
+    public CompletableFuture<Void> subscribe(String topicFilter, int qos, IMqttMessageListener listener) {
+        IMqttMessageListener dispatched = inbound.wrap(listener);
+        IMqttMessageListener timed = (topic, message) -> {
+            long start = System.nanoTime();
+            try {
+                dispatched.messageArrived(topic, message);
+            } finally {
+                MqttMetrics.messageHandled(message.getPayload().length, System.nanoTime() - start);
+            }
+        };
+        subscriptions.put(topicFilter, new Subscription(qos, timed));
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        shard.execute(() -> {
+            try {
+                long start = System.nanoTime();
+                result.thenRun(() -> MqttMetrics.subscribed(System.nanoTime() - start));
+                client.subscribe(topicFilter, qos, null, completeOnShard(result), timed);
+            } catch (MqttException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    public CompletableFuture<Void> disconnect() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        shard.execute(() -> {
+            if (!client.isConnected()) {
+                result.complete(null);
+                return;
+            }
+            try {
+                client.disconnect(null, completeOnShard(result));
+            } catch (MqttException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /** Drops the connection without waiting for in-flight work and releases the client. */
+    void close() {
+        supervisor.close();
+        tokenProvider.close();
+        try {
+            if (client.isConnected()) {
+                client.disconnectForcibly();
+            }
+            client.close();
+        } catch (MqttException e) {
+            LOG.warn("Closing session {} failed: {}", deviceId, e.toString());
+        }
+    }
+
+    /** Cloud IoT Core only checks the JWT on connect, so a new token means a new connection. */
+    private void reauthenticate() {
+        if (!client.isConnected()) {
+            return;
+        }
+        disconnect().thenCompose(ignored -> connect()).whenComplete((ignored, e) -> {
+            if (e != null) {
+                LOG.warn("Reconnecting {} with a refreshed token failed: {}", deviceId, e.toString());
+            }
+        });
+    }
+
+    private CompletableFuture<Void> resubscribe(IMqttAsyncClient connected) throws MqttException {
+        List<CompletableFuture<Void>> subscribed = new ArrayList<>();
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            connected.subscribe(entry.getKey(), entry.getValue().qos, null,
+                    ConnectionSupervisor.completing(result), entry.getValue().listener);
+            subscribed.add(result);
+        }
+        return CompletableFuture.allOf(subscribed.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private IMqttActionListener completeOnShard(CompletableFuture<Void> result) {
+        return new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                shard.execute(() -> result.complete(null));
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                shard.execute(() -> result.completeExceptionally(exception));
+            }
+        };
+    }
+
+    private static final class Subscription {
+        final int qos;
+        final IMqttMessageListener listener;
+
+        Subscription(int qos, IMqttMessageListener listener) {
+            this.qos = qos;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.alok.iot.mqtt.gcp.session;
+
+import com.alok.iot.mqtt.gcp.MqttExampleOptions;
+import com.alok.iot.mqtt.gcp.auth.JwtTokenProvider;
+import com.alok.iot.mqtt.gcp.connect.ConnectionSupervisor;
+import com.alok.iot.mqtt.gcp.connect.ReconnectPolicy;
+import com.alok.iot.mqtt.gcp.inbound.InboundDispatcher;
+import com.alok.iot.mqtt.gcp.persist.MappedOutboxPersistence;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import com.alok.iot.mqtt.gcp.utils.HashedWheelTimer;
+import com.alok.iot.mqtt.gcp.utils.MqttUtils;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.ScheduledExecutorPingSender;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds many device or gateway sessions in one JVM.
+ *
+ * Sessions are sharded by device id across a fixed set of I/O threads. A shard thread issues its
+ * sessions' connects, publishes and subscribes, completes their futures, sends their keep-alive
+ * pings and mints their JWTs, so none of that costs a thread per session. When each JWT is due is
+ * kept on one shared {@link HashedWheelTimer}, at O(1) per session. Inbound messages are
+ * handled on a shared {@link InboundDispatcher}, partitioned by device. Paho still runs its
+ * own socket reader, writer and callback threads for each connection; {@link #resourceUsage()}
+ * reports the resulting cost per 1k sessions.
+ */
+public class DeviceSessionManager implements AutoCloseable {
+    private final MqttExampleOptions options;
+    private final String serverAddress;
+    private final ReconnectPolicy reconnectPolicy;
+    private final int maxInflight;
+    private final ScheduledExecutorService[] shards;
+    private final HashedWheelTimer timer = new HashedWheelTimer("mqtt-timer");
+    private final InboundDispatcher inbound;
+    private final ConcurrentMap<String, DeviceSession> sessions = new ConcurrentHashMap<>();
+
+    private final int baselineThreads;
+    private final long baselineHeapBytes;
+
+    /** Creates a manager with {@code ioThreads} shards, connecting with the bridge and key in {@code options}. */
+    public DeviceSessionManager(MqttExampleOptions options, int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads must be at least 1, was " + ioThreads);
+        }
+        this.options = options;
+        this.serverAddress =
+                MqttUtils.serverAddress(options.mqttBridgeHostname, options.mqttBridgePort, options.mqttBridgeTls);
+        this.reconnectPolicy =
+                new ReconnectPolicy(
+                        options.reconnectInitialMillis,
+                        options.reconnectMaxMillis,
+                        ReconnectPolicy.DEFAULT_MULTIPLIER,
+                        ReconnectPolicy.DEFAULT_MAX_ELAPSED_MILLIS);
+        // Leave room for a gateway's pipelined attaches as well as the publish window.
+        this.maxInflight = Math.max(
+                MqttConnectOptions.MAX_INFLIGHT_DEFAULT, Math.max(options.maxInFlight, options.attachMaxInFlight));
+        ConnectionSupervisor.setGlobalConnectRate(
+                options.connectRatePerSec, Math.max(1, (int) options.connectRatePerSec));
+        this.shards = new ScheduledExecutorService[ioThreads];
+        AtomicInteger threadIndex = new AtomicInteger();
+        for (int i = 0; i < ioThreads; i++) {
+            shards[i] = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "mqtt-io-" + threadIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.inbound = new InboundDispatcher(options.inboundWorkers, options.inboundQueueCapacity);
+        this.baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        this.baselineHeapBytes = usedHeapBytes();
+    }
+
+    /**
+     * Returns the session for {@code deviceId}, creating it (unconnected) if needed. The device's
+     * first JWT is minted on the calling thread.
+     */
+    public DeviceSession open(String deviceId)
+            throws MqttException, NoSuchAlgorithmException, IOException, InvalidKeySpecException {
+        DeviceSession existing = sessions.get(deviceId);
+        if (existing != null) {
+            return existing;
+        }
+
+        ScheduledExecutorService shard = shardFor(deviceId);
+        JwtTokenProvider tokenProvider =
+                new JwtTokenProvider(
+                        options.projectId,
+                        options.privateKeyFile,
+                        options.algorithm,
+                        options.tokenExpMins,
+                        options.tokenRefreshMarginSecs,
+                        shard,
+                        timer);
+        tokenProvider.start();
+
+        String clientId =
+                MqttUtils.clientId(options.projectId, options.cloudRegion, options.registryId, deviceId);
+        MqttConnectOptions connectOptions = MqttUtils.connectOptions(tokenProvider.currentToken().toPassword());
+        connectOptions.setMaxInflight(maxInflight);
+        MqttClientPersistence persistence = new MemoryPersistence();
+        if (options.persistenceDir != null) {
+            persistence = new MappedOutboxPersistence(options.persistenceDir);
+            connectOptions.setCleanSession(false);
+        }
+        MqttAsyncClient client =
+                new MqttAsyncClient(serverAddress, clientId, persistence, new ScheduledExecutorPingSender(shard));
+
+        DeviceSession session =
+                new DeviceSession(deviceId, client, connectOptions, tokenProvider, reconnectPolicy, shard, inbound);
+        DeviceSession raced = sessions.putIfAbsent(deviceId, session);
+        if (raced != null) {
+            session.close();
+            return raced;
+        }
+        return session;
+    }
+
+    /** The dispatcher every session's subscriptions are handled through. */
+    public InboundDispatcher getInbound() {
+        return inbound;
+    }
+
+    /**
+     * The timing wheel that keeps every session's JWT refresh deadline, for other per-device timers
+     * such as a publish cadence. Its tasks must hand their work to the device's shard.
+     */
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * The unacknowledged messages each session's client allows; Paho refuses any more with
+     * {@code REASON_CODE_MAX_INFLIGHT}, so publishers without a window of their own should use an
+     * {@link com.alok.iot.mqtt.gcp.publish.AsyncPublisher} this wide.
+     */
+    public int getMaxInflight() {
+        return maxInflight;
+    }
+
+    /** Returns the session for {@code deviceId}, or null if none is open. */
+    public DeviceSession get(String deviceId) {
+        return sessions.get(deviceId);
+    }
+
+    public Collection<DeviceSession> sessions() {
+        return sessions.values();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /** Publishes on behalf of {@code deviceId}, which must have an open session. */
+    public CompletableFuture<Void> publish(String deviceId, String topic, byte[] payload, int qos) {
+        return require(deviceId).publish(topic, payload, qos);
+    }
+
+    /** Subscribes on behalf of {@code deviceId}, which must have an open session. */
+    public CompletableFuture<Void> subscribe(
+            String deviceId, String topicFilter, int qos, IMqttMessageListener listener) {
+        return require(deviceId).subscribe(topicFilter, qos, listener);
+    }
+
+    /** Connects every open session that is not connected yet. */
+    public CompletableFuture<Void> connectAll() {
+        List<CompletableFuture<Void>> connects = new ArrayList<>();
+        for (DeviceSession session : sessions.values()) {
+            if (!session.isConnected()) {
+                connects.add(session.connect());
+            }
+        }
+        return CompletableFuture.allOf(connects.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /** Closes and forgets the session for {@code deviceId}, if any, along with its cached topics. */
+    public void close(String deviceId) {
+        DeviceSession session = sessions.remove(deviceId);
+        if (session != null) {
+            session.close();
+            DeviceTopics.evict(deviceId);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (String deviceId : new ArrayList<>(sessions.keySet())) {
+            close(deviceId);
+        }
+        inbound.close();
+        timer.close();
+        for (ScheduledExecutorService shard : shards) {
+            shard.shutdown();
+        }
+        for (ScheduledExecutorService shard : shards) {
+            try {
+                shard.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** Samples live threads and used heap, and attributes the growth since construction to sessions. */
+    public ResourceUsage resourceUsage() {
+        int connected = 0;
+        for (DeviceSession session : sessions.values()) {
+            if (session.isConnected()) {
+                connected++;
+            }
+        }
+        return new ResourceUsage(
+                sessions.size(),
+                connected,
+                shards.length,
+                ManagementFactory.getThreadMXBean().getThreadCount() - baselineThreads,
+                usedHeapBytes() - baselineHeapBytes);
+    }
+
+    private DeviceSession require(String deviceId) {
+        DeviceSession session = sessions.get(deviceId);
+        if (session == null) {
+            throw new IllegalStateException("No open session for device " + deviceId);
+        }
+        return session;
+    }
+
+    private ScheduledExecutorService shardFor(String deviceId) {
+        return shards[Math.floorMod(deviceId.hashCode(), shards.length)];
+    }
+
+    private static long usedHeapBytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /** A point-in-time sample of what the open sessions cost. */
+    public static final class ResourceUsage {
+        private final int sessions;
+        private final int connectedSessions;
+        private final int ioThreads;
+        private final int sessionThreads;
+        private final long sessionHeapBytes;
+
+        ResourceUsage(int sessions, int connectedSessions, int ioThreads, int sessionThreads, long sessionHeapBytes) {
+            this.sessions = sessions;
+            this.connectedSessions = connectedSessions;
+            this.ioThreads = ioThreads;
+            this.sessionThreads = sessionThreads;
+            this.sessionHeapBytes = sessionHeapBytes;
+        }
+
+        public int getSessions() {
+            return sessions;
+        }
+
+        public int getConnectedSessions() {
+            return connectedSessions;
+        }
+
+        public int getIoThreads() {
+            return ioThreads;
+        }
+
+        /** Threads started since the manager was created, including the shard threads. */
+        public int getSessionThreads() {
+            return sessionThreads;
+        }
+
+        /** Heap growth since the manager was created; only meaningful after a GC has settled. */
+        public long getSessionHeapBytes() {
+            return sessionHeapBytes;
+        }
+
+        public double getThreadsPer1k() {
+            return sessions == 0 ? 0 : sessionThreads * 1000.0 / sessions;
+        }
+
+        public double getHeapBytesPer1k() {
+            return sessions == 0 ? 0 : sessionHeapBytes * 1000.0 / sessions;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d sessions (%d connected) on %d I/O threads: %.1f threads and %.1f MiB heap per 1k sessions",
+                    sessions, connectedSessions, ioThreads, getThreadsPer1k(), getHeapBytesPer1k() / (1024 * 1024));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.alok.iot.mqtt.gcp.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A device's Cloud IoT Core topics, built once per device and then looked up, so publishing never
+ * formats a topic. {@link #of} returns the same instance for a device id until it is
+ * {@link #evict evicted}; a lookup of a device seen before allocates nothing.
+ */
+public final class DeviceTopics {
+    /** The prefix of every device topic. */
+    public static final String PREFIX = "/devices/";
+
+    private static final ConcurrentMap<String, DeviceTopics> TABLE = new ConcurrentHashMap<>();
+
+    private final String deviceId;
+    private final String events;
+    private final String state;
+    private final String config;
+    private final String commands;
+    private final String attach;
+    private final String detach;
+    private final String errors;
+
+    private DeviceTopics(String deviceId) {
+        String prefix = PREFIX + deviceId + "/";
+        this.deviceId = deviceId;
+        this.events = prefix + "events";
+        this.state = prefix + "state";
+        this.config = prefix + "config";
+        this.commands = prefix + "commands/#";
+        this.attach = prefix + "attach";
+        this.detach = prefix + "detach";
+        this.errors = prefix + "errors";
+    }
+
+    /** The topics of {@code deviceId}, built on its first lookup. */
+    public static DeviceTopics of(String deviceId) {
+        DeviceTopics topics = TABLE.get(deviceId);
+        return topics != null ? topics : TABLE.computeIfAbsent(deviceId, DeviceTopics::new);
+    }
+
+    /** Forgets a device, once it has been detached or its session closed for good. */
+    public static void evict(String deviceId) {
+        TABLE.remove(deviceId);
+    }
+
+    /**
+     * The device id of a device topic such as {@code /devices/<id>/events}, or null if {@code topic}
+     * is not under {@link #PREFIX}.
+     */
+    public static String deviceIdOf(String topic) {
+        if (topic.startsWith(PREFIX)) {
+            int end = topic.indexOf('/', PREFIX.length());
+            if (end > PREFIX.length()) {
+                return topic.substring(PREFIX.length(), end);
+            }
+        }
+        return null;
+    }
+
+    /** Devices in the table. */
+    public static int size() {
+        return TABLE.size();
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /** The topic for a message type: 'events' (or 'event') or 'state'. */
+    public String telemetry(String messageType) {
+        if ("events".equals(messageType) || "event".equals(messageType)) {
+            return events;
+        } else if ("state".equals(messageType)) {
+            return state;
+        }
+        throw new IllegalArgumentException(
+                "Invalid message type " + messageType + ". Should be one of 'events' or 'state'.");
+    }
+
+    public String events() {
+        return events;
+    }
+
+    public String state() {
+        return state;
+    }
+
+    public String config() {
+        return config;
+    }
+
+    /** The filter matching every command subfolder. */
+    public String commands() {
+        return commands;
+    }
+
+    public String attach() {
+        return attach;
+    }
+
+    public String detach() {
+        return detach;
+    }
+
+    public String errors() {
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        return deviceId;
+    }
+}
@@ -0,0 +1,308 @@
+package com.alok.iot.mqtt.gcp.utils;
+
+import com.alok.iot.mqtt.gcp.logging.SampledLogger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel: one thread keeps any number of timers, such as every device's publish
+ * cadence and JWT refresh deadline, where a {@link java.util.concurrent.ScheduledExecutorService}
+ * would keep them in a heap.
+ *
+ * The wheel has {@code wheelSize} buckets, one per tick. A timer goes into the bucket its deadline
+ * falls in, along with how many turns of the wheel are left before it is due, so adding or
+ * cancelling one is O(1), and each tick only visits one bucket. Timers fire up to one tick late.
+ * The default 10 ms tick is fine enough for publish cadences and token deadlines while keeping an
+ * idle wheel's thread from waking a thousand times a second.
+ * Each timer is a single small object; a periodic timer reuses its own on every period.
+ *
+ * Tasks run on the wheel's thread and must be quick; hand anything slower, such as signing a JWT
+ * or publishing, to an executor from the task.
+ */
+public class HashedWheelTimer implements AutoCloseable {
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 4096;
+
+    /** Most timers moved into the wheel per tick, so a flood of new timers cannot stall a tick. */
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+    private static final SampledLogger TASK_LOG =
+            SampledLogger.of(HashedWheelTimer.class.getName() + ".task", 5, 1);
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startNanos;
+    private final Thread worker;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final LongAdder expired = new LongAdder();
+    private volatile boolean stopped;
+    // Only touched by the worker.
+    private long tick;
+
+    public HashedWheelTimer(String name) {
+        this(name, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /** @param wheelSize buckets in the wheel, rounded up to a power of two */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        long tickNanos = unit.toNanos(tickDuration);
+        if (tickNanos < 1 || wheelSize < 1 || wheelSize > 1 << 30) {
+            throw new IllegalArgumentException(
+                    "Invalid timing wheel: tickNanos=" + tickNanos + ", wheelSize=" + wheelSize);
+        }
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickNanos = tickNanos;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Runs {@code task} once, {@code delay} from now. */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        return add(new Timeout(this, task, deadlineAfter(unit.toNanos(delay)), 0));
+    }
+
+    /** Runs {@code task} {@code initialDelay} from now, then every {@code period}, until cancelled. */
+    public Timeout newPeriodic(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        long periodNanos = unit.toNanos(period);
+        if (periodNanos < 1) {
+            throw new IllegalArgumentException("Invalid timer period: periodNanos=" + periodNanos);
+        }
+        return add(new Timeout(this, task, deadlineAfter(unit.toNanos(initialDelay)), periodNanos));
+    }
+
+    /** Timers that have not fired or been cancelled; a periodic timer counts until it is cancelled. */
+    public long size() {
+        return pending.get();
+    }
+
+    /** Times a task has run. */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /** Stops the wheel; timers that have not fired never will. */
+    @Override
+    public void close() {
+        stopped = true;
+        LockSupport.unpark(worker);
+        if (Thread.currentThread() != worker) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d buckets of %d us: %d pending, %d expired",
+                wheel.length, TimeUnit.NANOSECONDS.toMicros(tickNanos), size(), getExpired());
+    }
+
+    private long deadlineAfter(long delayNanos) {
+        long deadline = System.nanoTime() - startNanos + Math.max(0, delayNanos);
+        // Guard against overflow for delays of centuries.
+        return deadline < 0 ? Long.MAX_VALUE : deadline;
+    }
+
+    private Timeout add(Timeout timeout) {
+        if (stopped) {
+            throw new IllegalStateException("Timer is stopped");
+        }
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (!stopped) {
+            long now = waitForNextTick();
+            if (now < 0) {
+                return;
+            }
+            removeCancelled();
+            transferAdded();
+            wheel[(int) (tick & mask)].expire(now);
+            tick++;
+        }
+    }
+
+    /** Sleeps until the current tick ends and returns the time since the start, or -1 once stopped. */
+    private long waitForNextTick() {
+        long tickEnd = tickNanos * (tick + 1);
+        while (!stopped) {
+            long now = System.nanoTime() - startNanos;
+            if (now >= tickEnd) {
+                return now;
+            }
+            LockSupport.parkNanos(this, tickEnd - now);
+        }
+        return -1;
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+            pending.decrementAndGet();
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state != Timeout.WAITING) {
+                continue;
+            }
+            long dueTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            // A deadline already past goes into the current bucket, to fire on this tick.
+            wheel[(int) (Math.max(dueTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    /** A pending task; cancel it to stop it from running, or from running again if periodic. */
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long periodNanos;
+        private volatile int state;
+        // Only touched by the worker.
+        private long deadline;
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline, long periodNanos) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+            this.periodNanos = periodNanos;
+        }
+
+        /** Returns false if the task already ran, for a one-off timer, or was already cancelled. */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, WAITING, CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        /** Whether a one-off timer's task has run. */
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (periodNanos == 0 && !STATE.compareAndSet(this, WAITING, EXPIRED)) {
+                return;
+            }
+            if (periodNanos == 0) {
+                timer.pending.decrementAndGet();
+            } else if (state != WAITING) {
+                return;
+            }
+            timer.expired.increment();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                TASK_LOG.warn("Timer task failed: {}", e.toString());
+            }
+            if (periodNanos > 0 && state == WAITING) {
+                // Fixed rate: the next deadline follows the last one, not the task's end.
+                deadline += periodNanos;
+                timer.added.add(this);
+            }
+        }
+    }
+
+    /** The timers in one slot of the wheel, as a doubly linked list; only touched by the worker. */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /** Fires the timers due by {@code now}, and counts down the rounds of the rest. */
+        void expire(long now) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    if (timeout.deadline <= now) {
+                        remove(timeout);
+                        timeout.expire();
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
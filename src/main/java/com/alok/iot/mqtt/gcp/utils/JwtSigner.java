@@ -0,0 +1,82 @@
+package com.alok.iot.mqtt.gcp.utils;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SignatureException;
+import io.jsonwebtoken.impl.crypto.EllipticCurveProvider;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Base64;
+
+/**
+ * Mints Cloud IoT Core JWTs with an already parsed private key.
+ *
+ * The header is encoded once per key, and every thread keeps its own initialised
+ * {@link Signature}, so minting a token costs exactly one signature operation.
+ */
+public class JwtSigner {
+    /** ES256 signatures are the 32 byte R and S values concatenated, not DER. */
+    private static final int ES256_SIGNATURE_LENGTH = 64;
+
+    private static final Base64.Encoder BASE64_URL = Base64.getUrlEncoder().withoutPadding();
+
+    private final SignatureAlgorithm algorithm;
+    private final PrivateKey privateKey;
+    private final String encodedHeader;
+    private final ThreadLocal<Signature> signatures;
+
+    JwtSigner(SignatureAlgorithm algorithm, PrivateKey privateKey) {
+        if (algorithm != SignatureAlgorithm.RS256 && algorithm != SignatureAlgorithm.ES256) {
+            throw new IllegalArgumentException(
+                    "Invalid algorithm " + algorithm + ". Should be one of 'RS256' or 'ES256'.");
+        }
+        this.algorithm = algorithm;
+        this.privateKey = privateKey;
+        this.encodedHeader = encode("{\"alg\":\"" + algorithm.getValue() + "\",\"typ\":\"JWT\"}");
+        this.signatures = ThreadLocal.withInitial(this::newSignature);
+    }
+
+    public SignatureAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /** Signs a token for the given audience (the GCP project id), with times in epoch seconds. */
+    public String sign(String audience, long issuedAtSecs, long expiresAtSecs) {
+        String claims =
+                "{\"iat\":" + issuedAtSecs + ",\"exp\":" + expiresAtSecs
+                        + ",\"aud\":" + JSONObject.quote(audience) + "}";
+        String signingInput = encodedHeader + "." + encode(claims);
+
+        byte[] signature;
+        try {
+            Signature signer = signatures.get();
+            signer.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+            signature = signer.sign();
+        } catch (GeneralSecurityException e) {
+            // A failed sign() leaves the Signature in an unknown state; start over on the next call.
+            signatures.remove();
+            throw new SignatureException("Unable to sign JWT with " + algorithm.getValue(), e);
+        }
+        if (algorithm == SignatureAlgorithm.ES256) {
+            signature = EllipticCurveProvider.transcodeSignatureToConcat(signature, ES256_SIGNATURE_LENGTH);
+        }
+        return signingInput + "." + BASE64_URL.encodeToString(signature);
+    }
+
+    private Signature newSignature() {
+        try {
+            Signature signature = Signature.getInstance(algorithm.getJcaName());
+            signature.initSign(privateKey);
+            return signature;
+        } catch (GeneralSecurityException e) {
+            throw new SignatureException("Unable to initialise " + algorithm.getJcaName() + " signer", e);
+        }
+    }
+
+    private static String encode(String json) {
+        return BASE64_URL.encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,59 +1,56 @@
 package com.alok.iot.mqtt.gcp.utils;
 
-import io.jsonwebtoken.JwtBuilder;
-import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
-import org.joda.time.DateTime;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
 
 public class JwtUtils {
+    /** Token lifetime used when the caller does not ask for one. */
+    public static final int DEFAULT_TOKEN_EXP_MINS = 20;
+
+    private static final KeyMaterialCache KEY_CACHE = new KeyMaterialCache();
 
     /** Create a Cloud IoT Core JWT for the given project id, signed with the given RSA key. */
     public static String createJwtRsa(String projectId, String privateKeyFile)
             throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
-        DateTime now = new DateTime();
-        // Create a JWT to authenticate this device. The device will be disconnected after the token
-        // expires, and will have to reconnect with a new token. The audience field should always be set
-        // to the GCP project id.
-        JwtBuilder jwtBuilder =
-                Jwts.builder()
-                        .setIssuedAt(now.toDate())
-                        .setExpiration(now.plusMinutes(20).toDate())
-                        .setAudience(projectId);
-
-        byte[] keyBytes = Files.readAllBytes(Paths.get(privateKeyFile));
-        PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
-        KeyFactory kf = KeyFactory.getInstance("RSA");
-
-        System.out.println("Alok JWT token: " + jwtBuilder.signWith(SignatureAlgorithm.RS256, kf.generatePrivate(spec)).compact());
-
-        return jwtBuilder.signWith(SignatureAlgorithm.RS256, kf.generatePrivate(spec)).compact();
+        return createJwt(projectId, privateKeyFile, SignatureAlgorithm.RS256, DEFAULT_TOKEN_EXP_MINS);
     }
 
     /** Create a Cloud IoT Core JWT for the given project id, signed with the given ES key. */
     public static String createJwtEs(String projectId, String privateKeyFile)
             throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
-        DateTime now = new DateTime();
+        return createJwt(projectId, privateKeyFile, SignatureAlgorithm.ES256, DEFAULT_TOKEN_EXP_MINS);
+    }
+
+    /** Create a Cloud IoT Core JWT for the named algorithm, either 'RS256' or 'ES256'. */
+    public static String createJwt(
+            String projectId, String privateKeyFile, String algorithm, int tokenExpMins)
+            throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
+        return createJwt(projectId, privateKeyFile, parseAlgorithm(algorithm), tokenExpMins);
+    }
+
+    private static String createJwt(
+            String projectId, String privateKeyFile, SignatureAlgorithm algorithm, int tokenExpMins)
+            throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
         // Create a JWT to authenticate this device. The device will be disconnected after the token
         // expires, and will have to reconnect with a new token. The audience field should always be set
         // to the GCP project id.
-        JwtBuilder jwtBuilder =
-                Jwts.builder()
-                        .setIssuedAt(now.toDate())
-                        .setExpiration(now.plusMinutes(20).toDate())
-                        .setAudience(projectId);
-
-        byte[] keyBytes = Files.readAllBytes(Paths.get(privateKeyFile));
-        PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
-        KeyFactory kf = KeyFactory.getInstance("EC");
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        long exp = now + TimeUnit.MINUTES.toSeconds(tokenExpMins);
+        return KEY_CACHE.signerFor(privateKeyFile, algorithm).sign(projectId, now, exp);
+    }
 
-        return jwtBuilder.signWith(SignatureAlgorithm.ES256, kf.generatePrivate(spec)).compact();
+    /** Maps the command line algorithm name onto the JWT signature algorithm. */
+    public static SignatureAlgorithm parseAlgorithm(String algorithm) {
+        if ("RS256".equals(algorithm)) {
+            return SignatureAlgorithm.RS256;
+        } else if ("ES256".equals(algorithm)) {
+            return SignatureAlgorithm.ES256;
+        }
+        throw new IllegalArgumentException(
+                "Invalid algorithm " + algorithm + ". Should be one of 'RS256' or 'ES256'.");
     }
 }
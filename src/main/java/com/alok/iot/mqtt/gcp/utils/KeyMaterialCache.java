@@ -0,0 +1,120 @@
+package com.alok.iot.mqtt.gcp.utils;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches parsed PKCS8 private keys, and the {@link JwtSigner} built from each, keyed by key file
+ * and algorithm.
+ *
+ * A cached entry is trusted for {@code recheckIntervalMillis}; after that the file's size and
+ * modification time are compared (a stat, not a read) and the key is re-parsed only if the file
+ * has changed.
+ */
+public class KeyMaterialCache {
+    public static final long DEFAULT_RECHECK_INTERVAL_MILLIS = 30000L;
+
+    private final ConcurrentMap<CacheKey, Entry> entries = new ConcurrentHashMap<>();
+    private final long recheckIntervalMillis;
+
+    public KeyMaterialCache() {
+        this(DEFAULT_RECHECK_INTERVAL_MILLIS);
+    }
+
+    public KeyMaterialCache(long recheckIntervalMillis) {
+        this.recheckIntervalMillis = recheckIntervalMillis;
+    }
+
+    /** Returns the signer for the key in {@code privateKeyFile}, loading it on first use or change. */
+    public JwtSigner signerFor(String privateKeyFile, SignatureAlgorithm algorithm)
+            throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
+        CacheKey cacheKey = new CacheKey(Paths.get(privateKeyFile).toAbsolutePath().normalize(), algorithm);
+        long now = System.currentTimeMillis();
+
+        Entry entry = entries.get(cacheKey);
+        if (entry != null && now - entry.checkedAtMillis < recheckIntervalMillis) {
+            return entry.signer;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(cacheKey.path, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (entry != null && entry.lastModifiedMillis == lastModified && entry.size == attributes.size()) {
+            entry.checkedAtMillis = now;
+            return entry.signer;
+        }
+
+        // Concurrent misses for the same key may both parse it; the last writer wins, which is
+        // harmless since both read the same file.
+        PrivateKey privateKey = loadPrivateKey(cacheKey.path, algorithm);
+        Entry loaded = new Entry(new JwtSigner(algorithm, privateKey), lastModified, attributes.size(), now);
+        entries.put(cacheKey, loaded);
+        return loaded.signer;
+    }
+
+    /** Drops every cached key, forcing the next lookup to re-read the key file. */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    private static PrivateKey loadPrivateKey(Path path, SignatureAlgorithm algorithm)
+            throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
+        byte[] keyBytes = Files.readAllBytes(path);
+        PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
+        KeyFactory kf = KeyFactory.getInstance(algorithm == SignatureAlgorithm.ES256 ? "EC" : "RSA");
+        return kf.generatePrivate(spec);
+    }
+
+    private static final class CacheKey {
+        final Path path;
+        final SignatureAlgorithm algorithm;
+
+        CacheKey(Path path, SignatureAlgorithm algorithm) {
+            this.path = path;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return path.equals(other.path) && algorithm == other.algorithm;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, algorithm);
+        }
+    }
+
+    private static final class Entry {
+        final JwtSigner signer;
+        final long lastModifiedMillis;
+        final long size;
+        volatile long checkedAtMillis;
+
+        Entry(JwtSigner signer, long lastModifiedMillis, long size, long checkedAtMillis) {
+            this.signer = signer;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.size = size;
+            this.checkedAtMillis = checkedAtMillis;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.alok.iot.mqtt.gcp.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+
+import java.util.Properties;
+
+/** Builds the addresses, client ids and connect options the Cloud IoT Core MQTT bridge expects. */
+public class MqttUtils {
+
+    /** Returns the bridge address. Only SSL connections are accepted by Cloud IoT Core. */
+    public static String serverAddress(String mqttBridgeHostname, int mqttBridgePort) {
+        return serverAddress(mqttBridgeHostname, mqttBridgePort, true);
+    }
+
+    /**
+     * Returns the bridge address, over plain TCP if {@code tls} is false, as a
+     * {@link com.alok.iot.mqtt.gcp.broker.LocalBridge} expects.
+     */
+    public static String serverAddress(String mqttBridgeHostname, int mqttBridgePort, boolean tls) {
+        return (tls ? "ssl://" : "tcp://") + mqttBridgeHostname + ":" + mqttBridgePort;
+    }
+
+    /**
+     * Returns the MQTT client id, a unique string that identifies this device. For Google Cloud IoT
+     * Core, it must be in the format below.
+     */
+    public static String clientId(String projectId, String cloudRegion, String registryId, String deviceId) {
+        return "projects/" + projectId
+                + "/locations/" + cloudRegion
+                + "/registries/" + registryId
+                + "/devices/" + deviceId;
+    }
+
+    /** Returns connect options that authenticate with the given JWT. */
+    public static MqttConnectOptions connectOptions(char[] jwt) {
+        MqttConnectOptions connectOptions = new MqttConnectOptions();
+        // Note that the Google Cloud IoT Core only supports MQTT 3.1.1, and Paho requires that we
+        // explictly set this. If you don't set MQTT version, the server will immediately close its
+        // connection to your device.
+        connectOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
+
+        Properties sslProps = new Properties();
+        sslProps.setProperty("com.ibm.ssl.protocol", "TLSv1.2");
+        connectOptions.setSSLProperties(sslProps);
+
+        // With Google Cloud IoT Core, the username field is ignored, however it must be set for the
+        // Paho client library to send the password field. The password field is used to transmit a JWT
+        // to authorize the device.
+        connectOptions.setUserName("unused");
+        connectOptions.setPassword(jwt);
+        return connectOptions;
+    }
+}
@@ -0,0 +1,73 @@
+package com.alok.iot.mqtt.gcp.utils;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket: permits accrue at a fixed rate up to {@code burst}, and each operation takes
+ * one. Thread-safe.
+ */
+public class TokenBucket {
+    private final LongSupplier nanoClock;
+
+    private double permitsPerNano;
+    private double burst;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /** Creates a full bucket. */
+    public TokenBucket(double permitsPerSecond, double burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    TokenBucket(double permitsPerSecond, double burst, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.lastRefillNanos = nanoClock.getAsLong();
+        setRate(permitsPerSecond, burst);
+        this.tokens = this.burst;
+    }
+
+    /** Changes the rate and burst; tokens already accrued are kept, up to the new burst. */
+    public synchronized void setRate(double permitsPerSecond, double burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid rate: permitsPerSecond=" + permitsPerSecond + ", burst=" + burst);
+        }
+        refill();
+        this.permitsPerNano = permitsPerSecond / 1e9;
+        this.burst = burst;
+        this.tokens = Math.min(tokens, burst);
+    }
+
+    /** Takes a permit if one is available right now. */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Takes a permit even if none is available yet, and returns how many nanoseconds the caller
+     * must wait before using it; 0 if it can go now. Callers that reserve early wait longer, so
+     * reservations are served in order.
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens--;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / permitsPerNano);
+    }
+
+    /** Permits available right now; negative while reservations are outstanding. */
+    public synchronized double available() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * permitsPerNano);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,119 @@
+package com.alok.iot.mqtt.gcp.auth;
+
+import com.alok.iot.mqtt.gcp.utils.HashedWheelTimer;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JwtTokenProviderTests {
+    // With one minute tokens and a 59 second margin, the first refresh is due a second after start.
+    private static final int TOKEN_EXP_MINS = 1;
+    private static final int REFRESH_MARGIN_SECS = 59;
+
+    @TempDir
+    Path keyDir;
+
+    @Test
+    void refreshesTheMarginBeforeExpiryAndNotifiesListeners() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        Path keyFile = Files.write(keyDir.resolve("rsa_private_pkcs8"), keyPair.getPrivate().getEncoded());
+        JwtTokenProvider provider =
+                new JwtTokenProvider("my-project", keyFile.toString(), "RS256", TOKEN_EXP_MINS, REFRESH_MARGIN_SECS);
+        BlockingQueue<JwtTokenProvider.Token> refreshed = new LinkedBlockingQueue<>();
+        provider.addListener(refreshed::add);
+
+        provider.start();
+        JwtTokenProvider.Token first = provider.currentToken();
+        JwtTokenProvider.Token second = refreshed.poll(5, TimeUnit.SECONDS);
+
+        assertThat(first.getGeneration()).isEqualTo(0L);
+        assertThat(first.getExpiresAtMillis() - first.getIssuedAtMillis()).isEqualTo(TimeUnit.MINUTES.toMillis(1));
+        assertThat(second).isNotNull();
+        assertThat(second.getGeneration()).isEqualTo(1L);
+        assertThat(second.getIssuedAtMillis())
+                .isGreaterThanOrEqualTo(first.getExpiresAtMillis() - TimeUnit.SECONDS.toMillis(REFRESH_MARGIN_SECS));
+        assertThat(provider.currentToken()).isSameAs(second);
+        Claims claims = Jwts.parser().setSigningKey(keyPair.getPublic()).parseClaimsJws(second.getJwt()).getBody();
+        assertThat(claims.getAudience()).isEqualTo("my-project");
+        provider.close();
+    }
+
+    @Test
+    void retriesAFailedRefreshAndKeepsTheCurrentToken() throws Exception {
+        AtomicInteger mints = new AtomicInteger();
+        List<Long> attemptNanos = new CopyOnWriteArrayList<>();
+        JwtTokenProvider provider = provider(() -> {
+            attemptNanos.add(System.nanoTime());
+            int mint = mints.incrementAndGet();
+            if (mint == 2 || mint == 3) {
+                throw new IOException("key file unavailable");
+            }
+            return "jwt-" + mint;
+        }, 50, null);
+        BlockingQueue<JwtTokenProvider.Token> refreshed = new LinkedBlockingQueue<>();
+        provider.addListener(refreshed::add);
+
+        provider.start();
+        JwtTokenProvider.Token first = provider.currentToken();
+        JwtTokenProvider.Token second = refreshed.poll(5, TimeUnit.SECONDS);
+
+        assertThat(second).isNotNull();
+        assertThat(second.getJwt()).isEqualTo("jwt-4");
+        assertThat(first.getJwt()).isEqualTo("jwt-1");
+        assertThat(mints.get()).isEqualTo(4);
+        // The failed attempts are the retry delay apart, not retried in a tight loop.
+        assertThat(attemptNanos.get(2) - attemptNanos.get(1)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+        assertThat(attemptNanos.get(3) - attemptNanos.get(2)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+        assertThat(refreshed).isEmpty();
+        provider.close();
+    }
+
+    @Test
+    void closeCancelsTheNextRefresh() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-wheel", 10, TimeUnit.MILLISECONDS, 64);
+        AtomicInteger mints = new AtomicInteger();
+        JwtTokenProvider provider = provider(() -> "jwt-" + mints.incrementAndGet(), 50, timer);
+        AtomicInteger notified = new AtomicInteger();
+        provider.addListener(token -> notified.incrementAndGet());
+
+        provider.start();
+        assertThat(timer.size()).isEqualTo(1L);
+        provider.close();
+        Thread.sleep(1500);
+
+        assertThat(mints.get()).isEqualTo(1);
+        assertThat(notified.get()).isEqualTo(0);
+        assertThat(timer.size()).isEqualTo(0L);
+        timer.close();
+    }
+
+    private static JwtTokenProvider provider(
+            JwtTokenProvider.Minter minter, long maxRetryDelayMillis, HashedWheelTimer timer) {
+        return new JwtTokenProvider(
+                minter,
+                TOKEN_EXP_MINS,
+                REFRESH_MARGIN_SECS,
+                maxRetryDelayMillis,
+                Executors.newSingleThreadScheduledExecutor(),
+                true,
+                timer);
+    }
+}
@@ -0,0 +1,36 @@
+package com.alok.iot.mqtt.gcp.broker;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BridgeTopicTests {
+
+    @Test
+    void parsesCloudIotTopics() {
+        BridgeTopic events = BridgeTopic.parse("/devices/sensor-1/events/temperature");
+        assertThat(events.deviceId).isEqualTo("sensor-1");
+        assertThat(events.kind).isEqualTo(BridgeTopic.Kind.EVENTS);
+        assertThat(events.subfolder).isEqualTo("temperature");
+
+        assertThat(BridgeTopic.parse("/devices/sensor-1/state").subfolder).isNull();
+        assertThat(BridgeTopic.parse("/devices/sensor-1/state/extra")).isNull();
+        assertThat(BridgeTopic.parse("/devices/sensor-1/telemetry")).isNull();
+        assertThat(BridgeTopic.parse("/devices//events")).isNull();
+        assertThat(BridgeTopic.parse("devices/sensor-1/events")).isNull();
+    }
+
+    @Test
+    void commandFiltersMatchSubfolders() {
+        BridgeTopic all = BridgeTopic.parse("/devices/sensor-1/commands/#");
+        BridgeTopic bare = BridgeTopic.parse("/devices/sensor-1/commands");
+        BridgeTopic reboot = BridgeTopic.parse("/devices/sensor-1/commands/reboot");
+
+        assertThat(all.matches(reboot)).isTrue();
+        assertThat(all.matches(bare)).isTrue();
+        assertThat(bare.matches(reboot)).isFalse();
+        assertThat(all.matches(BridgeTopic.parse("/devices/sensor-2/commands/reboot"))).isFalse();
+        assertThat(all.hasWildcard()).isTrue();
+        assertThat(reboot.hasWildcard()).isFalse();
+    }
+}
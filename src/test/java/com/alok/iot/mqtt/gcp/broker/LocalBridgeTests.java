@@ -0,0 +1,273 @@
+package com.alok.iot.mqtt.gcp.broker;
+
+import com.alok.iot.mqtt.gcp.gateway.GatewayError;
+import com.alok.iot.mqtt.gcp.utils.MqttUtils;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/** Drives a {@link LocalBridge} with real Paho clients over loopback TCP. */
+class LocalBridgeTests {
+    private static final String PROJECT_ID = "my-project";
+    private static final String CLOUD_REGION = "asia-east1";
+    private static final String REGISTRY_ID = "my-registry";
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long TEARDOWN_TIMEOUT_MILLIS = 100;
+
+    private static KeyPair deviceKeys;
+    private static KeyPair otherKeys;
+
+    private final DeviceRegistry registry = new DeviceRegistry(PROJECT_ID, CLOUD_REGION, REGISTRY_ID);
+    private final List<MqttAsyncClient> clients = new ArrayList<>();
+    private LocalBridge bridge;
+    private int port;
+
+    @BeforeAll
+    static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        deviceKeys = generator.generateKeyPair();
+        otherKeys = generator.generateKeyPair();
+    }
+
+    @BeforeEach
+    void setUp() {
+        registry.registerDevice("sensor-1", deviceKeys.getPublic());
+        registry.registerDevice("sensor-2", deviceKeys.getPublic());
+        registry.registerGateway("gateway-1", deviceKeys.getPublic());
+        registry.registerDevice("bound-1", deviceKeys.getPublic());
+        registry.registerDevice("unbound-1", deviceKeys.getPublic());
+        registry.bind("gateway-1", "bound-1");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (MqttAsyncClient client : clients) {
+            if (client.isConnected()) {
+                // A disconnect timeout of 0 would wait forever for the DISCONNECT to go out.
+                client.disconnectForcibly(0, TEARDOWN_TIMEOUT_MILLIS);
+            }
+            client.close();
+        }
+        if (bridge != null) {
+            bridge.close();
+        }
+    }
+
+    @Test
+    void acceptsADeviceWithAValidJwt() throws Exception {
+        start(BridgeQuotas.UNLIMITED, 0, 0);
+
+        MqttAsyncClient client = connect("sensor-1", validJwt());
+
+        assertThat(client.isConnected()).isTrue();
+        assertThat(bridge.isConnected("sensor-1")).isTrue();
+        assertThat(bridge.isConnected("sensor-2")).isFalse();
+    }
+
+    @Test
+    void rejectsJwtsCloudIotCoreWouldReject() throws Exception {
+        start(BridgeQuotas.UNLIMITED, 0, 0);
+        long hour = TimeUnit.HOURS.toMillis(1);
+
+        assertNotAuthorized(jwt(PROJECT_ID, hour, otherKeys.getPrivate()));
+        assertNotAuthorized(jwt("another-project", hour, deviceKeys.getPrivate()));
+        assertNotAuthorized(jwt(PROJECT_ID, TimeUnit.HOURS.toMillis(25), deviceKeys.getPrivate()));
+        assertThat(bridge.isConnected("sensor-1")).isFalse();
+    }
+
+    @Test
+    void disconnectsADevicePublishingToAnotherDevicesTopic() throws Exception {
+        start(BridgeQuotas.UNLIMITED, 0, 0);
+        MqttAsyncClient client = connect("sensor-1", validJwt());
+        CountDownLatch lost = onConnectionLost(client);
+
+        client.publish("/devices/sensor-2/events", bytes("reading"), 1, false);
+
+        assertThat(lost.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(bridge.isConnected("sensor-1")).isFalse();
+    }
+
+    @Test
+    void reportsAttachingAnUnboundDeviceOnTheErrorsTopic() throws Exception {
+        start(BridgeQuotas.UNLIMITED, 0, 0);
+        MqttAsyncClient gateway = connect("gateway-1", validJwt());
+        BlockingQueue<MqttMessage> errors = subscribe(gateway, "/devices/gateway-1/errors", 0);
+
+        gateway.publish("/devices/unbound-1/attach", bytes("{}"), 1, false).waitForCompletion(TIMEOUT_MILLIS);
+        gateway.publish("/devices/bound-1/attach", bytes("{}"), 1, false).waitForCompletion(TIMEOUT_MILLIS);
+
+        GatewayError error = GatewayError.parse(poll(errors).getPayload());
+        assertThat(error.getErrorType()).isEqualTo(GatewayError.ATTACHMENT_ERROR);
+        assertThat(error.getDeviceId()).isEqualTo("unbound-1");
+        assertThat(gateway.isConnected()).isTrue();
+        assertThat(bridge.isConnected("unbound-1")).isFalse();
+        assertThat(bridge.isConnected("bound-1")).isTrue();
+        assertThat(errors).isEmpty();
+    }
+
+    @Test
+    void enforcesQuotas() throws Exception {
+        start(new BridgeQuotas(100, 1, 1024, 1024), 0, 0);
+        MqttAsyncClient gateway = connect("gateway-1", validJwt());
+        BlockingQueue<MqttMessage> errors = subscribe(gateway, "/devices/gateway-1/errors", 0);
+        gateway.publish("/devices/bound-1/attach", bytes("{}"), 1, false).waitForCompletion(TIMEOUT_MILLIS);
+
+        // One state update per second: a bound device's second one is reported, not fatal.
+        gateway.publish("/devices/bound-1/state", bytes("on"), 1, false).waitForCompletion(TIMEOUT_MILLIS);
+        gateway.publish("/devices/bound-1/state", bytes("off"), 1, false).waitForCompletion(TIMEOUT_MILLIS);
+
+        GatewayError error = GatewayError.parse(poll(errors).getPayload());
+        assertThat(error.getErrorType()).isEqualTo(GatewayError.DEVICE_QUOTA_EXCEEDED);
+        assertThat(error.getDeviceId()).isEqualTo("bound-1");
+        assertThat(new String(bridge.getState("bound-1"), StandardCharsets.UTF_8)).isEqualTo("on");
+        assertThat(gateway.isConnected()).isTrue();
+
+        // A device breaking a quota itself is disconnected.
+        MqttAsyncClient device = connect("sensor-1", validJwt());
+        CountDownLatch lost = onConnectionLost(device);
+        device.publish("/devices/sensor-1/events", new byte[2048], 1, false);
+        assertThat(lost.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+    }
+
+    @Test
+    void sendsTheLatestConfigOnSubscribeAtTheGrantedQos() throws Exception {
+        start(BridgeQuotas.UNLIMITED, 0, 0);
+        bridge.setConfig("sensor-1", bytes("config-1"));
+        bridge.setConfig("sensor-2", bytes("config-2"));
+        MqttAsyncClient first = connect("sensor-1", validJwt());
+        MqttAsyncClient second = connect("sensor-2", validJwt());
+
+        MqttMessage atLeastOnce = poll(subscribe(first, "/devices/sensor-1/config", 1));
+        MqttMessage atMostOnce = poll(subscribe(second, "/devices/sensor-2/config", 0));
+
+        assertThat(new String(atLeastOnce.getPayload(), StandardCharsets.UTF_8)).isEqualTo("config-1");
+        assertThat(atLeastOnce.getQos()).isEqualTo(1);
+        assertThat(new String(atMostOnce.getPayload(), StandardCharsets.UTF_8)).isEqualTo("config-2");
+        assertThat(atMostOnce.getQos()).isEqualTo(0);
+    }
+
+    @Test
+    void injectedLatencyKeepsEachConnectionsPacketsInOrder() throws Exception {
+        start(BridgeQuotas.UNLIMITED, 20, 30);
+        MqttAsyncClient client = connect("sensor-1", validJwt());
+        BlockingQueue<MqttMessage> commands = subscribe(client, "/devices/sensor-1/commands/#", 1);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            assertThat(bridge.sendCommand("sensor-1", "reboot", bytes(Integer.toString(i)))).isTrue();
+        }
+        List<String> received = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            received.add(new String(poll(commands).getPayload(), StandardCharsets.UTF_8));
+        }
+
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+        for (int i = 0; i < 50; i++) {
+            assertThat(received.get(i)).isEqualTo(Integer.toString(i));
+        }
+    }
+
+    private void start(BridgeQuotas quotas, long latencyMillis, long jitterMillis) throws Exception {
+        bridge = new LocalBridge(registry, quotas, latencyMillis, jitterMillis);
+        port = bridge.start(0);
+    }
+
+    private MqttAsyncClient connect(String deviceId, String jwt) throws MqttException {
+        MqttAsyncClient client = newClient(deviceId);
+        client.connect(MqttUtils.connectOptions(jwt.toCharArray())).waitForCompletion(TIMEOUT_MILLIS);
+        return client;
+    }
+
+    private MqttAsyncClient newClient(String deviceId) throws MqttException {
+        MqttAsyncClient client =
+                new MqttAsyncClient(
+                        MqttUtils.serverAddress("localhost", port, false),
+                        MqttUtils.clientId(PROJECT_ID, CLOUD_REGION, REGISTRY_ID, deviceId),
+                        new MemoryPersistence());
+        clients.add(client);
+        return client;
+    }
+
+    private void assertNotAuthorized(String jwt) throws MqttException {
+        MqttAsyncClient client = newClient("sensor-1");
+        assertThatThrownBy(() -> client.connect(MqttUtils.connectOptions(jwt.toCharArray()))
+                .waitForCompletion(TIMEOUT_MILLIS))
+                .isInstanceOf(MqttException.class)
+                .matches(e -> ((MqttException) e).getReasonCode() == MqttException.REASON_CODE_NOT_AUTHORIZED);
+    }
+
+    private static BlockingQueue<MqttMessage> subscribe(MqttAsyncClient client, String topicFilter, int qos)
+            throws MqttException {
+        BlockingQueue<MqttMessage> received = new LinkedBlockingQueue<>();
+        client.subscribe(topicFilter, qos, (topic, message) -> received.add(message)).waitForCompletion(TIMEOUT_MILLIS);
+        return received;
+    }
+
+    private static CountDownLatch onConnectionLost(MqttAsyncClient client) {
+        CountDownLatch lost = new CountDownLatch(1);
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                lost.countDown();
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        return lost;
+    }
+
+    private static MqttMessage poll(BlockingQueue<MqttMessage> messages) throws InterruptedException {
+        MqttMessage message = messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertThat(message).isNotNull();
+        return message;
+    }
+
+    private static String validJwt() {
+        return jwt(PROJECT_ID, TimeUnit.HOURS.toMillis(1), deviceKeys.getPrivate());
+    }
+
+    private static String jwt(String audience, long lifetimeMillis, PrivateKey key) {
+        long now = System.currentTimeMillis();
+        return Jwts.builder()
+                .setIssuedAt(new Date(now))
+                .setExpiration(new Date(now + lifetimeMillis))
+                .setAudience(audience)
+                .signWith(SignatureAlgorithm.RS256, key)
+                .compact();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,79 @@
+package com.alok.iot.mqtt.gcp.config;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConfigStoreTests {
+    @TempDir
+    Path storeDir;
+
+    @Test
+    void runsTheHandlerOnlyWhenTheConfigChanges() throws Exception {
+        List<String> applied = new ArrayList<>();
+        ConfigStore.ConfigHandler handler =
+                (deviceId, version, payload) -> applied.add(deviceId + "@" + version + "=" + text(payload));
+        ConfigStore store = ConfigStore.inMemory();
+
+        store.offer("d1", ConfigStore.UNKNOWN_VERSION, bytes("a"), handler);
+        store.offer("d1", ConfigStore.UNKNOWN_VERSION, bytes("a"), handler);
+        store.offer("d2", ConfigStore.UNKNOWN_VERSION, bytes("a"), handler);
+        store.offer("d1", ConfigStore.UNKNOWN_VERSION, bytes("b"), handler);
+        store.offer("d1", 7, bytes("c"), handler);
+        store.offer("d1", 6, bytes("d"), handler);
+
+        assertThat(applied).containsExactly("d1@1=a", "d2@1=a", "d1@2=b", "d1@7=c");
+        assertThat(store.getDuplicates()).isEqualTo(1L);
+        assertThat(store.getStale()).isEqualTo(1L);
+    }
+
+    @Test
+    void doesNotRecordAConfigWhoseHandlerFailed() throws Exception {
+        ConfigStore store = ConfigStore.inMemory();
+        try {
+            store.offer("d1", ConfigStore.UNKNOWN_VERSION, bytes("a"), (deviceId, version, payload) -> {
+                throw new IllegalStateException("not applied");
+            });
+        } catch (IllegalStateException expected) {
+            // The config should be offered again.
+        }
+
+        assertThat(store.offer("d1", ConfigStore.UNKNOWN_VERSION, bytes("a"), (deviceId, version, payload) -> { }))
+                .isTrue();
+    }
+
+    @Test
+    void skipsAppliedConfigsAfterAReopen() throws Exception {
+        Path file = storeDir.resolve("configs.log");
+        ConfigStore store = ConfigStore.open(file);
+        for (int i = 0; i < 3000; i++) {
+            store.offer("d" + (i % 10), ConfigStore.UNKNOWN_VERSION, bytes("config-" + i), (d, v, p) -> { });
+        }
+        store.close();
+
+        List<String> applied = new ArrayList<>();
+        ConfigStore reopened = ConfigStore.open(file);
+        for (int i = 2990; i < 3000; i++) {
+            reopened.offer("d" + (i % 10), ConfigStore.UNKNOWN_VERSION, bytes("config-" + i),
+                    (deviceId, version, payload) -> applied.add(deviceId));
+        }
+        assertThat(applied).isEmpty();
+        assertThat(reopened.size()).isEqualTo(10);
+        assertThat(reopened.getAppliedVersion("d3")).isEqualTo(300L);
+        reopened.close();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] payload) {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
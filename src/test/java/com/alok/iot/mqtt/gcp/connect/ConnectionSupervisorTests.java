@@ -0,0 +1,154 @@
+package com.alok.iot.mqtt.gcp.connect;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ConnectionSupervisorTests {
+    private static final ReconnectPolicy FAST = new ReconnectPolicy(20, 50, 2, 60000);
+
+    private final IMqttAsyncClient client = mock(IMqttAsyncClient.class);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "test-shard");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** The listener of every connect attempt, with the thread it was made on, until the test answers it. */
+    private final BlockingQueue<IMqttActionListener> attempts = new LinkedBlockingQueue<>();
+    private final List<String> attemptThreads = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(client.getClientId()).thenReturn("sensor-1");
+        when(client.connect(any(MqttConnectOptions.class), any(), any(IMqttActionListener.class)))
+                .thenAnswer(invocation -> {
+                    attemptThreads.add(Thread.currentThread().getName());
+                    attempts.add(invocation.getArgument(2));
+                    return null;
+                });
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void reconnectsOnTheSchedulerAfterTheConnectionIsLost() throws Exception {
+        ConnectionSupervisor supervisor = new ConnectionSupervisor(client, MqttConnectOptions::new, FAST, scheduler);
+        MqttCallback callback = installedCallback();
+        MqttCallback application = mock(MqttCallback.class);
+        supervisor.setCallback(application);
+        CountDownLatch recovered = new CountDownLatch(2);
+        supervisor.addRecoveryAction(connected -> {
+            recovered.countDown();
+            return CompletableFuture.completedFuture(null);
+        });
+        CompletableFuture<Void> connected = supervisor.connect();
+        nextAttempt().onSuccess(null);
+        connected.get(5, TimeUnit.SECONDS);
+
+        MqttException lost = new MqttException(MqttException.REASON_CODE_CONNECTION_LOST);
+        callback.connectionLost(lost);
+        nextAttempt().onFailure(null, new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR));
+        nextAttempt().onSuccess(null);
+
+        assertThat(recovered.await(5, TimeUnit.SECONDS)).isTrue();
+        ReconnectStats stats = supervisor.getStats();
+        // The cycle is recorded once the recovery actions have finished.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (stats.getReconnects() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        verify(application).connectionLost(lost);
+        // Reconnects are scheduled, never made on the Paho thread that reported the loss.
+        assertThat(attemptThreads).containsOnly("test-shard");
+        assertThat(stats.getAttempts()).isEqualTo(3L);
+        assertThat(stats.getFailedAttempts()).isEqualTo(1L);
+        // Connects count the first connect as well as the reconnect.
+        assertThat(stats.getConnects()).isEqualTo(2L);
+        assertThat(stats.getReconnects()).isEqualTo(1L);
+        supervisor.close();
+    }
+
+    @Test
+    void givesUpOnAFailureThatIsNotRetryable() throws Exception {
+        ConnectionSupervisor supervisor = new ConnectionSupervisor(client, MqttConnectOptions::new, FAST, scheduler);
+        CompletableFuture<Void> connected = supervisor.connect();
+        nextAttempt().onFailure(null, new MqttException(MqttException.REASON_CODE_FAILED_AUTHENTICATION));
+
+        assertThatThrownBy(() -> connected.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(MqttException.class);
+        Thread.sleep(200);
+        assertThat(attempts).isEmpty();
+        assertThat(supervisor.getStats().getGiveUps()).isEqualTo(1L);
+        supervisor.close();
+    }
+
+    @Test
+    void chainsRecoveryActionsWithoutBlockingTheScheduler() throws Exception {
+        ConnectionSupervisor supervisor = new ConnectionSupervisor(client, MqttConnectOptions::new, FAST, scheduler);
+        CompletableFuture<Void> firstDone = new CompletableFuture<>();
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        List<String> recovered = new CopyOnWriteArrayList<>();
+        supervisor.addRecoveryAction(connected -> {
+            recovered.add("first");
+            firstStarted.countDown();
+            return firstDone;
+        });
+        supervisor.addRecoveryAction(connected -> {
+            recovered.add("second");
+            return CompletableFuture.completedFuture(null);
+        });
+        CompletableFuture<Void> connected = supervisor.connect();
+        nextAttempt().onSuccess(null);
+
+        assertThat(firstStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        scheduler.submit(() -> { }).get(5, TimeUnit.SECONDS);
+        assertThat(connected.isDone()).isFalse();
+        assertThat(recovered).containsExactly("first");
+
+        // A failed action is logged, and the ones after it still run.
+        firstDone.completeExceptionally(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+        connected.get(5, TimeUnit.SECONDS);
+        assertThat(recovered).containsExactly("first", "second");
+        supervisor.close();
+    }
+
+    private MqttCallback installedCallback() {
+        ArgumentCaptor<MqttCallback> callback = ArgumentCaptor.forClass(MqttCallback.class);
+        verify(client).setCallback(callback.capture());
+        return callback.getValue();
+    }
+
+    private IMqttActionListener nextAttempt() throws InterruptedException {
+        IMqttActionListener attempt = attempts.poll(5, TimeUnit.SECONDS);
+        assertThat(attempt).isNotNull();
+        return attempt;
+    }
+}
@@ -0,0 +1,54 @@
+package com.alok.iot.mqtt.gcp.connect;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ReconnectPolicyTests {
+
+    @Test
+    void delaysStayWithinTheFullJitterCeiling() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 2, 60000);
+        for (int attempt = 0; attempt < 8; attempt++) {
+            long ceiling = Math.min(1000, 100L << attempt);
+            long highest = 0;
+            for (int i = 0; i < 2000; i++) {
+                long delay = policy.delayMillis(attempt);
+                assertThat(delay).isBetween(0L, ceiling);
+                highest = Math.max(highest, delay);
+            }
+            // Spread over the whole interval, not bunched at its start.
+            assertThat(highest).isGreaterThan(ceiling / 2);
+        }
+    }
+
+    @Test
+    void retriesOnlyTransientFailures() {
+        ReconnectPolicy policy = ReconnectPolicy.DEFAULT;
+
+        assertThat(policy.isRetryable(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST))).isTrue();
+        assertThat(policy.isRetryable(new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR))).isTrue();
+        assertThat(policy.isRetryable(new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT))).isTrue();
+        assertThat(policy.isRetryable(new MqttException(MqttException.REASON_CODE_BROKER_UNAVAILABLE))).isTrue();
+        assertThat(policy.isRetryable(new MqttException(MqttException.REASON_CODE_CONNECT_IN_PROGRESS))).isTrue();
+        assertThat(policy.isRetryable(new MqttException(MqttException.REASON_CODE_FAILED_AUTHENTICATION))).isFalse();
+        assertThat(policy.isRetryable(new MqttException(MqttException.REASON_CODE_NOT_AUTHORIZED))).isFalse();
+        assertThat(policy.isRetryable(new MqttException(MqttException.REASON_CODE_INVALID_CLIENT_ID))).isFalse();
+        assertThat(policy.isRetryable(new IOException("bad key file"))).isFalse();
+    }
+
+    @Test
+    void rejectsInvalidLimits() {
+        assertThatThrownBy(() -> new ReconnectPolicy(0, 1000, 2, 60000))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("initialDelayMillis=0");
+        assertThatThrownBy(() -> new ReconnectPolicy(100, 50, 2, 60000))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new ReconnectPolicy(100, 1000, 0.5, 60000))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,115 @@
+package com.alok.iot.mqtt.gcp.gateway;
+
+import com.alok.iot.mqtt.gcp.publish.AsyncPublisher;
+import com.alok.iot.mqtt.gcp.publish.RecordingPublisher;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.alok.iot.mqtt.gcp.publish.RecordingPublisher.READING;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AttachmentManagerTests {
+    private final RecordingPublisher recorder = new RecordingPublisher();
+
+    @Test
+    void attachesOnFirstPublishAndEvictsTheLeastRecentlyUsed() {
+        AttachmentManager manager = new AttachmentManager(recorder, "gw", 2, 60000L);
+
+        manager.publish("/devices/a/events", READING, 1);
+        manager.publish("/devices/a/events", READING, 1);
+        manager.publish("/devices/b/events", READING, 1);
+        manager.publish("/devices/a/state", READING, 1);
+        manager.publish("/devices/c/events", READING, 1);
+        manager.publish("/devices/gw/state", READING, 1);
+
+        assertThat(recorder.sent()).containsExactly(
+                "/devices/a/attach", "/devices/a/events", "/devices/a/events",
+                "/devices/b/attach", "/devices/b/events",
+                "/devices/a/state",
+                "/devices/c/attach", "/devices/b/detach", "/devices/c/events",
+                "/devices/gw/state");
+        assertThat(manager.getEvictions()).isEqualTo(1L);
+        manager.close();
+    }
+
+    @Test
+    void detachesIdleDevices() throws Exception {
+        AttachmentManager manager = new AttachmentManager(recorder, "gw", 10, 50L);
+        manager.publish("/devices/a/events", READING, 1);
+        DeviceTopics topics = DeviceTopics.of("a");
+        Thread.sleep(100);
+        manager.publish("/devices/b/events", READING, 1);
+
+        manager.detachIdle();
+
+        assertThat(manager.isAttached("a")).isFalse();
+        assertThat(manager.isAttached("b")).isTrue();
+        assertThat(recorder.sent()).contains("/devices/a/detach");
+        // A detached device's topics are evicted from the table.
+        assertThat(DeviceTopics.of("a")).isNotSameAs(topics);
+        manager.close();
+    }
+
+    @Test
+    void attachesAgainAfterARefusal() {
+        AttachmentManager manager = new AttachmentManager(recorder, "gw", 10, 60000L);
+        manager.publish("/devices/a/events", READING, 1);
+
+        manager.onError(new GatewayError(GatewayError.ATTACHMENT_ERROR, "a", "Device is not bound", 0));
+        manager.publish("/devices/a/events", READING, 1);
+
+        assertThat(manager.getAttaches()).isEqualTo(2L);
+        assertThat(manager.getRefusals()).isEqualTo(1L);
+        manager.close();
+    }
+
+    @Test
+    void staysWithinTheClientsInflightLimitBehindAnAsyncPublisher() throws Exception {
+        int maxInflight = 10;
+        AtomicInteger inflight = new AtomicInteger();
+        ScheduledExecutorService broker = Executors.newSingleThreadScheduledExecutor();
+        // Like Paho, the client refuses a publish once maxInflight are unacknowledged.
+        IMqttAsyncClient client = mock(IMqttAsyncClient.class);
+        when(client.publish(anyString(), any(MqttMessage.class), any(), any(IMqttActionListener.class)))
+                .thenAnswer(invocation -> {
+                    if (inflight.incrementAndGet() > maxInflight) {
+                        inflight.decrementAndGet();
+                        throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+                    }
+                    IMqttActionListener listener = invocation.getArgument(3);
+                    broker.schedule(() -> {
+                        inflight.decrementAndGet();
+                        listener.onSuccess(null);
+                    }, 1, TimeUnit.MILLISECONDS);
+                    return null;
+                });
+        AttachmentManager manager = new AttachmentManager(new AsyncPublisher(client, maxInflight), "gw", 100, 60000L);
+        DeviceCircuitBreakers breakers = new DeviceCircuitBreakers(manager);
+
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (int i = 0; i < 10 * maxInflight; i++) {
+            sent.add(breakers.publish(DeviceTopics.of("device-" + i % 20).events(), READING, 1));
+        }
+
+        CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        assertThat(manager.size()).isEqualTo(20);
+        manager.close();
+        broker.shutdown();
+    }
+}
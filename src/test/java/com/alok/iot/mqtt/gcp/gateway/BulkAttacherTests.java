@@ -0,0 +1,64 @@
+package com.alok.iot.mqtt.gcp.gateway;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BulkAttacherTests {
+
+    @Test
+    void pipelinesAttachesWithinTheWindowAndReportsRefusals() throws Exception {
+        ScheduledExecutorService bridge = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicReference<BulkAttacher> attacher = new AtomicReference<>();
+        attacher.set(new BulkAttacher((topic, payload, qos) -> {
+            CompletableFuture<Void> ack = new CompletableFuture<>();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            bridge.schedule(() -> {
+                if (topic.equals("/devices/d-13/attach")) {
+                    attacher.get().onError(
+                            new GatewayError(GatewayError.DEVICE_NOT_FOUND, "d-13", "Device not found", 0));
+                }
+                inFlight.decrementAndGet();
+                ack.complete(null);
+            }, 1, TimeUnit.MILLISECONDS);
+            return ack;
+        }, 8, 50L));
+
+        List<String> devices = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            devices.add("d-" + i);
+        }
+        BulkReport report = attacher.get().attachAll(devices, 10000L);
+        bridge.shutdown();
+
+        assertThat(report.getDevices()).isEqualTo(200);
+        assertThat(report.getSucceeded()).isEqualTo(199);
+        assertThat(report.getFailures()).containsOnlyKeys("d-13");
+        assertThat(report.getFailures().get("d-13")).startsWith(GatewayError.DEVICE_NOT_FOUND);
+        assertThat(maxInFlight.get()).isBetween(2, 8);
+    }
+
+    @Test
+    void reportsDevicesThatWereNeverAcknowledged() throws Exception {
+        BulkAttacher attacher = new BulkAttacher((topic, payload, qos) -> topic.contains("d-1")
+                ? new CompletableFuture<>()
+                : CompletableFuture.completedFuture(null), 4, 0L);
+
+        BulkReport report = attacher.attachAll(Arrays.asList("d-0", "d-1", "d-2"), 100L);
+
+        assertThat(report.getFailures()).containsOnlyKeys("d-1");
+        assertThat(report.getFailures().get("d-1")).contains("not acknowledged");
+    }
+}
@@ -0,0 +1,71 @@
+package com.alok.iot.mqtt.gcp.gateway;
+
+import com.alok.iot.mqtt.gcp.publish.RecordingPublisher;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.alok.iot.mqtt.gcp.publish.RecordingPublisher.READING;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeviceCircuitBreakersTests {
+    private final RecordingPublisher recorder = new RecordingPublisher();
+
+    @Test
+    void pausesOnlyTheDeviceTheErrorIsAbout() {
+        DeviceCircuitBreakers breakers = new DeviceCircuitBreakers(recorder, 60000L, 60000L, 60000L);
+        breakers.onError(new GatewayError(GatewayError.DEVICE_QUOTA_EXCEEDED, "a", "too fast", 7));
+
+        CompletableFuture<Void> paused = breakers.publish("/devices/a/events", READING, 1);
+        breakers.publish("/devices/b/events", READING, 1);
+
+        assertThat(paused.handle((ignored, e) -> e).join()).isInstanceOf(DevicePausedException.class);
+        assertThat(recorder.sent()).containsExactly("/devices/b/events");
+        assertThat(breakers.isOpen("a")).isTrue();
+        assertThat(breakers.isOpen("b")).isFalse();
+        assertThat(breakers.getPaused()).isEqualTo(1L);
+    }
+
+    @Test
+    void letsTheDeviceThroughOnceThePauseIsOver() throws Exception {
+        DeviceCircuitBreakers breakers = new DeviceCircuitBreakers(recorder, 20L, 20L, 10L);
+        breakers.onError(new GatewayError(GatewayError.ATTACHMENT_ERROR, "a", "not bound", 0));
+        Thread.sleep(50);
+
+        breakers.publish("/devices/a/events", READING, 1).join();
+
+        assertThat(recorder.sent()).containsExactly("/devices/a/events");
+        assertThat(breakers.size()).isEqualTo(0);
+    }
+
+    @Test
+    void keepsEveryErrorThatRacesAPublish() throws Exception {
+        DeviceCircuitBreakers breakers = new DeviceCircuitBreakers(recorder, 60000L, 60000L, 60000L);
+        for (int i = 0; i < 200; i++) {
+            String deviceId = "device-" + i;
+            Thread tripper = new Thread(
+                    () -> breakers.onError(new GatewayError(GatewayError.ATTACHMENT_ERROR, deviceId, "not bound", 0)));
+            tripper.start();
+            for (int j = 0; j < 50; j++) {
+                breakers.publish("/devices/" + deviceId + "/events", READING, 1);
+            }
+            tripper.join();
+
+            // A publish that saw the breaker being tracked must not have taken it for a quiet one and dropped it.
+            assertThat(breakers.isOpen(deviceId)).isTrue();
+        }
+
+        assertThat(breakers.size()).isEqualTo(200);
+    }
+
+    @Test
+    void ignoresErrorsAboutNoDevice() {
+        DeviceCircuitBreakers breakers = new DeviceCircuitBreakers(recorder);
+        breakers.onError(new GatewayError(GatewayError.INVALID_MQTT_TOPIC, null, "bad topic", 0));
+
+        breakers.publish("/devices/gw/state", READING, 1).join();
+
+        assertThat(breakers.getTrips()).isEqualTo(0L);
+        assertThat(recorder.sent()).containsExactly("/devices/gw/state");
+    }
+}
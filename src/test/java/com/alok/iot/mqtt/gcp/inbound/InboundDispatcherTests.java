@@ -0,0 +1,60 @@
+package com.alok.iot.mqtt.gcp.inbound;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InboundDispatcherTests {
+
+    @Test
+    void keepsEachDevicesMessagesInOrder() {
+        Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        InboundDispatcher dispatcher = new InboundDispatcher(4, 1000);
+        for (int i = 0; i < 200; i++) {
+            for (String device : new String[] {"a", "b", "c"}) {
+                MqttMessage message = new MqttMessage(Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+                dispatcher.dispatch("/devices/" + device + "/commands", message, (topic, m) -> received
+                        .computeIfAbsent(InboundDispatcher.partitionKey(topic),
+                                key -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(Integer.parseInt(new String(m.getPayload(), StandardCharsets.UTF_8))));
+            }
+        }
+        dispatcher.close();
+
+        assertThat(received).containsOnlyKeys("a", "b", "c");
+        for (List<Integer> sequence : received.values()) {
+            assertThat(sequence).hasSize(200).isSorted();
+        }
+    }
+
+    @Test
+    void dropsMessagesWhenAWorkerIsBackedUp() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        InboundDispatcher dispatcher = new InboundDispatcher(1, 1);
+        MqttMessage message = new MqttMessage(new byte[0]);
+
+        assertThat(dispatcher.dispatch("/devices/a/config", message, (topic, m) -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+        })).isTrue();
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(dispatcher.dispatch("/devices/a/config", message, (topic, m) -> { })).isTrue();
+        assertThat(dispatcher.dispatch("/devices/a/config", message, (topic, m) -> { })).isFalse();
+
+        release.countDown();
+        dispatcher.close();
+        assertThat(dispatcher.getDispatched()).isEqualTo(2);
+        assertThat(dispatcher.getRejected()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,40 @@
+package com.alok.iot.mqtt.gcp.inbound;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PayloadsTests {
+
+    @Test
+    void viewSharesThePayloadWithoutCopyingIt() {
+        MqttMessage message = new MqttMessage("reboot".getBytes(StandardCharsets.UTF_8));
+        // Paho copies the array it is given, so change the message's own payload.
+        byte[] bytes = message.getPayload();
+
+        ByteBuffer view = Payloads.view(message);
+        bytes[0] = 'R';
+
+        assertThat(view.isReadOnly()).isTrue();
+        assertThat(view.get(0)).isEqualTo((byte) 'R');
+        assertThat(view.remaining()).isEqualTo(bytes.length);
+    }
+
+    @Test
+    void decodingLeavesThePositionAlone() throws Exception {
+        ByteBuffer payload = ByteBuffer.wrap("{\"fan\":\"on\"}".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+        assertThat(Payloads.text(payload)).isEqualTo("{\"fan\":\"on\"}");
+        assertThat(String.valueOf(Payloads.lazyText(payload))).isEqualTo("{\"fan\":\"on\"}");
+        InputStream stream = Payloads.stream(payload);
+        byte[] read = new byte[32];
+        assertThat(stream.read(read, 0, read.length)).isEqualTo(12);
+        assertThat(stream.read()).isEqualTo(-1);
+        assertThat(payload.position()).isEqualTo(0);
+    }
+}
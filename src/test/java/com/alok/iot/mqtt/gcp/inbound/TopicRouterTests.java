@@ -0,0 +1,79 @@
+package com.alok.iot.mqtt.gcp.inbound;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TopicRouterTests {
+    private static final MqttMessage MESSAGE = new MqttMessage("{}".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    void routesToEveryMatchingFilter() throws Exception {
+        TopicRouter router = new TopicRouter();
+        List<String> calls = new ArrayList<>();
+        router.register("/devices/d1/config", recorder(calls, "d1-config"));
+        router.register("/devices/d1/commands/#", recorder(calls, "d1-commands"));
+        router.register("/devices/+/commands/#", recorder(calls, "any-commands"));
+        router.register("/devices/+/commands/reboot", recorder(calls, "any-reboot"));
+
+        assertThat(router.route("/devices/d1/commands/reboot", MESSAGE)).isEqualTo(3);
+        assertThat(calls).containsExactlyInAnyOrder("d1-commands", "any-commands", "any-reboot");
+
+        calls.clear();
+        assertThat(router.route("/devices/d2/commands", MESSAGE)).isEqualTo(1);
+        assertThat(calls).containsExactly("any-commands");
+
+        calls.clear();
+        assertThat(router.route("/devices/d2/config", MESSAGE)).isEqualTo(0);
+        assertThat(router.getUnrouted()).isEqualTo(1L);
+    }
+
+    @Test
+    void unregisteringRemovesOnlyThatHandler() throws Exception {
+        TopicRouter router = new TopicRouter();
+        List<String> calls = new ArrayList<>();
+        IMqttMessageListener first = recorder(calls, "first");
+        router.register("/devices/d1/commands/#", first);
+        router.register("/devices/d1/commands/#", recorder(calls, "second"));
+
+        assertThat(router.unregister("/devices/d1/commands/#", first)).isTrue();
+        assertThat(router.unregister("/devices/d1/commands/#", first)).isFalse();
+        router.route("/devices/d1/commands/a", MESSAGE);
+
+        assertThat(calls).containsExactly("second");
+        assertThat(router.size()).isEqualTo(1);
+    }
+
+    @Test
+    void routesAmongThousandsOfDevices() throws Exception {
+        TopicRouter router = new TopicRouter();
+        List<String> calls = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            router.register("/devices/d" + i + "/commands/#", recorder(calls, "d" + i));
+        }
+
+        router.route("/devices/d4321/commands/firmware/update", MESSAGE);
+
+        assertThat(calls).containsExactly("d4321");
+    }
+
+    @Test
+    void rejectsMisplacedWildcards() {
+        TopicRouter router = new TopicRouter();
+        assertThatThrownBy(() -> router.register("/devices/#/config", recorder(new ArrayList<>(), "x")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> router.register("/devices/d+/config", recorder(new ArrayList<>(), "x")))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static IMqttMessageListener recorder(List<String> calls, String name) {
+        return (topic, message) -> calls.add(name);
+    }
+}
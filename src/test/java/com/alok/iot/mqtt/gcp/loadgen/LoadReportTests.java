@@ -0,0 +1,50 @@
+package com.alok.iot.mqtt.gcp.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LoadReportTests {
+
+    @Test
+    void countsAcknowledgementsFromTheLatencies() {
+        Histogram latencies = new Histogram(60_000_000, 3);
+        for (int i = 1; i <= 100; i++) {
+            latencies.recordValue(i * 1000);
+        }
+        LoadReport report = new LoadReport(10, 9, 2000, 120, latencies, Collections.emptyMap());
+
+        assertThat(report.getSent()).isEqualTo(120L);
+        assertThat(report.getAcked()).isEqualTo(100L);
+        assertThat(report.getAckedPerSec()).isEqualTo(50.0);
+        assertThat(report.toString())
+                .startsWith("9/10 devices connected, 120 sent, 100 acked in 2.0s (50.0 msg/s), 0 errors")
+                .contains("PUBACK latency ms: p50=50.0 p90=90.0 p99=99.0");
+    }
+
+    @Test
+    void totalsErrorsAndListsThemInOrder() {
+        Map<String, Long> errors = new HashMap<>();
+        errors.put("connect:5", 2L);
+        errors.put("32104", 3L);
+        LoadReport report = new LoadReport(5, 3, 1000, 4, new Histogram(60_000_000, 3), errors);
+
+        assertThat(report.getErrorCount()).isEqualTo(5L);
+        assertThat(report.getErrors().keySet()).containsExactly("32104", "connect:5");
+        assertThat(report.toString())
+                .doesNotContain("PUBACK")
+                .endsWith(String.format("%n  32104: 3%n  connect:5: 2"));
+    }
+
+    @Test
+    void reportsNoRateForAnEmptyInterval() {
+        LoadReport report = new LoadReport(1, 0, 0, 0, new Histogram(60_000_000, 3), Collections.emptyMap());
+
+        assertThat(report.getAckedPerSec()).isEqualTo(0.0);
+    }
+}
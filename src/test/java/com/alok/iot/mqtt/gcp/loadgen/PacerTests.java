@@ -0,0 +1,81 @@
+package com.alok.iot.mqtt.gcp.loadgen;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PacerTests {
+    private static final long MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    void fallsDueOncePerIntervalAtTheRate() {
+        Pacer pacer = new Pacer(0, 0, MAX_DELAY_NANOS);
+
+        pacer.accrue(millis(50), 10);
+        assertThat(pacer.isDue()).isFalse();
+        assertThat(pacer.delayNanos(10)).isEqualTo(millis(50));
+
+        pacer.accrue(millis(100), 10);
+        assertThat(pacer.isDue()).isTrue();
+        assertThat(pacer.delayNanos(10)).isEqualTo(0L);
+        assertThat(pacer.take(millis(100), 10)).isEqualTo(millis(100));
+        assertThat(pacer.isDue()).isFalse();
+    }
+
+    @Test
+    void datesALateMessageFromWhenItFellDue() {
+        Pacer pacer = new Pacer(0, 0, MAX_DELAY_NANOS);
+
+        // The device did not run for 250 ms at 10 per second, so two messages are overdue.
+        pacer.accrue(millis(250), 10);
+
+        assertThat(pacer.take(millis(250), 10)).isEqualTo(millis(100));
+        assertThat(pacer.isDue()).isTrue();
+        assertThat(pacer.take(millis(250), 10)).isEqualTo(millis(200));
+        assertThat(pacer.isDue()).isFalse();
+        assertThat(pacer.delayNanos(10)).isEqualTo(millis(50));
+    }
+
+    @Test
+    void startsPartWayThroughTheFirstInterval() {
+        Pacer pacer = new Pacer(0, 0.75, MAX_DELAY_NANOS);
+
+        assertThat(pacer.delayNanos(10)).isEqualTo(millis(25));
+        pacer.accrue(millis(25), 10);
+        assertThat(pacer.take(millis(25), 10)).isEqualTo(millis(25));
+    }
+
+    @Test
+    void capsTheDelaySoARisingRateIsSeenPromptly() {
+        Pacer pacer = new Pacer(0, 0, MAX_DELAY_NANOS);
+
+        assertThat(pacer.delayNanos(0.1)).isEqualTo(MAX_DELAY_NANOS);
+        assertThat(pacer.delayNanos(0)).isEqualTo(MAX_DELAY_NANOS);
+        pacer.accrue(millis(100), 0);
+        assertThat(pacer.isDue()).isFalse();
+    }
+
+    @Test
+    void sendsTheRateOverTimeWhenTickedAtItsDelays() {
+        Pacer pacer = new Pacer(0, 0.5, MAX_DELAY_NANOS);
+        long now = 0;
+        int sent = 0;
+        while (now < TimeUnit.SECONDS.toNanos(10)) {
+            pacer.accrue(now, 250);
+            if (pacer.isDue()) {
+                pacer.take(now, 250);
+                sent++;
+            }
+            // A tick never runs early, and here it also runs up to a millisecond late.
+            now += pacer.delayNanos(250) + (sent % 2 == 0 ? 0 : millis(1));
+        }
+
+        assertThat(sent).isBetween(2499, 2501);
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
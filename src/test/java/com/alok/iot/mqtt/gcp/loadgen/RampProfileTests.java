@@ -0,0 +1,26 @@
+package com.alok.iot.mqtt.gcp.loadgen;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RampProfileTests {
+
+    @Test
+    void rampsUpOverTheRampPeriod() {
+        assertThat(RampProfile.CONSTANT.fraction(0, 10_000)).isEqualTo(1.0);
+        assertThat(RampProfile.LINEAR.fraction(0, 10_000)).isEqualTo(0.0);
+        assertThat(RampProfile.LINEAR.fraction(2_500, 10_000)).isEqualTo(0.25);
+        assertThat(RampProfile.STEP.fraction(0, 10_000)).isEqualTo(0.25);
+        assertThat(RampProfile.STEP.fraction(5_000, 10_000)).isEqualTo(0.75);
+        assertThat(RampProfile.STEP.fraction(20_000, 10_000)).isEqualTo(1.0);
+        assertThat(RampProfile.LINEAR.fraction(0, 0)).isEqualTo(1.0);
+    }
+
+    @Test
+    void parsesNamesIgnoringCase() {
+        assertThat(RampProfile.forName("Linear")).isEqualTo(RampProfile.LINEAR);
+        assertThatThrownBy(() -> RampProfile.forName("sine")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
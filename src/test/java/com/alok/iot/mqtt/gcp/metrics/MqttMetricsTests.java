@@ -0,0 +1,106 @@
+package com.alok.iot.mqtt.gcp.metrics;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MqttMetricsTests {
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    void setUp() {
+        Metrics.addRegistry(registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Metrics.removeRegistry(registry);
+        registry.close();
+    }
+
+    @Test
+    void recordsAcknowledgedPublishes() {
+        double inFlight = gauge(MqttMetrics.PUBLISH_IN_FLIGHT);
+        MqttMetrics.publishing();
+        assertThat(gauge(MqttMetrics.PUBLISH_IN_FLIGHT)).isEqualTo(inFlight + 1);
+
+        MqttMetrics.published(100, TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertThat(gauge(MqttMetrics.PUBLISH_IN_FLIGHT)).isEqualTo(inFlight);
+        assertThat(registry.get(MqttMetrics.PUBLISH_MESSAGES).counter().count()).isEqualTo(1.0);
+        assertThat(registry.get(MqttMetrics.PUBLISH_BYTES).counter().count()).isEqualTo(100.0);
+        assertThat(registry.get(MqttMetrics.PUBLISH_ACK).timer().count()).isEqualTo(1L);
+        assertThat(registry.get(MqttMetrics.PUBLISH_ACK).timer().totalTime(TimeUnit.MILLISECONDS)).isEqualTo(5.0);
+    }
+
+    @Test
+    void countsFailedPublishesByReason() {
+        double inFlight = gauge(MqttMetrics.PUBLISH_IN_FLIGHT);
+        MqttMetrics.publishing();
+        MqttMetrics.publishFailed(
+                new CompletionException(new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED)), true);
+        MqttMetrics.publishFailed(new IOException("payload too large"), false);
+        MqttMetrics.publishFailed(new IOException("payload too large"), false);
+
+        assertThat(gauge(MqttMetrics.PUBLISH_IN_FLIGHT)).isEqualTo(inFlight);
+        assertThat(registry.get(MqttMetrics.PUBLISH_FAILURES).tag("reason", "32104").counter().count())
+                .isEqualTo(1.0);
+        assertThat(registry.get(MqttMetrics.PUBLISH_FAILURES).tag("reason", "IOException").counter().count())
+                .isEqualTo(2.0);
+    }
+
+    @Test
+    void recordsConnectOutcomesAndReconnects() {
+        MqttMetrics.connected(TimeUnit.MILLISECONDS.toNanos(40));
+        MqttMetrics.connectFailed(TimeUnit.MILLISECONDS.toNanos(10));
+        MqttMetrics.connectFailed(TimeUnit.MILLISECONDS.toNanos(10));
+        MqttMetrics.reconnected(250);
+
+        assertThat(registry.get(MqttMetrics.CONNECT).tag("outcome", "success").timer().count()).isEqualTo(1L);
+        assertThat(registry.get(MqttMetrics.CONNECT).tag("outcome", "failure").timer().count()).isEqualTo(2L);
+        assertThat(registry.get(MqttMetrics.RECONNECTS).counter().count()).isEqualTo(1.0);
+        assertThat(registry.get(MqttMetrics.RECONNECT_LATENCY).timer().totalTime(TimeUnit.MILLISECONDS))
+                .isEqualTo(250.0);
+    }
+
+    @Test
+    void recordsInboundMessages() {
+        double queued = gauge(MqttMetrics.INBOUND_QUEUED);
+        MqttMetrics.messageHandled(42, TimeUnit.MICROSECONDS.toNanos(300));
+        MqttMetrics.inboundQueued();
+        MqttMetrics.inboundQueued();
+        assertThat(gauge(MqttMetrics.INBOUND_QUEUED)).isEqualTo(queued + 2);
+
+        MqttMetrics.inboundHandled(TimeUnit.MILLISECONDS.toNanos(2), TimeUnit.MILLISECONDS.toNanos(3));
+        MqttMetrics.inboundRejected();
+
+        assertThat(gauge(MqttMetrics.INBOUND_QUEUED)).isEqualTo(queued);
+        assertThat(registry.get(MqttMetrics.RECEIVED_MESSAGES).counter().count()).isEqualTo(1.0);
+        assertThat(registry.get(MqttMetrics.RECEIVED_BYTES).counter().count()).isEqualTo(42.0);
+        assertThat(registry.get(MqttMetrics.CALLBACK).timer().count()).isEqualTo(1L);
+        assertThat(registry.get(MqttMetrics.INBOUND_WAIT).timer().totalTime(TimeUnit.MILLISECONDS)).isEqualTo(2.0);
+        assertThat(registry.get(MqttMetrics.INBOUND_HANDLER).timer().totalTime(TimeUnit.MILLISECONDS))
+                .isEqualTo(3.0);
+        assertThat(registry.get(MqttMetrics.INBOUND_REJECTED).counter().count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void reasonIsTheReasonCodeOrTheExceptionType() {
+        assertThat(MqttMetrics.reason(new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT))).isEqualTo("32202");
+        assertThat(MqttMetrics.reason(new CompletionException(new IllegalStateException())))
+                .isEqualTo("IllegalStateException");
+    }
+
+    private double gauge(String name) {
+        return registry.get(name).gauge().value();
+    }
+}
@@ -0,0 +1,78 @@
+package com.alok.iot.mqtt.gcp.persist;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MappedOutboxPersistenceTests {
+    private static final String CLIENT_ID = "projects/p/locations/l/registries/r/devices/d";
+    private static final String SERVER_URI = "ssl://mqtt.googleapis.com:8883";
+
+    @TempDir
+    Path outboxDir;
+
+    @Test
+    void recoversExactlyTheUnremovedMessages() throws Exception {
+        MappedOutboxPersistence outbox = new MappedOutboxPersistence(outboxDir.toString());
+        outbox.open(CLIENT_ID, SERVER_URI);
+        for (int i = 1; i <= 100; i++) {
+            outbox.put("s-" + i, data("header-" + i, "payload-" + i));
+        }
+        for (int i = 1; i <= 100; i += 2) {
+            outbox.remove("s-" + i);
+        }
+        outbox.close();
+
+        MappedOutboxPersistence reopened = new MappedOutboxPersistence(outboxDir.toString());
+        reopened.open(CLIENT_ID, SERVER_URI);
+        assertThat(reopened.size()).isEqualTo(50);
+        assertThat(reopened.containsKey("s-1")).isFalse();
+        MqttPersistable restored = reopened.get("s-42");
+        assertThat(text(restored.getHeaderBytes(), restored.getHeaderOffset(), restored.getHeaderLength()))
+                .isEqualTo("header-42");
+        assertThat(text(restored.getPayloadBytes(), restored.getPayloadOffset(), restored.getPayloadLength()))
+                .isEqualTo("payload-42");
+        reopened.close();
+    }
+
+    @Test
+    void compactsSegmentsOnceTheirMessagesAreAcknowledged() throws Exception {
+        MappedOutboxPersistence outbox = new MappedOutboxPersistence(outboxDir.toString(), 4096, 10L);
+        outbox.open(CLIENT_ID, SERVER_URI);
+        outbox.put("s-pinned", data("header", "still in flight"));
+        for (int i = 0; i < 2000; i++) {
+            outbox.put("s-" + i, data("header", "payload-" + i));
+            outbox.remove("s-" + i);
+        }
+        assertThat(outbox.segmentCount()).isLessThanOrEqualTo(2);
+        outbox.close();
+
+        MappedOutboxPersistence reopened = new MappedOutboxPersistence(outboxDir.toString(), 4096, 10L);
+        reopened.open(CLIENT_ID, SERVER_URI);
+        List<Object> keys = new ArrayList<>();
+        for (Enumeration<?> e = reopened.keys(); e.hasMoreElements(); ) {
+            keys.add(e.nextElement());
+        }
+        assertThat(keys).containsExactly("s-pinned");
+        reopened.close();
+    }
+
+    private static MqttPersistable data(String header, String payload) {
+        byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        return new MqttPersistentData("unused", headerBytes, 0, headerBytes.length, payloadBytes, 0, payloadBytes.length);
+    }
+
+    private static String text(byte[] bytes, int offset, int length) {
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,99 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AsyncPublisherTests {
+    private static final String TOPIC = "/devices/sensor-1/events";
+    private static final byte[] READING = {1, 2, 3};
+
+    /** The action listener of every publish the stub client was asked for, until acknowledged. */
+    private final List<IMqttActionListener> unacknowledged = new CopyOnWriteArrayList<>();
+    private final IMqttAsyncClient client = mock(IMqttAsyncClient.class);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(client.publish(anyString(), any(MqttMessage.class), any(), any(IMqttActionListener.class)))
+                .thenAnswer(invocation -> {
+                    unacknowledged.add(invocation.getArgument(3));
+                    return null;
+                });
+    }
+
+    @Test
+    void blocksPublishersWhileTheWindowIsFull() throws Exception {
+        AsyncPublisher publisher = new AsyncPublisher(client, 2);
+        CompletableFuture<Void> first = publisher.publish(TOPIC, READING, 1);
+        publisher.publish(TOPIC, READING, 1);
+        CompletableFuture<CompletableFuture<Void>> third =
+                CompletableFuture.supplyAsync(() -> publisher.publish(TOPIC, READING, 1));
+
+        Thread.sleep(100);
+        assertThat(third).isNotDone();
+        assertThat(publisher.inFlight()).isEqualTo(2);
+
+        unacknowledged.remove(0).onSuccess(null);
+        third.get(5, TimeUnit.SECONDS);
+        assertThat(first).isCompleted();
+        assertThat(unacknowledged).hasSize(2);
+        assertThat(publisher.inFlight()).isEqualTo(2);
+    }
+
+    @Test
+    void failsWithMaxInflightOnceTheAcquireTimeoutPasses() {
+        AsyncPublisher publisher = new AsyncPublisher(client, 1, 50);
+        publisher.publish(TOPIC, READING, 1);
+
+        Throwable e = publisher.publish(TOPIC, READING, 1).handle((ignored, failure) -> failure).join();
+
+        assertThat(e).isInstanceOf(MqttException.class);
+        assertThat(((MqttException) e).getReasonCode()).isEqualTo(MqttException.REASON_CODE_MAX_INFLIGHT);
+        assertThat(unacknowledged).hasSize(1);
+    }
+
+    @Test
+    void releasesThePermitOfAFailedPublish() throws Exception {
+        AsyncPublisher publisher = new AsyncPublisher(client, 1, 50);
+        CompletableFuture<Void> failed = publisher.publish(TOPIC, READING, 1);
+        unacknowledged.remove(0).onFailure(null, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+
+        assertThat(failed).isCompletedExceptionally();
+        assertThat(publisher.inFlight()).isEqualTo(0);
+
+        doThrow(new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED))
+                .when(client).publish(anyString(), any(MqttMessage.class), any(), any(IMqttActionListener.class));
+        assertThat(publisher.publish(TOPIC, READING, 1)).isCompletedExceptionally();
+        assertThat(publisher.inFlight()).isEqualTo(0);
+    }
+
+    @Test
+    void awaitDrainedWaitsForEveryAcknowledgement() throws Exception {
+        AsyncPublisher publisher = new AsyncPublisher(client, 4);
+        publisher.publish(TOPIC, READING, 1);
+        publisher.publish(TOPIC, READING, 1);
+
+        assertThat(publisher.awaitDrained(50, TimeUnit.MILLISECONDS)).isFalse();
+
+        for (IMqttActionListener listener : unacknowledged) {
+            listener.onSuccess(null);
+        }
+        assertThat(publisher.awaitDrained(50, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(publisher.inFlight()).isEqualTo(0);
+    }
+}
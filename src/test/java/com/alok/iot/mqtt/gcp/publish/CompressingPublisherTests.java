@@ -0,0 +1,79 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompressingPublisherTests {
+    private final List<byte[]> sent = new ArrayList<>();
+    private final MessagePublisher recorder = (topic, payload, qos) -> {
+        sent.add(payload);
+        return CompletableFuture.completedFuture(null);
+    };
+
+    @Test
+    void passesPayloadsUnderTheThresholdThroughUnchanged() {
+        CompressingPublisher compressor = new CompressingPublisher(recorder, PayloadCodec.forName("gzip"), 256);
+        byte[] small = repeat("21.5,", 50);
+
+        compressor.publish("/devices/sensor-1/events", small, 1);
+
+        assertThat(small.length).isLessThan(256);
+        assertThat(sent.get(0)).isSameAs(small);
+        assertThat(compressor.getSkipped()).isEqualTo(1L);
+        assertThat(compressor.getBytesOut()).isEqualTo(compressor.getBytesIn());
+    }
+
+    @Test
+    void compressesPayloadsAtOrAboveTheThreshold() throws IOException {
+        CompressingPublisher compressor = new CompressingPublisher(recorder, PayloadCodec.forName("gzip"), 256);
+        byte[] large = repeat("21.5,", 200);
+
+        compressor.publish("/devices/sensor-1/events", large, 1);
+
+        assertThat(sent.get(0).length).isLessThan(large.length);
+        assertThat(gunzip(sent.get(0))).isEqualTo(large);
+        assertThat(compressor.getSkipped()).isEqualTo(0L);
+        assertThat(compressor.getBytesIn()).isEqualTo((long) large.length);
+    }
+
+    @Test
+    void sendsPayloadsThatDoNotShrinkUncompressed() {
+        CompressingPublisher compressor = new CompressingPublisher(recorder, PayloadCodec.forName("deflate"), 0);
+        byte[] tiny = {42};
+
+        compressor.publish("/devices/sensor-1/events", tiny, 1);
+
+        assertThat(sent.get(0)).isSameAs(tiny);
+        assertThat(compressor.getSkipped()).isEqualTo(1L);
+    }
+
+    private static byte[] repeat(String reading, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(reading);
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gunzip(byte[] encoded) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(encoded))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
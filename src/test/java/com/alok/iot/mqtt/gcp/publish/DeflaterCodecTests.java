@@ -0,0 +1,80 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeflaterCodecTests {
+    private static final PayloadCodec GZIP = PayloadCodec.forName("gzip");
+    private static final PayloadCodec DEFLATE = PayloadCodec.forName("deflate");
+
+    @Test
+    void gzipDecodesWithGzipInputStream() throws IOException {
+        for (byte[] payload : payloads()) {
+            byte[] encoded = GZIP.encode(payload);
+
+            assertThat(encoded[0]).isEqualTo((byte) 0x1f);
+            assertThat(encoded[1]).isEqualTo((byte) 0x8b);
+            assertThat(readAll(new GZIPInputStream(new ByteArrayInputStream(encoded)))).isEqualTo(payload);
+        }
+    }
+
+    @Test
+    void deflateDecodesWithInflaterInputStream() throws IOException {
+        for (byte[] payload : payloads()) {
+            byte[] encoded = DEFLATE.encode(payload);
+
+            assertThat(readAll(new InflaterInputStream(new ByteArrayInputStream(encoded)))).isEqualTo(payload);
+        }
+    }
+
+    @Test
+    void reusesItsCompressorAcrossMessages() throws IOException {
+        byte[] large = random(10_000);
+        byte[] small = "{\"temperature\":21.5}".getBytes(StandardCharsets.UTF_8);
+        GZIP.encode(large);
+
+        // The smaller message must not carry anything over from the larger one before it.
+        byte[] encoded = GZIP.encode(small);
+        assertThat(readAll(new GZIPInputStream(new ByteArrayInputStream(encoded)))).isEqualTo(small);
+    }
+
+    /** Empty, small, above the default compression threshold, and larger than the 1 KiB output buffer. */
+    private static byte[][] payloads() {
+        StringBuilder readings = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            readings.append("{\"sensor\":\"thermostat-7\",\"reading\":").append(i).append("}\n");
+        }
+        return new byte[][] {
+            new byte[0],
+            "{\"temperature\":21.5}".getBytes(StandardCharsets.UTF_8),
+            readings.toString().getBytes(StandardCharsets.UTF_8),
+            random(64 * 1024)
+        };
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,105 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.alok.iot.mqtt.gcp.publish.RecordingPublisher.READING;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RateLimitedPublisherTests {
+    private final RecordingPublisher recorder = new RecordingPublisher();
+
+    @Test
+    void holdsStateUpdatesOverQuotaUntilATokenIsDue() throws Exception {
+        RateLimitedPublisher limiter =
+                new RateLimitedPublisher(recorder, 0, 1, RateLimitedPublisher.Overflow.QUEUE, 10);
+
+        limiter.publish("/devices/a/state", READING, 1);
+        CompletableFuture<Void> held = limiter.publish("/devices/a/state", READING, 1);
+        CompletableFuture<Void> other = limiter.publish("/devices/b/state", READING, 1);
+
+        assertThat(held.isDone()).isFalse();
+        assertThat(other.isDone()).isTrue();
+        assertThat(recorder.sent()).containsExactly("/devices/a/state", "/devices/b/state");
+        assertThat(limiter.awaitEmpty(5, TimeUnit.SECONDS)).isTrue();
+        held.join();
+        assertThat(recorder.sent()).containsExactly("/devices/a/state", "/devices/b/state", "/devices/a/state");
+        assertThat(limiter.getDelayed()).isEqualTo(1L);
+        limiter.close();
+    }
+
+    @Test
+    void shedsOverQuotaWithoutLimitingOtherTopics() {
+        RateLimitedPublisher limiter =
+                new RateLimitedPublisher(recorder, 2, 0, RateLimitedPublisher.Overflow.SHED, 10);
+
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(limiter.publish("/devices/a/events/sensors", READING, 1));
+        }
+        limiter.publish("/devices/a/state", READING, 1);
+        limiter.publish("/devices/a/attach", READING, 1);
+
+        assertThat(results.get(1).isCompletedExceptionally()).isFalse();
+        assertThat(results.get(2).isCompletedExceptionally()).isTrue();
+        assertThat(limiter.getShed()).isEqualTo(1L);
+        assertThat(recorder.sent()).containsExactly(
+                "/devices/a/events/sensors", "/devices/a/events/sensors", "/devices/a/state", "/devices/a/attach");
+        limiter.close();
+    }
+
+    @Test
+    void aStalledSendHoldsUpOnlyItsOwnLane() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        MessagePublisher stallsOnA = (topic, payload, qos) -> {
+            sent.add(topic);
+            return topic.startsWith("/devices/a/")
+                    ? new CompletableFuture<>()
+                    : CompletableFuture.completedFuture(null);
+        };
+        RateLimitedPublisher limiter =
+                new RateLimitedPublisher(stallsOnA, 0, 1, RateLimitedPublisher.Overflow.QUEUE, 10);
+
+        limiter.publish("/devices/a/state", READING, 1);
+        CompletableFuture<Void> stalled = limiter.publish("/devices/a/state", READING, 1);
+        CompletableFuture<Void> behindStalled = limiter.publish("/devices/a/state", READING, 1);
+        limiter.publish("/devices/b/state", READING, 1);
+        CompletableFuture<Void> heldOnB = limiter.publish("/devices/b/state", READING, 1);
+        CompletableFuture<Void> behindOnB = limiter.publish("/devices/b/state", READING, 1);
+
+        behindOnB.get(5, TimeUnit.SECONDS);
+        assertThat(heldOnB.isDone()).isTrue();
+        // a's second drain waits for its first, which the downstream never completes.
+        assertThat(stalled.isDone()).isFalse();
+        assertThat(behindStalled.isDone()).isFalse();
+        assertThat(sent.stream().filter(topic -> topic.startsWith("/devices/a/"))).hasSize(2);
+        assertThat(limiter.size()).isEqualTo(1);
+        limiter.close();
+        assertThat(behindStalled.isCompletedExceptionally()).isTrue();
+    }
+
+    @Test
+    void prunesLanesWithNothingHeldOnceTheirBucketIsFull() throws Exception {
+        RateLimitedPublisher limiter =
+                new RateLimitedPublisher(recorder, 100, 1, RateLimitedPublisher.Overflow.QUEUE, 10);
+        limiter.publish("/devices/a/events", READING, 1);
+        limiter.publish("/devices/b/state", READING, 1);
+        CompletableFuture<Void> held = limiter.publish("/devices/b/state", READING, 1);
+
+        // a's bucket is full again after 10 ms; b's is still holding a message.
+        Thread.sleep(50);
+        limiter.prune();
+
+        assertThat(limiter.lanes()).isEqualTo(1);
+        assertThat(held.isDone()).isFalse();
+        limiter.publish("/devices/a/events", READING, 1).join();
+        assertThat(limiter.lanes()).isEqualTo(2);
+        assertThat(limiter.getPassed()).isEqualTo(3L);
+        limiter.close();
+    }
+}
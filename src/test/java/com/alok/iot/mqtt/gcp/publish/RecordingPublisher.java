@@ -0,0 +1,44 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The last stage of a publish chain under test: records each publish and completes it at once.
+ * By default only topics are recorded; {@link #withPayloads} also records payloads.
+ */
+public class RecordingPublisher implements MessagePublisher {
+    /** A payload for tests that do not look at it. */
+    public static final byte[] READING = {1};
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    private final boolean payloads;
+
+    /** Records the topic of each publish. */
+    public RecordingPublisher() {
+        this(false);
+    }
+
+    private RecordingPublisher(boolean payloads) {
+        this.payloads = payloads;
+    }
+
+    /** Records each publish as its topic, a space and its payload as UTF-8. */
+    public static RecordingPublisher withPayloads() {
+        return new RecordingPublisher(true);
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        sent.add(payloads ? topic + " " + new String(payload, StandardCharsets.UTF_8) : topic);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /** What was published, in order. */
+    public List<String> sent() {
+        return sent;
+    }
+}
@@ -0,0 +1,74 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StateCoalescerTests {
+    private final RecordingPublisher recorder = RecordingPublisher.withPayloads();
+
+    @Test
+    void sendsOnlyTheNewestOfUpdatesThatCameTooSoon() throws Exception {
+        StateCoalescer coalescer = new StateCoalescer(recorder, 5);
+        for (int i = 0; i < 5; i++) {
+            coalescer.publish("/devices/a/state", state(i), 1);
+        }
+        CompletableFuture<Void> second = coalescer.publish("/devices/a/state", state(5), 1);
+        CompletableFuture<Void> newest = coalescer.publish("/devices/a/state", state(6), 1);
+
+        assertThat(second).isSameAs(newest);
+        newest.get(5, TimeUnit.SECONDS);
+        assertThat(recorder.sent()).containsExactly(
+                "/devices/a/state 0", "/devices/a/state 1", "/devices/a/state 2", "/devices/a/state 3",
+                "/devices/a/state 4", "/devices/a/state 6");
+        assertThat(coalescer.getCoalesced()).isEqualTo(1L);
+        coalescer.close();
+    }
+
+    @Test
+    void passesOtherTopicsAndDevicesThrough() {
+        StateCoalescer coalescer = new StateCoalescer(recorder, 1);
+        coalescer.publish("/devices/a/state", state(1), 1);
+        coalescer.publish("/devices/a/state", state(2), 1);
+        coalescer.publish("/devices/b/state", state(3), 1);
+        coalescer.publish("/devices/a/events", state(4), 1);
+        coalescer.publish("/devices/a/events", state(5), 1);
+
+        assertThat(recorder.sent()).containsExactly(
+                "/devices/a/state 1", "/devices/b/state 3", "/devices/a/events 4", "/devices/a/events 5");
+        assertThat(coalescer.size()).isEqualTo(1);
+
+        coalescer.close();
+        assertThat(recorder.sent()).hasSize(5).contains("/devices/a/state 2");
+    }
+
+    @Test
+    void prunesSlotsHoldingNothingOnceTheirBucketIsFull() throws Exception {
+        StateCoalescer coalescer = new StateCoalescer(recorder, 100);
+        int devices = DeviceTopics.size();
+        coalescer.publish("/devices/pruned-1/state", state(1), 1);
+        coalescer.publish("/devices/pruned-1/state/extra", state(2), 1);
+
+        // The bucket is full again after 10 ms.
+        Thread.sleep(50);
+        assertThat(coalescer.slots()).isEqualTo(1);
+        coalescer.prune();
+
+        assertThat(coalescer.slots()).isEqualTo(0);
+        coalescer.publish("/devices/pruned-1/state", state(3), 1).join();
+        assertThat(recorder.sent()).containsExactly(
+                "/devices/pruned-1/state 1", "/devices/pruned-1/state/extra 2", "/devices/pruned-1/state 3");
+        // Recognising state topics does not add devices to the topic table.
+        assertThat(DeviceTopics.size()).isEqualTo(devices);
+        coalescer.close();
+    }
+
+    private static byte[] state(int version) {
+        return String.valueOf(version).getBytes(StandardCharsets.UTF_8);
+    }
+}
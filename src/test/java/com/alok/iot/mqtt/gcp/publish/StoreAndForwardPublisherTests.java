@@ -0,0 +1,187 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StoreAndForwardPublisherTests {
+    private final AtomicBoolean connected = new AtomicBoolean();
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+    private final MessagePublisher recorder = (topic, payload, qos) -> {
+        sent.add(new String(payload, StandardCharsets.UTF_8));
+        return CompletableFuture.completedFuture(null);
+    };
+
+    @TempDir
+    Path spillDir;
+
+    @Test
+    void spillsWhileDisconnectedAndDrainsInOrder() throws Exception {
+        try (StoreAndForwardPublisher queue = newQueue(2, spillDir.toString(), 1024 * 1024,
+                StoreAndForwardPublisher.DropPolicy.NEWEST)) {
+            List<CompletableFuture<Void>> results = new ArrayList<>();
+            for (String reading : new String[] {"a", "b", "c", "d", "e"}) {
+                results.add(queue.publish("/devices/d1/events", bytes(reading), 1));
+            }
+            assertThat(sent).isEmpty();
+            assertThat(results.stream().anyMatch(CompletableFuture::isDone)).isFalse();
+            assertThat(queue.size()).isEqualTo(5);
+            assertThat(queue.getSpilled()).isEqualTo(3L);
+
+            connected.set(true);
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+            assertThat(queue.awaitEmpty(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(sent).containsExactly("a", "b", "c", "d", "e");
+            assertThat(queue.getSpillBytes()).isEqualTo(0L);
+        }
+    }
+
+    @Test
+    void dropsOldestWhenFull() throws Exception {
+        try (StoreAndForwardPublisher queue = newQueue(2, null, 0, StoreAndForwardPublisher.DropPolicy.OLDEST)) {
+            CompletableFuture<Void> a = queue.publish("/devices/d1/events", bytes("a"), 1);
+            queue.publish("/devices/d1/events", bytes("b"), 1);
+            queue.publish("/devices/d1/events", bytes("c"), 1);
+            assertThat(queue.getDropped()).isEqualTo(1L);
+            assertThat(reasonCode(a)).isEqualTo(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+
+            connected.set(true);
+            assertThat(queue.awaitEmpty(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(sent).containsExactly("b", "c");
+        }
+    }
+
+    @Test
+    void dropsLowestPriorityWhenFull() throws Exception {
+        try (StoreAndForwardPublisher queue = newQueue(2, null, 0, StoreAndForwardPublisher.DropPolicy.PRIORITY)) {
+            queue.publish("/devices/d1/events", bytes("a"), 1, 1);
+            queue.publish("/devices/d1/events", bytes("b"), 1, 0);
+            assertThat(queue.publish("/devices/d1/events", bytes("c"), 1, 2).isCompletedExceptionally()).isFalse();
+            assertThat(queue.publish("/devices/d1/events", bytes("d"), 1, 0).isCompletedExceptionally()).isTrue();
+            assertThat(queue.getDropped()).isEqualTo(2L);
+
+            connected.set(true);
+            assertThat(queue.awaitEmpty(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(sent).containsExactly("a", "c");
+        }
+    }
+
+    @Test
+    void retriesLostPublishesInTheirOriginalOrder() throws Exception {
+        HoldingPublisher holding = new HoldingPublisher();
+        connected.set(true);
+        try (StoreAndForwardPublisher queue = new StoreAndForwardPublisher(
+                holding, connected::get, 4, null, 0, 1000, StoreAndForwardPublisher.DropPolicy.NEWEST)) {
+            CompletableFuture<Void> a = queue.publish("/devices/d1/events", bytes("a"), 1);
+            CompletableFuture<Void> b = queue.publish("/devices/d1/events", bytes("b"), 1);
+            CompletableFuture<Void> c = queue.publish("/devices/d1/events", bytes("c"), 1);
+            connected.set(false);
+            holding.fail("c", "a", "b");
+
+            assertThat(a.isDone()).isFalse();
+            assertThat(queue.size()).isEqualTo(3);
+
+            holding.release();
+            connected.set(true);
+            CompletableFuture.allOf(a, b, c).get(5, TimeUnit.SECONDS);
+            assertThat(holding.published).containsExactly("a", "b", "c", "a", "b", "c");
+            assertThat(queue.getDrained()).isEqualTo(3L);
+        }
+    }
+
+    @Test
+    void keepsNoMoreRetriesThanTheMemoryCapacity() throws Exception {
+        HoldingPublisher holding = new HoldingPublisher();
+        connected.set(true);
+        try (StoreAndForwardPublisher queue = new StoreAndForwardPublisher(
+                holding, connected::get, 2, null, 0, 1000, StoreAndForwardPublisher.DropPolicy.OLDEST)) {
+            CompletableFuture<Void> a = queue.publish("/devices/d1/events", bytes("a"), 1);
+            CompletableFuture<Void> b = queue.publish("/devices/d1/events", bytes("b"), 1);
+            CompletableFuture<Void> c = queue.publish("/devices/d1/events", bytes("c"), 1);
+            connected.set(false);
+            holding.fail("b", "c", "a");
+
+            assertThat(queue.size()).isEqualTo(2);
+            assertThat(queue.getDropped()).isEqualTo(1L);
+            assertThat(reasonCode(a)).isEqualTo(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+            assertThat(b.isDone()).isFalse();
+            assertThat(c.isDone()).isFalse();
+        }
+    }
+
+    @Test
+    void closeFailsWhatIsStillQueued() throws Exception {
+        StoreAndForwardPublisher queue = newQueue(1, spillDir.toString(), 1024 * 1024,
+                StoreAndForwardPublisher.DropPolicy.NEWEST);
+        CompletableFuture<Void> inMemory = queue.publish("/devices/d1/events", bytes("a"), 1);
+        CompletableFuture<Void> spilled = queue.publish("/devices/d1/events", bytes("b"), 1);
+        queue.close();
+
+        assertThat(reasonCode(inMemory)).isEqualTo(MqttException.REASON_CODE_CLIENT_CLOSED);
+        assertThat(reasonCode(spilled)).isEqualTo(MqttException.REASON_CODE_CLIENT_CLOSED);
+        assertThat(reasonCode(queue.publish("/devices/d1/events", bytes("c"), 1)))
+                .isEqualTo(MqttException.REASON_CODE_CLIENT_CLOSED);
+    }
+
+    private StoreAndForwardPublisher newQueue(
+            int memoryCapacity, String spillDirectory, long maxSpillBytes, StoreAndForwardPublisher.DropPolicy policy)
+            throws Exception {
+        return new StoreAndForwardPublisher(
+                recorder, connected::get, memoryCapacity, spillDirectory, maxSpillBytes, 1000, policy);
+    }
+
+    private static int reasonCode(CompletableFuture<Void> result) {
+        Throwable e = result.handle((ignored, failure) -> failure).join();
+        assertThat(e).isInstanceOf(MqttException.class);
+        return ((MqttException) e).getReasonCode();
+    }
+
+    /** Records every publish and leaves it outstanding until the test fails it or releases them all. */
+    private static final class HoldingPublisher implements MessagePublisher {
+        private final List<String> published = new CopyOnWriteArrayList<>();
+        private final List<CompletableFuture<Void>> outstanding = new CopyOnWriteArrayList<>();
+        private volatile boolean released;
+
+        @Override
+        public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+            published.add(new String(payload, StandardCharsets.UTF_8));
+            if (released) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            outstanding.add(result);
+            return result;
+        }
+
+        /** Fails the first publishes of {@code readings}, in the given order, as if the connection was lost. */
+        void fail(String... readings) {
+            for (String reading : readings) {
+                outstanding.get(published.indexOf(reading))
+                        .completeExceptionally(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+            }
+        }
+
+        /** Completes what is outstanding, and every later publish straight away. */
+        void release() {
+            released = true;
+            for (CompletableFuture<Void> result : outstanding) {
+                result.complete(null);
+            }
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,98 @@
+package com.alok.iot.mqtt.gcp.publish;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TelemetryBatcherTests {
+    private final RecordingPublisher recorder = RecordingPublisher.withPayloads();
+
+    @Test
+    void flushesWhenCountIsReached() {
+        try (TelemetryBatcher batcher = new TelemetryBatcher(recorder, 1024, 3, 60000L)) {
+            CompletableFuture<Void> first = batcher.publish("/devices/d1/events", bytes("a"), 1);
+            batcher.publish("/devices/d1/events", bytes("b"), 1);
+            assertThat(recorder.sent()).isEmpty();
+            assertThat(first.isDone()).isFalse();
+
+            batcher.publish("/devices/d1/events", bytes("c"), 1);
+            assertThat(recorder.sent()).containsExactly("/devices/d1/events a\nb\nc");
+            assertThat(first.isDone()).isTrue();
+            assertThat(batcher.getHistogram().getBatches()).isEqualTo(1L);
+        }
+    }
+
+    @Test
+    void flushesBeforeExceedingMaxBytes() {
+        try (TelemetryBatcher batcher = new TelemetryBatcher(recorder, 5, 100, 60000L)) {
+            batcher.publish("/devices/d1/events", bytes("abc"), 1);
+            batcher.publish("/devices/d1/events", bytes("de"), 1);
+            assertThat(recorder.sent()).containsExactly("/devices/d1/events abc");
+        }
+        assertThat(recorder.sent()).containsExactly("/devices/d1/events abc", "/devices/d1/events de");
+    }
+
+    @Test
+    void flushesAfterLinger() throws Exception {
+        try (TelemetryBatcher batcher = new TelemetryBatcher(recorder, 1024, 100, 50L)) {
+            batcher.publish("/devices/d1/events", bytes("a"), 1);
+            batcher.publish("/devices/d2/events", bytes("b"), 1).get(5, TimeUnit.SECONDS);
+            assertThat(recorder.sent()).containsExactlyInAnyOrder("/devices/d1/events a", "/devices/d2/events b");
+        }
+    }
+
+    @Test
+    void sendsATopicsBatchesInTheOrderTheyWereFilled() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        MessagePublisher slowOnTheLingerTimer = (topic, payload, qos) -> {
+            if (Thread.currentThread().getName().equals("telemetry-batcher")) {
+                sleep(100);
+            }
+            sent.add(new String(payload, StandardCharsets.UTF_8));
+            return CompletableFuture.completedFuture(null);
+        };
+        try (TelemetryBatcher batcher = new TelemetryBatcher(slowOnTheLingerTimer, 1024, 2, 10L)) {
+            batcher.publish("/devices/d1/events", bytes("a"), 1);
+            // The linger timer is now sending "a"; the next batch fills up while it does.
+            Thread.sleep(50);
+            batcher.publish("/devices/d1/events", bytes("b"), 1);
+            batcher.publish("/devices/d1/events", bytes("c"), 1).get(5, TimeUnit.SECONDS);
+        }
+        assertThat(sent).containsExactly("a", "b\nc");
+    }
+
+    @Test
+    void prunesTopicsWithNothingBuffered() {
+        try (TelemetryBatcher batcher = new TelemetryBatcher(recorder, 1024, 2, 60000L)) {
+            batcher.publish("/devices/d1/events", bytes("a"), 1);
+            batcher.publish("/devices/d1/events", bytes("b"), 1);
+            batcher.publish("/devices/d2/events", bytes("c"), 1);
+            batcher.prune();
+
+            assertThat(batcher.batches()).isEqualTo(1);
+            batcher.publish("/devices/d1/events", bytes("d"), 1);
+            batcher.publish("/devices/d1/events", bytes("e"), 1);
+            assertThat(recorder.sent()).containsExactly("/devices/d1/events a\nb", "/devices/d1/events d\ne");
+        }
+        assertThat(recorder.sent()).endsWith("/devices/d2/events c");
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,104 @@
+package com.alok.iot.mqtt.gcp.session;
+
+import com.alok.iot.mqtt.gcp.MqttExampleOptions;
+import com.alok.iot.mqtt.gcp.utils.DeviceTopics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DeviceSessionManagerTests {
+    @TempDir
+    Path keyDir;
+
+    private final MqttExampleOptions options = new MqttExampleOptions();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        Path keyFile = keyDir.resolve("rsa_private_pkcs8");
+        Files.write(keyFile, generator.generateKeyPair().getPrivate().getEncoded());
+        options.projectId = "my-project";
+        options.registryId = "my-registry";
+        options.privateKeyFile = keyFile.toString();
+        options.algorithm = "RS256";
+        // Sessions are only opened, never connected, so nothing listens here.
+        options.mqttBridgeHostname = "localhost";
+        options.mqttBridgePort = 1;
+        options.inboundWorkers = 1;
+    }
+
+    @Test
+    void opensOneSessionPerDevice() throws Exception {
+        try (DeviceSessionManager manager = new DeviceSessionManager(options, 2)) {
+            DeviceSession session = manager.open("sensor-1");
+
+            assertThat(manager.open("sensor-1")).isSameAs(session);
+            assertThat(manager.get("sensor-1")).isSameAs(session);
+            assertThat(session.getDeviceId()).isEqualTo("sensor-1");
+            assertThat(session.getClient().getClientId())
+                    .isEqualTo("projects/my-project/locations/asia-east1/registries/my-registry/devices/sensor-1");
+            assertThat(session.isConnected()).isFalse();
+            assertThat(manager.size()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void keepsEachDeviceOnOneShard() throws Exception {
+        try (DeviceSessionManager manager = new DeviceSessionManager(options, 4)) {
+            Set<ScheduledExecutorService> shards = new HashSet<>();
+            for (int i = 0; i < 32; i++) {
+                shards.add(manager.open("sensor-" + i).getShard());
+            }
+            ScheduledExecutorService shard = manager.get("sensor-7").getShard();
+            manager.close("sensor-7");
+
+            assertThat(shards).hasSize(4);
+            assertThat(manager.open("sensor-7").getShard()).isSameAs(shard);
+        }
+    }
+
+    @Test
+    void closingASessionForgetsIt() throws Exception {
+        try (DeviceSessionManager manager = new DeviceSessionManager(options, 2)) {
+            manager.open("sensor-1");
+            manager.open("sensor-2");
+            DeviceTopics topics = DeviceTopics.of("sensor-1");
+            manager.close("sensor-1");
+            manager.close("unknown");
+
+            assertThat(manager.get("sensor-1")).isNull();
+            assertThat(manager.size()).isEqualTo(1);
+            assertThat(DeviceTopics.of("sensor-1")).isNotSameAs(topics);
+            assertThatThrownBy(() -> manager.publish("sensor-1", "/devices/sensor-1/events", new byte[0], 1))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessageContaining("sensor-1");
+        }
+    }
+
+    @Test
+    void reportsResourceUsage() throws Exception {
+        try (DeviceSessionManager manager = new DeviceSessionManager(options, 3)) {
+            for (int i = 0; i < 5; i++) {
+                manager.open("sensor-" + i);
+            }
+            DeviceSessionManager.ResourceUsage usage = manager.resourceUsage();
+
+            assertThat(usage.getSessions()).isEqualTo(5);
+            assertThat(usage.getConnectedSessions()).isEqualTo(0);
+            assertThat(usage.getIoThreads()).isEqualTo(3);
+            assertThat(usage.getThreadsPer1k()).isEqualTo(usage.getSessionThreads() * 200.0);
+            assertThat(usage.toString()).startsWith("5 sessions (0 connected) on 3 I/O threads");
+        }
+    }
+}
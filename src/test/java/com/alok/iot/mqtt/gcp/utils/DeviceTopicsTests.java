@@ -0,0 +1,38 @@
+package com.alok.iot.mqtt.gcp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DeviceTopicsTests {
+
+    @Test
+    void buildsEachDevicesTopicsOnce() {
+        DeviceTopics topics = DeviceTopics.of("thermostat-7");
+
+        assertThat(DeviceTopics.of("thermostat-7")).isSameAs(topics);
+        assertThat(topics.telemetry("event")).isSameAs(topics.events());
+        assertThat(topics.events()).isEqualTo("/devices/thermostat-7/events");
+        assertThat(topics.telemetry("state")).isEqualTo("/devices/thermostat-7/state");
+        assertThat(topics.commands()).isEqualTo("/devices/thermostat-7/commands/#");
+        assertThat(topics.attach()).isEqualTo("/devices/thermostat-7/attach");
+    }
+
+    @Test
+    void parsesTheDeviceIdOfADeviceTopic() {
+        assertThat(DeviceTopics.deviceIdOf("/devices/thermostat-7/events")).isEqualTo("thermostat-7");
+        assertThat(DeviceTopics.deviceIdOf("/devices/thermostat-7/commands/fan")).isEqualTo("thermostat-7");
+        assertThat(DeviceTopics.deviceIdOf(DeviceTopics.of("thermostat-7").state())).isEqualTo("thermostat-7");
+        assertThat(DeviceTopics.deviceIdOf("/devices//events")).isNull();
+        assertThat(DeviceTopics.deviceIdOf("/devices/thermostat-7")).isNull();
+        assertThat(DeviceTopics.deviceIdOf("/projects/p/topics/t")).isNull();
+    }
+
+    @Test
+    void rejectsUnknownMessageTypes() {
+        assertThatThrownBy(() -> DeviceTopics.of("thermostat-7").telemetry("config"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("'events' or 'state'");
+    }
+}
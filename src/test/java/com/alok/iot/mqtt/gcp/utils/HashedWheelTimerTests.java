@@ -0,0 +1,67 @@
+package com.alok.iot.mqtt.gcp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HashedWheelTimerTests {
+
+    @Test
+    void firesTimeoutsAfterTheirDelayIncludingLaterRounds() throws Exception {
+        // 8 buckets of 5 ms, so a 100 ms delay goes round the wheel twice before it fires.
+        HashedWheelTimer timer = new HashedWheelTimer("test-wheel", 5, TimeUnit.MILLISECONDS, 8);
+        CountDownLatch fired = new CountDownLatch(2);
+        long start = System.nanoTime();
+        long[] elapsed = new long[2];
+        timer.newTimeout(() -> {
+            elapsed[0] = System.nanoTime() - start;
+            fired.countDown();
+        }, 10, TimeUnit.MILLISECONDS);
+        timer.newTimeout(() -> {
+            elapsed[1] = System.nanoTime() - start;
+            fired.countDown();
+        }, 100, TimeUnit.MILLISECONDS);
+
+        assertThat(fired.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(elapsed[0]).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(elapsed[1]).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+        assertThat(timer.size()).isEqualTo(0L);
+        timer.close();
+    }
+
+    @Test
+    void cancelledTimeoutsNeverRun() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-wheel", 1, TimeUnit.MILLISECONDS, 64);
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+
+        assertThat(timeout.cancel()).isTrue();
+        assertThat(timeout.cancel()).isFalse();
+        Thread.sleep(60);
+
+        assertThat(runs.get()).isEqualTo(0);
+        assertThat(timeout.isCancelled()).isTrue();
+        assertThat(timer.size()).isEqualTo(0L);
+        timer.close();
+    }
+
+    @Test
+    void periodicTimersRepeatUntilCancelled() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-wheel", 1, TimeUnit.MILLISECONDS, 64);
+        CountDownLatch ticks = new CountDownLatch(5);
+        HashedWheelTimer.Timeout periodic = timer.newPeriodic(ticks::countDown, 0, 5, TimeUnit.MILLISECONDS);
+
+        assertThat(ticks.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(periodic.cancel()).isTrue();
+        long expired = timer.getExpired();
+        Thread.sleep(30);
+
+        assertThat(timer.getExpired()).isLessThanOrEqualTo(expired + 1);
+        assertThat(timer.size()).isEqualTo(0L);
+        timer.close();
+    }
+}
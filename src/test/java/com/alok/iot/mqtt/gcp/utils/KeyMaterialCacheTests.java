@@ -0,0 +1,72 @@
+package com.alok.iot.mqtt.gcp.utils;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeyMaterialCacheTests {
+    private static final long NOW = System.currentTimeMillis() / 1000L;
+
+    @TempDir
+    Path keyDir;
+
+    @Test
+    void signsVerifiableRsaAndEsTokens() throws Exception {
+        KeyPair rsa = generate("RSA", 2048);
+        KeyPair ec = generate("EC", 256);
+        Path rsaFile = write("rsa_private_pkcs8", rsa);
+        Path ecFile = write("ec_private_pkcs8", ec);
+
+        KeyMaterialCache cache = new KeyMaterialCache();
+        String rsaJwt = cache.signerFor(rsaFile.toString(), SignatureAlgorithm.RS256).sign("my-project", NOW, NOW + 1200L);
+        String ecJwt = cache.signerFor(ecFile.toString(), SignatureAlgorithm.ES256).sign("my-project", NOW, NOW + 1200L);
+
+        assertThat(audience(rsaJwt, rsa)).isEqualTo("my-project");
+        assertThat(audience(ecJwt, ec)).isEqualTo("my-project");
+    }
+
+    @Test
+    void reusesSignerUntilKeyFileChanges() throws Exception {
+        Path keyFile = write("rsa_private_pkcs8", generate("RSA", 2048));
+        KeyMaterialCache cache = new KeyMaterialCache(0L);
+
+        JwtSigner first = cache.signerFor(keyFile.toString(), SignatureAlgorithm.RS256);
+        assertThat(cache.signerFor(keyFile.toString(), SignatureAlgorithm.RS256)).isSameAs(first);
+
+        KeyPair rotated = generate("RSA", 2048);
+        write("rsa_private_pkcs8", rotated);
+        Files.setLastModifiedTime(keyFile, FileTime.fromMillis(System.currentTimeMillis() + 60000L));
+
+        JwtSigner second = cache.signerFor(keyFile.toString(), SignatureAlgorithm.RS256);
+        assertThat(second).isNotSameAs(first);
+        assertThat(audience(second.sign("my-project", NOW, NOW + 1200L), rotated)).isEqualTo("my-project");
+    }
+
+    private static KeyPair generate(String algorithm, int size) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        generator.initialize(size);
+        return generator.generateKeyPair();
+    }
+
+    private Path write(String name, KeyPair keyPair) throws Exception {
+        return Files.write(keyDir.resolve(name), keyPair.getPrivate().getEncoded());
+    }
+
+    private static String audience(String jwt, KeyPair keyPair) {
+        Claims claims = Jwts.parser()
+                .setSigningKey(keyPair.getPublic())
+                .parseClaimsJws(jwt)
+                .getBody();
+        return claims.getAudience();
+    }
+}
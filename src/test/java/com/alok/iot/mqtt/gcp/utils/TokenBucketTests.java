@@ -0,0 +1,36 @@
+package com.alok.iot.mqtt.gcp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenBucketTests {
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    void allowsBurstThenRefillsAtRate() {
+        TokenBucket bucket = new TokenBucket(10, 2, now::get);
+        assertThat(bucket.tryAcquire()).isTrue();
+        assertThat(bucket.tryAcquire()).isTrue();
+        assertThat(bucket.tryAcquire()).isFalse();
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertThat(bucket.tryAcquire()).isTrue();
+        assertThat(bucket.tryAcquire()).isFalse();
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThat(bucket.available()).isEqualTo(2.0);
+    }
+
+    @Test
+    void reservationsQueueBehindEachOther() {
+        TokenBucket bucket = new TokenBucket(10, 1, now::get);
+        assertThat(bucket.reserve()).isEqualTo(0L);
+        assertThat(bucket.reserve()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+        assertThat(bucket.reserve()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(bucket.tryAcquire()).isFalse();
+    }
+}